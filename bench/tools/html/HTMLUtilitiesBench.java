@@ -0,0 +1,317 @@
+package tools.html;
+
+import java.util.Random;
+import java.util.regex.*;
+
+/**
+ * Porównanie formatowania treści wiadomości do HTML jednym przebiegiem
+ * ({@link HTMLUtilities#appendPlainText}) z poprzednim łańcuchem escape(),
+ * tagURLs() i nl2br() opartym o wyrażenia regularne: sprawdzenie zgodności
+ * wyników na losowych danych oraz pomiar czasu.
+ *
+ * Poprzedni łańcuch szukał adresów w tekście już przekonwertowanym, więc
+ * przy znakach specjalnych HTML (&amp;, &lt;, &gt;, &quot;) przy adresie
+ * widział ich encje - i np. obcinał adres na średniku encji, albo nie
+ * rozpoznawał adresu w &lt;...&gt;. Te różnice są zamierzone. Dlatego
+ * wynik jest porównywany z wzorcem - tym samym wyrażeniem, ale
+ * stosowanym do tekstu przed konwersją - który musi się zgadzać zawsze.
+ * Różnice względem poprzedniego łańcucha są dopuszczalne tylko w tekstach
+ * ze znakami specjalnymi HTML, a ich przykłady są sprawdzane osobno
+ * ({@link #intendedDifferences}).
+ *
+ * Nie jest częścią programu (katalog bench nie jest kompilowany przez
+ * Makefile). Uruchamianie, z katalogu głównego projektu:
+ *
+ * <pre>
+ * mkdir -p bench-build
+ * javac -encoding utf8 -d bench-build -sourcepath java \
+ *     bench/tools/html/HTMLUtilitiesBench.java
+ * java -Djava.awt.headless=true -cp bench-build tools.html.HTMLUtilitiesBench
+ * </pre>
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+public class HTMLUtilitiesBench
+{
+	/**
+	 * Ilość losowych tekstów w sprawdzeniu zgodności.
+	 */
+	protected final static int differentialCases = 200000;
+
+	/**
+	 * Rozmiary tekstów w pomiarze czasu, w bajtach.
+	 */
+	protected final static int[] benchmarkSizes = { 100, 10 * 1024, 1024 * 1024 };
+
+	/**
+	 * Fragmenty, z których składane są losowe teksty.
+	 */
+	protected final static String[] tokens = { "http://", "https://", "www.",
+		"ftp://", "HTTP://", "a", "b.c", " ", "\n", "\t", ".", ",", ")", "(",
+		"[", "]", "{", "}", ":", ";", "x/y?q=1", "é", "\r\n", "  ",
+		"&", "<", ">", "\"", "&amp;", "a=1&b=2" };
+
+	/**
+	 * Zamierzone różnice względem poprzedniego łańcucha: tekst, wynik
+	 * poprzedniego łańcucha, wynik obecny.
+	 */
+	protected final static String[][] intendedDifferences = {
+		// adres w nawiasach ostrych jest rozpoznawany
+		{ "see <http://a.com> now",
+			"see &lt;http://a.com&gt; now",
+			"see &lt;<a href=\"http://a.com\">http://a.com</a>&gt; now" },
+		// średnik encji nie jest końcowym znakiem interpunkcyjnym adresu
+		{ "http://x\"",
+			"<a href=\"http://x&quot\">http://x&quot</a>;",
+			"<a href=\"http://x&quot;\">http://x&quot;</a>" },
+		// zamykający nawias ostry nie należy do adresu
+		{ "(http://x>",
+			"(<a href=\"http://x&gt\">http://x&gt</a>;",
+			"(<a href=\"http://x\">http://x</a>&gt;" },
+	};
+
+	/**
+	 * Wyrażenie poprzedniej implementacji tagURLs().
+	 */
+	private final static Pattern urlPattern = Pattern.compile(
+		"(\\s[(\\[<{]?)((https?://|ftp://|www\\.)\\S+?)([)\\]>}.:,;]?\\s)",
+		Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+	private final StringBuilder buffer = new StringBuilder();
+
+	/**
+	 * Wynik pomiaru - aby kompilator JIT nie pominął formatowania.
+	 */
+	private static volatile int sink;
+
+	public static void main(String[] args)
+	{
+		HTMLUtilitiesBench bench = new HTMLUtilitiesBench();
+		int errors = bench.runDifferential() + bench.checkIntendedDifferences();
+		bench.runBenchmark();
+		if (errors > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * Porównuje wyniki dla losowych tekstów: z wzorcem (muszą być
+	 * identyczne) i z poprzednim łańcuchem (różnice tylko w tekstach ze
+	 * znakami specjalnymi HTML).
+	 *
+	 * @return ilość błędów
+	 */
+	public int runDifferential()
+	{
+		Random random = new Random(1);
+		int errors = 0, intended = 0;
+		for (int n = 0; n < differentialCases; n++)
+		{
+			StringBuilder textBuilder = new StringBuilder();
+			int length = random.nextInt(12);
+			for (int i = 0; i < length; i++)
+				textBuilder.append(tokens[random.nextInt(tokens.length)]);
+			String text = textBuilder.toString();
+
+			for (int i = 0; i < 2; i++)
+			{
+				boolean tagURLs = (i == 0);
+				String actual = formatSinglePass(text, tagURLs);
+				String reference = formatReference(text, tagURLs);
+				if (!reference.equals(actual))
+				{
+					if (errors++ < 5)
+						printDifference("Różnica względem wzorca", text,
+							tagURLs, reference, actual);
+					continue;
+				}
+				String previous = formatRegex(text, tagURLs);
+				if (previous.equals(actual))
+					continue;
+				if (!hasMarkup(text))
+				{
+					if (errors++ < 5)
+						printDifference("Niezamierzona różnica", text,
+							tagURLs, previous, actual);
+					continue;
+				}
+				intended++;
+			}
+		}
+		System.out.println(differentialCases + " losowych tekstów: błędy: " +
+			errors + ", zamierzone różnice względem poprzedniego łańcucha: " +
+			intended);
+		return errors;
+	}
+
+	/**
+	 * Sprawdza wyniki dla wymienionych zamierzonych różnic.
+	 *
+	 * @return ilość błędów
+	 */
+	public int checkIntendedDifferences()
+	{
+		int errors = 0;
+		for (String[] difference : intendedDifferences)
+		{
+			String previous = formatRegex(difference[0], true);
+			String actual = formatSinglePass(difference[0], true);
+			if (previous.equals(difference[1]) && actual.equals(difference[2]))
+				continue;
+			errors++;
+			printDifference("Nieoczekiwany wynik", difference[0], true,
+				previous, actual);
+		}
+		System.out.println("Zamierzone różnice: " + intendedDifferences.length +
+			", błędy: " + errors);
+		return errors;
+	}
+
+	private static void printDifference(String title, String text,
+		boolean tagURLs, String expected, String actual)
+	{
+		System.out.println(title + " (tagURLs=" + tagURLs + "): [" +
+			text.replace("\n", "\\n") + "]\n" +
+			"  oczekiwane: " + expected + "\n  jest: " + actual);
+	}
+
+	private static boolean hasMarkup(String text)
+	{
+		for (int i = 0; i < text.length(); i++)
+			if ("&<>\"".indexOf(text.charAt(i)) >= 0)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Mierzy czas formatowania tekstów z odnośnikami, znakami specjalnymi
+	 * HTML i nowymi liniami, po rozgrzaniu kompilatora JIT.
+	 */
+	public void runBenchmark()
+	{
+		StringBuilder unit = new StringBuilder();
+		while (unit.length() < benchmarkSizes[benchmarkSizes.length - 1])
+			unit.append("Zobacz http://example.com/build/").
+				append(unit.length()).
+				append(" oraz <b>log</b> & \"wyniki\"\n").
+				append("www.test.pl, (ftp://host/p).\n");
+
+		for (int size : benchmarkSizes)
+		{
+			String text = unit.substring(0, size);
+			int iterations = Math.max(5, 20000000 / size);
+			for (int i = 0; i < 3; i++)
+			{
+				measure(text, iterations, true);
+				measure(text, iterations, false);
+			}
+			System.out.printf("%8d B: wyrażenia regularne %10.1f us/op, " +
+				"jeden przebieg %10.1f us/op%n", size,
+				measure(text, iterations, true),
+				measure(text, iterations, false));
+		}
+	}
+
+	/**
+	 * Mierzy średni czas formatowania tekstu.
+	 *
+	 * @param text formatowany tekst
+	 * @param iterations ilość powtórzeń
+	 * @param regex czy mierzyć poprzednią implementację
+	 * @return średni czas, w mikrosekundach
+	 */
+	private double measure(String text, int iterations, boolean regex)
+	{
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			sink += regex ? formatRegex(text, true).length() :
+				formatSinglePass(text, true).length();
+		return (System.nanoTime() - start) / 1000.0 / iterations;
+	}
+
+	private String formatSinglePass(String text, boolean tagURLs)
+	{
+		buffer.setLength(0);
+		HTMLUtilities.appendPlainText(buffer, text, tagURLs);
+		return buffer.toString();
+	}
+
+	/**
+	 * Poprzednia implementacja: escape(), tagURLs() i nl2br().
+	 *
+	 * @param text tekst do sformatowania
+	 * @param tagURLs czy zamieniać adresy na odnośniki
+	 * @return sformatowany tekst
+	 */
+	private static String formatRegex(String text, boolean tagURLs)
+	{
+		String escaped = escapeRegex(text);
+		if (tagURLs)
+			escaped = tagURLsRegex(escaped);
+		return escaped.replace("\n", "<br />");
+	}
+
+	/**
+	 * Wzorzec: wyrażenie poprzedniej implementacji tagURLs(), stosowane do
+	 * tekstu przed konwersją znaków specjalnych (konwertowane są dopiero
+	 * znalezione fragmenty).
+	 *
+	 * @param text tekst do sformatowania
+	 * @param tagURLs czy zamieniać adresy na odnośniki
+	 * @return sformatowany tekst
+	 */
+	private static String formatReference(String text, boolean tagURLs)
+	{
+		if (!tagURLs)
+			return formatRegex(text, false);
+		StringBuilder result = new StringBuilder(text.length());
+		String padded = " " + text.replaceAll("(\\s)", " $1") + " ";
+		Matcher matcher = urlPattern.matcher(padded);
+		int last = 0;
+		while (matcher.find())
+		{
+			String link = matcher.group(2);
+			String linkLower = link.toLowerCase();
+			String url = link;
+			if (!linkLower.startsWith("http://") &&
+				!linkLower.startsWith("https://") &&
+				!linkLower.startsWith("ftp://"))
+				url = "http://" + link;
+			result.append(escapeRegex(padded.substring(last, matcher.start())));
+			result.append(escapeRegex(matcher.group(1)));
+			result.append("<a href=\"").append(escapeRegex(url)).append("\">").
+				append(escapeRegex(link)).append("</a>");
+			result.append(escapeRegex(matcher.group(4)));
+			last = matcher.end();
+		}
+		result.append(escapeRegex(padded.substring(last)));
+		return result.toString().trim().replaceAll(" (\\s)", "$1").
+			replace("\n", "<br />");
+	}
+
+	private static String escapeRegex(String text)
+	{
+		return text.replace("&", "&amp;").replace("<", "&lt;").
+			replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	private static String tagURLsRegex(String text)
+	{
+		StringBuffer result = new StringBuffer(text.length());
+		Matcher matcher = urlPattern.matcher(
+			" " + text.replaceAll("(\\s)", " $1") + " ");
+		while (matcher.find())
+		{
+			String link = matcher.group(2);
+			String linkLower = link.toLowerCase();
+			String url = link;
+			if (!linkLower.startsWith("http://") &&
+				!linkLower.startsWith("https://") &&
+				!linkLower.startsWith("ftp://"))
+				url = "http://" + link;
+			matcher.appendReplacement(result, matcher.group(1) +
+				"<a href=\"" + url + "\">" + link + "</a>" + matcher.group(4));
+		}
+		matcher.appendTail(result);
+		return result.toString().trim().replaceAll(" (\\s)", "$1");
+	}
+}
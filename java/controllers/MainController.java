@@ -209,6 +209,9 @@ public class MainController extends SimpleObservable implements Observer
 
 		saveConfiguration();
 
+		for (Account account : accounts)
+			account.beforeApplicationClose();
+
 		setStatus(Contact.UserStatus.OFFLINE);
 	}
 
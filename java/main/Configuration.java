@@ -78,6 +78,10 @@ public class Configuration extends Observable
 		}
 
 		XMLUtilities.appendTextNode(configurationEl, "debugMode", debugMode);
+		XMLUtilities.appendTextNode(configurationEl, "multicastEnabled", multicastEnabled);
+		XMLUtilities.appendTextNode(configurationEl, "multicastGroup", multicastGroup);
+		XMLUtilities.appendTextNode(configurationEl, "multicastOnly", multicastOnly);
+		XMLUtilities.appendTextNode(configurationEl, "contactListGrouped", contactListGrouped);
 
 		if (mainViewDimensions != null)
 			configurationEl.appendChild(mainViewDimensions.serialize(
@@ -115,6 +119,21 @@ public class Configuration extends Observable
 			else if (currentNodeName.equals("debugMode"))
 				conf.debugMode = XMLUtilities.getBoolValue(currentNode,
 					conf.debugMode);
+			else if (currentNodeName.equals("multicastEnabled"))
+				conf.multicastEnabled = XMLUtilities.getBoolValue(currentNode,
+					conf.multicastEnabled);
+			else if (currentNodeName.equals("multicastGroup"))
+			{
+				String group = currentNode.getTextContent().trim();
+				if (!group.isEmpty())
+					conf.multicastGroup = group;
+			}
+			else if (currentNodeName.equals("multicastOnly"))
+				conf.multicastOnly = XMLUtilities.getBoolValue(currentNode,
+					conf.multicastOnly);
+			else if (currentNodeName.equals("contactListGrouped"))
+				conf.contactListGrouped = XMLUtilities.getBoolValue(currentNode,
+					conf.contactListGrouped);
 			else if (currentNodeName.equals("mainViewDimensions"))
 				conf.mainViewDimensions = WindowDimensions.deserialize(currentNode);
 			else if (currentNodeName.equals("defaultStatus"))
@@ -326,6 +345,129 @@ public class Configuration extends Observable
 		debugMode = enabled;
 	}
 
+	private boolean multicastEnabled = false;
+
+	/**
+	 * Czy powiadomienia o obecności i wiadomości do pokoju publicznego mają
+	 * być wysyłane przez grupę multicast (do kontaktów, które ją obsługują),
+	 * oprócz broadcastu.
+	 *
+	 * @see #getMulticastOnly()
+	 *
+	 * @return <code>true</code>, jeżeli transport multicast jest włączony
+	 * @see #getMulticastGroup()
+	 */
+	public boolean getMulticastEnabled()
+	{
+		return multicastEnabled;
+	}
+
+	/**
+	 * Włącza, lub wyłącza transport multicast. Zmiana obowiązuje od
+	 * kolejnego połączenia.
+	 *
+	 * @param enabled czy włączyć transport multicast
+	 * @see #getMulticastEnabled()
+	 */
+	public void setMulticastEnabled(boolean enabled)
+	{
+		if (enabled != multicastEnabled)
+			setChanged();
+		multicastEnabled = enabled;
+	}
+
+	/**
+	 * Domyślna grupa multicast (z zakresu adresów lokalnych organizacji).
+	 */
+	public final static String defaultMulticastGroup = "239.255.24.25";
+
+	private String multicastGroup = defaultMulticastGroup;
+
+	/**
+	 * Pobiera adres grupy multicast - IPv4, albo IPv6 link-local
+	 * (np. <code>ff02::2425</code>).
+	 *
+	 * @return adres grupy multicast
+	 */
+	public String getMulticastGroup()
+	{
+		return multicastGroup;
+	}
+
+	/**
+	 * Ustawia adres grupy multicast. Zmiana obowiązuje od kolejnego
+	 * połączenia.
+	 *
+	 * @param group adres grupy multicast (pusty, aby przywrócić domyślny)
+	 * @see #getMulticastGroup()
+	 */
+	public void setMulticastGroup(String group)
+	{
+		if (group == null)
+			throw new NullPointerException();
+		group = group.trim();
+		if (group.isEmpty())
+			group = defaultMulticastGroup;
+		if (!group.equals(multicastGroup))
+			setChanged();
+		multicastGroup = group;
+	}
+
+	private boolean multicastOnly = false;
+
+	/**
+	 * Czy przy włączonym transporcie multicast pomijać broadcast - wysyłać
+	 * na niego tylko ogłoszenia COMM_ENTRY i pakiety do znanych kontaktów
+	 * spoza grupy. Kontakty spoza grupy, których jeszcze nie znamy, nie
+	 * dostaną wtedy np. wiadomości do pokoju publicznego.
+	 *
+	 * @return <code>true</code>, jeżeli broadcast jest pomijany
+	 * @see #getMulticastEnabled()
+	 */
+	public boolean getMulticastOnly()
+	{
+		return multicastOnly;
+	}
+
+	/**
+	 * Włącza, lub wyłącza pomijanie broadcastu przy włączonym transporcie
+	 * multicast. Zmiana obowiązuje od kolejnego połączenia.
+	 *
+	 * @param enabled czy pomijać broadcast
+	 * @see #getMulticastOnly()
+	 */
+	public void setMulticastOnly(boolean enabled)
+	{
+		if (enabled != multicastOnly)
+			setChanged();
+		multicastOnly = enabled;
+	}
+
+	private boolean contactListGrouped = true;
+
+	/**
+	 * Czy kontakty na liście są pogrupowane według grup (działów).
+	 *
+	 * @return <code>true</code>, jeżeli lista jest pogrupowana
+	 */
+	public boolean getContactListGrouped()
+	{
+		return contactListGrouped;
+	}
+
+	/**
+	 * Włącza, lub wyłącza grupowanie kontaktów na liście.
+	 *
+	 * @param grouped czy grupować kontakty
+	 * @see #getContactListGrouped()
+	 */
+	public void setContactListGrouped(boolean grouped)
+	{
+		if (grouped != contactListGrouped)
+			setChanged();
+		contactListGrouped = grouped;
+	}
+
 	private Contact.UserStatus defaultStatus = Contact.UserStatus.ONLINE;
 
 	/**
@@ -28,6 +28,12 @@ public abstract class InterfaceInfoProvider
 	protected static List<Inet4Address> ifaceAdresses =
 			new Vector<Inet4Address>();
 
+	/**
+	 * Adresy interfejsów w komputerze w postaci liczb (cache, odpowiada
+	 * {@link #ifaceAdresses}).
+	 */
+	protected static int[] ifaceAdressesInt = new int[0];
+
 	/**
 	 * Lista adresów broadcast interfejsów w komputerze (cache).
 	 */
@@ -124,7 +130,11 @@ public abstract class InterfaceInfoProvider
 			if (!ifaceAdresses.equals(newIfaceAdresses) ||
 				!broadcastAdresses.equals(newBroadcastAdresses))
 			{
+				int[] newIfaceAdressesInt = new int[newIfaceAdresses.size()];
+				for (int i = 0; i < newIfaceAdressesInt.length; i++)
+					newIfaceAdressesInt[i] = toInt(newIfaceAdresses.get(i));
 				ifaceAdresses = newIfaceAdresses;
+				ifaceAdressesInt = newIfaceAdressesInt;
 				broadcastAdresses = newBroadcastAdresses;
 				interfacesObserver.notifyObservers();
 			}
@@ -152,8 +162,29 @@ public abstract class InterfaceInfoProvider
 	{
 		if (ip == null)
 			throw new NullPointerException();
-		for (Inet4Address addr : getLocalAdresses())
-			if (addr.getHostAddress().equals(ip))
+		try
+		{
+			return isLocalAdress(parseIPv4(ip));
+		}
+		catch (UnknownHostException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Sprawdza, czy podany adres IPv4 jest przypisany do jednego
+	 * z interfejsów.
+	 *
+	 * @param ip adres IPv4 w postaci liczby
+	 * @return <code>true</code>, jeżeli podany adres jest lokalny
+	 * @see #toInt(Inet4Address)
+	 */
+	public static boolean isLocalAdress(int ip)
+	{
+		localHostNameProvider.waitForData();
+		for (int addr : ifaceAdressesInt)
+			if (addr == ip)
 				return true;
 		return false;
 	}
@@ -181,33 +212,69 @@ public abstract class InterfaceInfoProvider
 	}
 
 	/**
-	 * Zamienia adres IP w formie tekstowej na obiekt typu InetAddress.
+	 * Zamienia adres IPv4 na liczbę (w kolejności bajtów sieciowej).
+	 *
+	 * @param addr adres IPv4
+	 * @return adres w postaci liczby
+	 */
+	public static int toInt(Inet4Address addr)
+	{
+		if (addr == null)
+			throw new NullPointerException();
+		byte[] b = addr.getAddress();
+		return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) |
+			((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+	}
+
+	/**
+	 * Zamienia adres IPv4 w formie tekstowej na liczbę.
 	 *
 	 * @param ip adres IPv4 w postaci <code>xxx.xxx.xxx.xxx</code>
-	 * @return adres typu InetAddress
+	 * @return adres w postaci liczby
 	 * @throws UnknownHostException jeżeli podany adres jest nieprawidłowy
 	 */
-	public static InetAddress getIPAddress(String ip) throws UnknownHostException
+	public static int parseIPv4(String ip) throws UnknownHostException
 	{
 		if (ip == null)
 			throw new NullPointerException();
 
-		String[] o = ip.split("\\.", 5);
-		if (o.length != 4)
-			throw new UnknownHostException(ip);
-		byte[] oByte = new byte[4];
-		for (int i = 0; i < 4; i++)
+		int address = 0, octet = 0, digits = 0, octets = 0;
+		int len = ip.length();
+		for (int i = 0; i <= len; i++)
 		{
-			try
+			char c = (i < len) ? ip.charAt(i) : '.';
+			if (c == '.')
 			{
-				oByte[i] = (byte)Integer.parseInt(o[i]);
+				if (digits == 0 || octet > 255 || ++octets > 4)
+					throw new UnknownHostException(ip);
+				address = (address << 8) | octet;
+				octet = digits = 0;
 			}
-			catch (NumberFormatException e)
+			else if (c >= '0' && c <= '9' && digits < 3)
 			{
-				throw new UnknownHostException(ip);
+				octet = octet * 10 + (c - '0');
+				digits++;
 			}
+			else
+				throw new UnknownHostException(ip);
 		}
+		if (octets != 4)
+			throw new UnknownHostException(ip);
+		return address;
+	}
 
-		return Inet4Address.getByAddress(oByte);
+	/**
+	 * Zamienia adres IP w formie tekstowej na obiekt typu InetAddress.
+	 *
+	 * @param ip adres IPv4 w postaci <code>xxx.xxx.xxx.xxx</code>
+	 * @return adres typu InetAddress
+	 * @throws UnknownHostException jeżeli podany adres jest nieprawidłowy
+	 */
+	public static InetAddress getIPAddress(String ip) throws UnknownHostException
+	{
+		int address = parseIPv4(ip);
+		return Inet4Address.getByAddress(new byte[] {
+			(byte)(address >>> 24), (byte)(address >>> 16),
+			(byte)(address >>> 8), (byte)address });
 	}
 }
@@ -77,4 +77,12 @@ public abstract class Account extends SimpleObservable
 	 * pomocą danego konta, NIE oznacza to powodzenia wysyłania wiadomości
 	 */
 	public abstract boolean postMessage(OutgoingMessage message);
+
+	/**
+	 * Wywoływane przed zamknięciem aplikacji (jeszcze przed rozłączeniem
+	 * konta) - konto może wtedy zapisać swój stan.
+	 */
+	public void beforeApplicationClose()
+	{
+	}
 }
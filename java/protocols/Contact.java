@@ -35,8 +35,6 @@ public abstract class Contact extends SimpleObservable
 	 */
 	protected final Account account;
 
-	protected final Contact thisContact = this;
-
 	/**
 	 * Pokój prywatny, do rozmów z kontaktem.
 	 */
@@ -47,8 +45,6 @@ public abstract class Contact extends SimpleObservable
 		if (account == null)
 			throw new NullPointerException();
 		this.account = account;
-
-		getAccount().chatRoomList.addSetListener(new ChatRoomListener());
 	}
 
 	/**
@@ -96,48 +92,55 @@ public abstract class Contact extends SimpleObservable
 	 */
 	public abstract String getTextStatus();
 
+	/**
+	 * Czy kontakt jest potwierdzony - tzn. jego status pochodzi od niego
+	 * samego, a nie np. z zapisanej wcześniej listy kontaktów.
+	 *
+	 * @return <code>true</code>, jeżeli kontakt jest potwierdzony
+	 */
+	public boolean isConfirmed()
+	{
+		return true;
+	}
+
 	/**
 	 * Pobiera prywatny pokój do rozmów z tym kontaktem. Jeżeli chcesz
 	 * zagwarantować, że pokój nie zostanie odłączony od tego kontaktu w czasie
 	 * korzystania z niego, musisz założyć synchronizację.
 	 *
+	 * Pokój usunięty z listy pokoi jest odłączany dopiero przy kolejnym
+	 * pobraniu (wtedy tworzony jest nowy) - kontakt nie rejestruje się jako
+	 * słuchacz listy pokoi, więc usunięcie kontaktu z listy kontaktów nie
+	 * zostawia po nim żadnych odwołań.
+	 *
 	 * @return pokój prywatny do rozmów z kontaktem
 	 */
 	public PrivateChatRoom getPrivateChatRoom()
 	{
 		PrivateChatRoom room = privateChatRoom;
-		if (room != null)
+		if (room != null && getAccount().chatRoomList.contains(room))
 			return room;
 		synchronized(this)
 		{
+			if (privateChatRoom != null &&
+				getAccount().chatRoomList.contains(privateChatRoom))
+				return privateChatRoom;
 			privateChatRoom = new PrivateChatRoom(this);
 			getAccount().chatRoomList.add(privateChatRoom);
 			return privateChatRoom;
 		}
 	}
 
-	class ChatRoomListener implements SetListener<ChatRoom>
+	/**
+	 * Sprawdza, czy kontakt ma otwarty pokój prywatny (znajdujący się na
+	 * liście pokoi).
+	 *
+	 * @return <code>true</code>, jeżeli pokój prywatny jest otwarty
+	 */
+	public boolean hasPrivateChatRoom()
 	{
-		public void itemAdded(ChatRoom item) {}
-		public void itemUpdated(ChatRoom item) { }
-
-		public void itemRemoved(ChatRoom item)
-		{
-			if (!(item instanceof PrivateChatRoom))
-				return;
-			PrivateChatRoom privRoom = (PrivateChatRoom)item;
-			if (privRoom.getContact() != thisContact)
-				return;
-
-			// nasz pokój został usunięty z listy
-			synchronized(thisContact)
-			{
-				if (privateChatRoom != privRoom)
-					return;
-				assert(!getAccount().chatRoomList.contains(item));
-				privateChatRoom = null;
-			}
-		}
+		PrivateChatRoom room = privateChatRoom;
+		return (room != null && getAccount().chatRoomList.contains(room));
 	}
 
 	/**
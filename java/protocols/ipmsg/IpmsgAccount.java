@@ -3,12 +3,16 @@ package protocols.ipmsg;
 import java.io.IOException;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import main.*;
 import protocols.*;
 import net.InterfaceInfoProvider;
+import net.NameService;
+import tools.IntHashMap;
 import tools.ListenableVector;
+import tools.StringPool;
 
 /**
  * Implementacja protokołu IPMsg.
@@ -47,17 +51,18 @@ public class IpmsgAccount extends Account
 	/**
 	 * Metoda odnajdująca obiekt pliku w zbiorze oczekujących na wysłanie.
 	 *
-	 * @param ip ip kontaktu, do którego należy wysłać plik
+	 * @param ip adres kontaktu, do którego należy wysłać plik
 	 * @param header nagłówek pliku, który należy wysłać
 	 * @return obiekt pliku, gdy ten znajduje się w zbiorze,
 	 * <code>null</code> w przeciwnym wypadku
 	 */
-	public IpmsgSentFile getSentFile(String ip, IpmsgFileReceiveRequestHeader header)
+	public IpmsgSentFile getSentFile(InetAddress ip, IpmsgFileReceiveRequestHeader header)
 	{
+		int address = addressCache.get(ip).address;
 		for (IpmsgTransferredFile file: transferredFiles)
 		{
 			if (file instanceof IpmsgSentFile &&
-					((IpmsgSentFile)file).contact.ip.equals(ip) &&
+					((IpmsgSentFile)file).contact.address == address &&
 					((IpmsgSentFile)file).packetID == header.packetID &&
 					((IpmsgSentFile)file).fileID == header.fileID &&
 					file.isFile == (header.offset != null))
@@ -71,13 +76,13 @@ public class IpmsgAccount extends Account
 	 * miały zostać wysłane  od tego samego użytkownika i były inicjowane
 	 * tym samym pakietem.
 	 *
-	 * @param ip ip użytkownika, do którego miały być wysłane pliki
+	 * @param address adres użytkownika, do którego miały być wysłane pliki
 	 * @param packetID ID pakietu inicjującego
 	 */
-	public void cancelFiles(String ip, long packetID)
+	public void cancelFiles(int address, long packetID)
 	{
 		for (IpmsgTransferredFile file: transferredFiles)
-			if (file.contact.ip.equals(ip) && file.packetID == packetID &&
+			if (file.contact.address == address && file.packetID == packetID &&
 				file.state != TransferredFile.State.COMPLETED)
 				file.setState(TransferredFile.State.CANCELLED);
 	}
@@ -89,13 +94,14 @@ public class IpmsgAccount extends Account
 		public void update(Observable o, Object arg)
 		{
 			assert(o instanceof Configuration);
+			invalidateStatusImages();
 			statusNotify(IpmsgPacket.COMM_ABSENCE);
 		}
 	}
 
 	// <editor-fold defaultstate="collapsed" desc="Wątek połączenia">
 
-	private IpmsgConnectionThread connectionThread;
+	private volatile IpmsgConnectionThread connectionThread;
 
 	/**
 	 * Wątek zajmujący się transferem plików.
@@ -112,6 +118,17 @@ public class IpmsgAccount extends Account
 		return (connectionThread != null && connectionThread.isConnected);
 	}
 
+	/**
+	 * Zwraca bieżący wątek połączenia.
+	 *
+	 * @return wątek połączenia, lub <code>null</code>, jeżeli nie był
+	 * jeszcze utworzony
+	 */
+	protected IpmsgConnectionThread getConnectionThread()
+	{
+		return connectionThread;
+	}
+
 	/**
 	 * Zakłada lub usuwa połączenie (gniazdo UDP).
 	 *
@@ -124,6 +141,7 @@ public class IpmsgAccount extends Account
 			return true;
 		if (setConnected)
 		{
+			packetDispatcher.start();
 			connectionThread = new IpmsgConnectionThread(this);
 			while (!connectionThread.isConnected &&
 					!connectionThread.failedConnecting &&
@@ -136,6 +154,7 @@ public class IpmsgAccount extends Account
 				catch (InterruptedException e)
 				{
 					fileTransferThread.interrupt();
+					packetDispatcher.shutdown();
 					return false;
 				}
 			}
@@ -149,12 +168,14 @@ public class IpmsgAccount extends Account
 				{
 					throw new RuntimeException(e);
 				}
+				invalidateStatusImages(); // flaga FLAG_MULTICASTGROUP
 				contactsThread.speedupRefresh();
 				return true;
 			}
 			if (fileTransferThread != null &&
 				fileTransferThread.isAlive())
 				fileTransferThread.interrupt();
+			packetDispatcher.shutdown();
 			if (connectionThread.failedConnecting)
 			{
 				Main.userNotifications.add("Problem z siecią IPMsg",
@@ -167,7 +188,11 @@ public class IpmsgAccount extends Account
 		}
 		else
 		{
+			entryReplyThread.clear();
+			sendThread.flush(1000); // np. pakiet COMM_EXIT
 			connectionThread.disconnect();
+			packetDispatcher.shutdown();
+			sendThread.clear();
 			fileTransferThread.interrupt();
 			return true;
 		}
@@ -178,67 +203,138 @@ public class IpmsgAccount extends Account
 	// <editor-fold defaultstate="collapsed" desc="Wysyłanie i odbieranie pakietów IpmsgPacket">
 
 	/**
-	 * Wysyła pakiet protokołu IPMsg przez UDP.
+	 * Wątek wysyłający pakiety (kolejki priorytetowe).
+	 */
+	protected final IpmsgSendThread sendThread = new IpmsgSendThread(this);
+
+	/**
+	 * Kolejkuje pakiet protokołu IPMsg do wysłania przez UDP, w pasie
+	 * pakietów kontrolnych.
 	 *
 	 * @param packet pakiet do wysłania
+	 * @throws ConnectionLostException jeżeli nie nawiązano połączenia
+	 * @see #sendPacket(IpmsgPacket, IpmsgSendThread.Lane)
 	 */
 	protected void sendPacket(IpmsgPacket packet) throws ConnectionLostException
 	{
-		if (packet == null)
+		sendPacket(packet, IpmsgSendThread.Lane.CONTROL);
+	}
+
+	/**
+	 * Kolejkuje pakiet protokołu IPMsg do wysłania przez UDP. Pakiet nie
+	 * powinien już być modyfikowany.
+	 *
+	 * @param packet pakiet do wysłania
+	 * @param lane pas (priorytet), którym ma być wysłany pakiet
+	 * @throws ConnectionLostException jeżeli nie nawiązano połączenia
+	 */
+	protected void sendPacket(IpmsgPacket packet, IpmsgSendThread.Lane lane)
+		throws ConnectionLostException
+	{
+		if (packet == null || lane == null)
 			throw new NullPointerException();
 		if (!isConnected())
 			throw new ConnectionLostException();
 
-		byte[] rawPacketData = packet.getRAWData();
+		InetSocketAddress target = (packet.ip == null) ? null :
+			addressCache.get(packet.ipAddress).socketAddress;
 
-		DatagramPacket udpPacket = new DatagramPacket(
-				rawPacketData, rawPacketData.length);
-		udpPacket.setPort(IpmsgConnectionThread.port);
+		sendThread.enqueue(lane, packet, target);
+	}
 
-		if (packet.ip == null) // wysyłamy na broadcast
-		{
-			for (Inet4Address bcaddr : InterfaceInfoProvider.getBroadcastAdresses())
-			{
-				udpPacket.setAddress(bcaddr);
-				connectionThread.send(udpPacket);
-			}
-		}
-		else
-		{
-			try
-			{
-				udpPacket.setAddress(InterfaceInfoProvider.getIPAddress(packet.ip));
-			}
-			catch (UnknownHostException e)
-			{
-				System.err.println("Nieznany adres: " + e.getMessage());
-				return;
-			}
+	/**
+	 * Kolejkuje do wysłania zserializowany wcześniej pakiet.
+	 *
+	 * @param image obraz pakietu do wysłania
+	 * @param receiver odbiorca (<code>null</code>, jeżeli broadcast)
+	 * @param renumber czy nadać pakietowi nowy numer (w przeciwnym wypadku
+	 * wysyłany jest dokładnie ten sam pakiet)
+	 * @param lane pas (priorytet), którym ma być wysłany pakiet
+	 * @throws ConnectionLostException jeżeli nie nawiązano połączenia
+	 */
+	protected void sendPacket(IpmsgPacketImage image, IpmsgContact receiver,
+		boolean renumber, IpmsgSendThread.Lane lane) throws ConnectionLostException
+	{
+		sendPacket(image, receiver, renumber, lane, null);
+	}
 
-			connectionThread.send(udpPacket);
+	/**
+	 * Kolejkuje do wysłania zserializowany wcześniej pakiet, z
+	 * powiadomieniem o jego faktycznym wysłaniu.
+	 *
+	 * @param image obraz pakietu do wysłania
+	 * @param receiver odbiorca (<code>null</code>, jeżeli broadcast)
+	 * @param renumber czy nadać pakietowi nowy numer
+	 * @param lane pas (priorytet), którym ma być wysłany pakiet
+	 * @param listener słuchacz powiadamiany o wysłaniu (lub
+	 * <code>null</code>)
+	 * @throws ConnectionLostException jeżeli nie nawiązano połączenia
+	 */
+	protected void sendPacket(IpmsgPacketImage image, IpmsgContact receiver,
+		boolean renumber, IpmsgSendThread.Lane lane,
+		IpmsgSendThread.SendListener listener) throws ConnectionLostException
+	{
+		if (image == null || lane == null)
+			throw new NullPointerException();
+		if (!isConnected())
+			throw new ConnectionLostException();
+
+		sendThread.enqueue(lane, image, renumber,
+			(receiver == null) ? null : receiver.socketAddress, listener);
+	}
+
+	/**
+	 * Koder używany do tworzenia obrazów pakietów.
+	 */
+	private final IpmsgPacketCodec imagesCodec = new IpmsgPacketCodec();
+
+	/**
+	 * Serializuje pakiet do niezmiennego obrazu, który można wysyłać
+	 * wielokrotnie.
+	 *
+	 * @param packet pakiet do zserializowania
+	 * @return obraz pakietu
+	 */
+	protected IpmsgPacketImage createPacketImage(IpmsgPacket packet)
+	{
+		synchronized (imagesCodec)
+		{
+			return new IpmsgPacketImage(packet, imagesCodec);
 		}
 	}
 
 	/**
-	 * Obsługa przychodzących pakietów. Wywoływane z wątku połączenia.
+	 * Pamięć podręczna adresów kontaktów.
+	 */
+	protected final IpmsgAddressCache addressCache = new IpmsgAddressCache();
+
+	/**
+	 * Etap obsługi odebranych pakietów.
+	 */
+	protected final IpmsgPacketDispatcher packetDispatcher =
+			new IpmsgPacketDispatcher(this);
+
+	/**
+	 * Obsługa przychodzących pakietów. Wywoływane z wątków roboczych
+	 * {@link IpmsgPacketDispatcher} - pakiety od jednego nadawcy są obsługiwane
+	 * po kolei, ale pakiety od różnych nadawców mogą być obsługiwane
+	 * równolegle.
 	 *
 	 * @param packet odebrany pakiet
 	 * @see IpmsgConnectionThread
+	 * @see IpmsgPacketDispatcher
 	 */
 	protected void handlePacket(IpmsgPacket packet)
 	{
 		if (packet == null)
 			throw new NullPointerException();
-		if (InterfaceInfoProvider.isLocalAdress(packet.ip) ||
+		if (InterfaceInfoProvider.isLocalAdress(packet.ipAddress) ||
 			userStatus == Contact.UserStatus.OFFLINE ||
 			packet.getCommand() == IpmsgPacket.COMM_NOOP)
 			return;
 		Main.logger.log(Level.FINER, "Odebrano pakiet: " + packet.toString());
 
-		Contact genContact = contactList.get(IpmsgContact.getID(packet.ip));
-		IpmsgContact contact = null;
-		if (genContact != null)
-			contact = (IpmsgContact)genContact;
+		IpmsgContact contact = getContact(packet.ipAddress);
 
 		if (packet.getCommand() == IpmsgPacket.COMM_EXIT)
 		{
@@ -248,48 +344,22 @@ public class IpmsgAccount extends Account
 		}
 
 		if (contact == null)
-			contact = getOrCreateContact(packet.ip);
-
-		if (contact.getName().isEmpty())
-			contact.setName(packet.userName);
+			contact = getOrCreateContact(packet.ipAddress);
 
 		if (packet.getCommand() == IpmsgPacket.COMM_ENTRY ||
 			packet.getCommand() == IpmsgPacket.COMM_ABSENCE ||
 			packet.getCommand() == IpmsgPacket.COMM_ANSENTRY)
-		{
-			if (packet.getFlag(IpmsgPacket.FLAG_ABSENCE))
-				contact.setStatus(Contact.UserStatus.BUSY);
-			else
-				contact.setStatus(Contact.UserStatus.ONLINE);
-			String[] dataSplit = packet.data.split("\0", 10);
-			if (dataSplit.length == 1)
-				contact.setName(dataSplit[0]);
-			else if (dataSplit.length == 2 || dataSplit.length == 3)
-			{
-				String nick = dataSplit[0].trim();
-				int statusStart = nick.lastIndexOf('[');
-				if (!nick.isEmpty() &&
-					nick.charAt(nick.length() - 1) == ']' &&
-					statusStart > 0)
-				{
-					contact.setTextStatus(nick.substring(statusStart + 1, nick.length() - 1));
-					nick = nick.substring(0, statusStart).trim();
-				}
-				else
-					contact.setTextStatus("");
-				if (!nick.isEmpty())
-					contact.setName(nick);
+			updatePresence(contact, packet); // jedno powiadomienie obserwatorów
+		else if (contact.getName().isEmpty())
+			contact.setName(packet.userName);
 
-				contact.setGroup(dataSplit[1]);
-			}
-			else if (dataSplit.length > 3)
-				Main.logger.log(Level.WARNING, "dataSplit.length > 3");
-		}
+		contactsThread.contactSeen(contact);
 
 		switch (packet.getCommand())
 		{
 			case IpmsgPacket.COMM_ANSENTRY:
-				contactsThread.confirmContact(contact);
+				if (packet.getFlag(IpmsgPacket.FLAG_UNICASTENTRY))
+					contactsThread.probeAnswered(contact);
 				break;
 			case IpmsgPacket.COMM_ABSENCE:
 				break;
@@ -298,7 +368,13 @@ public class IpmsgAccount extends Account
 				// pakiety ignorowane
 				break;
 			case IpmsgPacket.COMM_ENTRY:
-				statusNotify(IpmsgPacket.COMM_ANSENTRY, packet.ip);
+				// losowe opóźnienie chroni tylko przed lawiną odpowiedzi na
+				// broadcast - zapytanie indywidualne czeka na szybką odpowiedź
+				if (packet.getFlag(IpmsgPacket.FLAG_UNICASTENTRY))
+					statusNotify(IpmsgPacket.COMM_ANSENTRY, contact,
+						IpmsgPacket.FLAG_UNICASTENTRY, null);
+				else
+					entryReplyThread.scheduleReply(contact);
 				break;
 			case IpmsgPacket.COMM_SENDMSG:
 				gotMessage(packet);
@@ -310,10 +386,23 @@ public class IpmsgAccount extends Account
 				}
 				catch (NumberFormatException e) { }
 				break;
+			case IpmsgPacket.COMM_BR_ISGETLIST:
+			case IpmsgPacket.COMM_BR_ISGETLIST2:
+				hostList.gotListServerQuery(contact);
+				break;
+			case IpmsgPacket.COMM_OKGETLIST:
+				hostList.gotListServerOffer(contact);
+				break;
+			case IpmsgPacket.COMM_GETLIST:
+				hostList.gotListRequest(contact, packet.data);
+				break;
+			case IpmsgPacket.COMM_ANSLIST:
+				hostList.gotList(contact, packet.data);
+				break;
 			case IpmsgPacket.COMM_RELEASEFILES:
 				try
 				{
-					cancelFiles(packet.ip, Long.parseLong(packet.data));
+					cancelFiles(packet.ipAddress, Long.parseLong(packet.data));
 				}
 				catch (NumberFormatException ex) { }
 				break;
@@ -322,6 +411,198 @@ public class IpmsgAccount extends Account
 		}
 	}
 
+	/**
+	 * Pula powtarzających się napisów z powiadomień o obecności (nazwy
+	 * grup, użytkowników, statusy opisowe).
+	 */
+	private final StringPool stringPool = new StringPool(4096);
+
+	/**
+	 * Aktualizuje status i dane kontaktu na podstawie powiadomienia
+	 * o obecności (COMM_ENTRY, COMM_ABSENCE, COMM_ANSENTRY) lub wpisu listy
+	 * kontaktów.
+	 *
+	 * @param contact kontakt do zaktualizowania
+	 * @param packet powiadomienie o obecności
+	 */
+	private void updatePresence(IpmsgContact contact, IpmsgPacket packet)
+	{
+		updatePresence(contact, packet, false);
+	}
+
+	/**
+	 * Aktualizuje status i dane kontaktu na podstawie powiadomienia
+	 * o obecności - opcjonalnie tylko wtedy, gdy kontakt jest niedostępny
+	 * (sprawdzenie jest atomowe ze zmianą statusu).
+	 *
+	 * @param contact kontakt do zaktualizowania
+	 * @param packet powiadomienie o obecności
+	 * @param onlyIfOffline czy zmienić tylko niedostępny kontakt
+	 * @return <code>true</code>, jeżeli kontakt został zaktualizowany
+	 */
+	private boolean updatePresence(IpmsgContact contact, IpmsgPacket packet,
+		boolean onlyIfOffline)
+	{
+		if (!onlyIfOffline)
+			updatePresenceFlags(contact, packet);
+
+		Contact.UserStatus status = packet.getFlag(IpmsgPacket.FLAG_ABSENCE) ?
+			Contact.UserStatus.BUSY : Contact.UserStatus.ONLINE;
+		String name = null, textStatus = null, group = null;
+		String[] dataSplit = packet.data.split("\0", 10);
+		if (dataSplit.length == 1)
+			name = dataSplit[0];
+		else if (dataSplit.length == 2 || dataSplit.length == 3)
+		{
+			String nick = dataSplit[0].trim();
+			int statusStart = nick.lastIndexOf('[');
+			if (!nick.isEmpty() &&
+				nick.charAt(nick.length() - 1) == ']' &&
+				statusStart > 0)
+			{
+				textStatus = stringPool.get(
+					nick.substring(statusStart + 1, nick.length() - 1).trim());
+				nick = nick.substring(0, statusStart).trim();
+			}
+			else
+				textStatus = "";
+			if (!nick.isEmpty())
+				name = nick;
+
+			group = stringPool.get(dataSplit[1].trim());
+		}
+		else if (dataSplit.length > 3)
+			Main.logger.log(Level.WARNING, "dataSplit.length > 3");
+
+		if ((name == null || name.trim().isEmpty()) && contact.getName().isEmpty())
+			name = packet.userName;
+
+		if (onlyIfOffline)
+		{
+			if (!contact.updateIfOffline(status, name, textStatus, group))
+				return false;
+			updatePresenceFlags(contact, packet);
+			presenceUpdatesCount.incrementAndGet();
+			presenceChangesCount.incrementAndGet();
+			return true;
+		}
+		presenceUpdatesCount.incrementAndGet();
+		if (contact.update(status, name, textStatus, group))
+			presenceChangesCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Przepisuje do kontaktu dane z powiadomienia o obecności, które nie są
+	 * obserwowane (flagi, nazwy użytkownika i hosta).
+	 *
+	 * @param contact kontakt do zaktualizowania
+	 * @param packet powiadomienie o obecności
+	 */
+	private void updatePresenceFlags(IpmsgContact contact, IpmsgPacket packet)
+	{
+		contact.multicastMember =
+			packet.getFlag(IpmsgPacket.FLAG_MULTICASTGROUP);
+		contact.listServer = packet.getFlag(IpmsgPacket.FLAG_SERVER);
+		contact.userName = stringPool.get(packet.userName);
+		contact.hostName = packet.hostName;
+	}
+
+	/**
+	 * Ilość przetworzonych powiadomień o obecności.
+	 */
+	private final AtomicLong presenceUpdatesCount = new AtomicLong();
+
+	/**
+	 * Ilość powiadomień o obecności, które zmieniły dane kontaktu (i tylko
+	 * wtedy powiadomiły obserwatorów).
+	 */
+	private final AtomicLong presenceChangesCount = new AtomicLong();
+
+	/**
+	 * Dodaje kontakt z listy pobranej od serwera wymiany listy. Kontakty,
+	 * które są już dostępne, nie są zmieniane - informacje od nich samych są
+	 * aktualniejsze.
+	 *
+	 * @param entry wpis listy, w postaci powiadomienia o obecności
+	 * @return <code>true</code>, jeżeli dodano kontakt
+	 * @see IpmsgHostList
+	 */
+	protected boolean gotListedContact(IpmsgPacket entry)
+	{
+		IpmsgContact contact = getOrCreateContact(entry.ipAddress);
+		if (!updatePresence(contact, entry, true))
+			return false;
+		contactsThread.contactListed(contact);
+		return true;
+	}
+
+	/**
+	 * Wymiana listy kontaktów.
+	 */
+	protected final IpmsgHostList hostList = new IpmsgHostList(this);
+
+	/**
+	 * Plik z ostatnio znanymi kontaktami.
+	 */
+	protected final IpmsgContactCache contactCache =
+			new IpmsgContactCache(Main.getAppDir() + "ipmsg_contacts.bin");
+
+	/**
+	 * Czy wczytano już zapisane kontakty (dopiero potem można nadpisać plik).
+	 */
+	private volatile boolean contactCacheLoaded = false;
+
+	/**
+	 * Wczytuje (tylko za pierwszym razem) zapisane kontakty i dodaje je do
+	 * listy jako niepotwierdzone. Zostaną sprawdzone zapytaniami wysłanymi
+	 * bezpośrednio do nich.
+	 */
+	private void loadContactCache()
+	{
+		if (contactCacheLoaded)
+			return;
+		contactCacheLoaded = true;
+		for (IpmsgContactCache.Entry entry : contactCache.load(addressCache))
+		{
+			if (InterfaceInfoProvider.isLocalAdress(entry.presence.ipAddress))
+				continue;
+			IpmsgContact contact = getOrCreateContact(entry.presence.ipAddress);
+			if (contact.getStatus() != Contact.UserStatus.OFFLINE)
+				continue;
+			contact.confirmed = false;
+			contact.setLastSeen(entry.lastSeen);
+			updatePresence(contact, entry.presence);
+			contactsThread.verifyContact(contact);
+		}
+	}
+
+	/**
+	 * Zapisuje dostępne kontakty do pliku (jeżeli konto jest połączone).
+	 */
+	protected void saveContactCache()
+	{
+		saveContactCache(userStatus);
+	}
+
+	/**
+	 * Zapisuje dostępne kontakty do pliku.
+	 *
+	 * @param status status konta, z którym znane były bieżące statusy
+	 * kontaktów
+	 */
+	private void saveContactCache(Contact.UserStatus status)
+	{
+		if (!contactCacheLoaded || status == Contact.UserStatus.OFFLINE)
+			return;
+		contactCache.save(getOnlineContacts());
+	}
+
+	@Override public void beforeApplicationClose()
+	{
+		saveContactCache();
+	}
+
 	// </editor-fold>
 
 	// <editor-fold desc="Implementacja protokołu IPMsg">
@@ -332,54 +613,232 @@ public class IpmsgAccount extends Account
 
 	private IpmsgContactsThread contactsThread = new IpmsgContactsThread(this);
 
+	/**
+	 * Indeks kontaktów tego konta według adresu IPv4 (w postaci liczby).
+	 * Odpowiada zawartości listy kontaktów; synchronizacja na obiekcie
+	 * {@link #contactList}.
+	 */
+	private final IntHashMap<IpmsgContact> contactsByAddress =
+			new IntHashMap<IpmsgContact>();
+
+	/**
+	 * Pobiera kontakt powiązany z podanym adresem IP.
+	 *
+	 * @param address adres IPv4 w postaci liczby
+	 * @return powiązany kontakt, lub <code>null</code>, jeżeli nie istnieje
+	 */
+	protected IpmsgContact getContact(int address)
+	{
+		synchronized (contactList)
+		{
+			IpmsgContact contact = contactsByAddress.get(address);
+			if (contact != null)
+				contact.lastUsed = System.currentTimeMillis();
+			return contact;
+		}
+	}
+
 	/**
 	 * Pobiera kontakt powiązany z podanym adresem IP. Jeżeli nie istnieje -
 	 * tworzy nowy.
 	 *
-	 * @param ip adres IP
+	 * @param address adres IPv4 w postaci liczby
 	 * @return powiązany kontakt
 	 */
-	protected IpmsgContact getOrCreateContact(String ip)
+	protected IpmsgContact getOrCreateContact(int address)
 	{
 		synchronized (contactList)
 		{
-			Contact genContact = contactList.get(IpmsgContact.getID(ip));
-			IpmsgContact contact;
-			if (genContact == null)
+			IpmsgContact contact = contactsByAddress.get(address);
+			if (contact == null)
 			{
-				contact = new IpmsgContact(this, ip);
+				contact = new IpmsgContact(this, addressCache.get(address));
+				contactsByAddress.put(address, contact);
 				contactList.add(contact);
 			}
 			else
+				contact.lastUsed = System.currentTimeMillis();
+			return contact;
+		}
+	}
+
+	/**
+	 * Ilość kontaktów usuniętych z listy jako nieużywane.
+	 */
+	private long evictedCount = 0;
+
+	/**
+	 * Usuwa z listy kontakty niedostępne i nieużywane dłużej niż podany
+	 * czas - o ile nie mają otwartego pokoju prywatnego, ani plików do
+	 * przesłania. Jeżeli taki kontakt się odezwie, zostanie utworzony
+	 * ponownie.
+	 *
+	 * Kontakt pobrany z indeksu jest oznaczany jako używany (w ramach tej
+	 * samej synchronizacji), więc nie zostanie usunięty w trakcie obsługi
+	 * odebranego od niego pakietu.
+	 *
+	 * @param maxIdle czas, po którym nieużywany kontakt jest usuwany, w ms
+	 * @return ilość usuniętych kontaktów
+	 */
+	protected int evictStaleContacts(long maxIdle)
+	{
+		HashSet<IpmsgContact> withFiles = new HashSet<IpmsgContact>();
+		synchronized (transferredFiles)
+		{
+			for (IpmsgTransferredFile file : transferredFiles)
+				withFiles.add(file.getContact());
+		}
+
+		int evicted = 0;
+		synchronized (contactList)
+		{
+			long now = System.currentTimeMillis();
+			for (IpmsgContact contact : contactsByAddress.values())
 			{
-				assert(genContact instanceof IpmsgContact);
-				contact = (IpmsgContact)genContact;
+				if (contact.getStatus() != Contact.UserStatus.OFFLINE ||
+					now - contact.lastUsed < maxIdle ||
+					now - contact.getLastSeen() < maxIdle ||
+					withFiles.contains(contact) ||
+					contact.hasPrivateChatRoom())
+					continue;
+				contactsByAddress.remove(contact.getAddress());
+				contactList.remove(contact);
+				evicted++;
 			}
-			return contact;
+			evictedCount += evicted;
 		}
+		return evicted;
+	}
+
+	/**
+	 * Wątek odpowiadający na ogłoszenia o dostępności.
+	 */
+	private final IpmsgEntryReplyThread entryReplyThread =
+			new IpmsgEntryReplyThread(this);
+
+	/**
+	 * Indeks dostępnych kontaktów, aktualizowany przez same kontakty.
+	 */
+	final IpmsgOnlineContacts onlineContacts = new IpmsgOnlineContacts();
+
+	/**
+	 * Zwraca ilość kontaktów, które mają status inny niż OFFLINE.
+	 *
+	 * @return ilość dostępnych kontaktów
+	 */
+	protected int getOnlineContactsCount()
+	{
+		return onlineContacts.size();
 	}
 
 	/**
-	 * Zwraca listę kontaktów, które mają status inny niż OFFLINE. Zwrócony
-	 * wektor można modyfikować.
+	 * Zwraca ilość kontaktów z podanej grupy, które mają status inny niż
+	 * OFFLINE.
+	 *
+	 * @param group nazwa grupy
+	 * @return ilość dostępnych kontaktów w grupie
+	 */
+	public int getOnlineContactsCount(String group)
+	{
+		if (group == null)
+			throw new NullPointerException();
+		return onlineContacts.getGroupSize(group);
+	}
+
+	/**
+	 * Zwraca migawkę kontaktów, które mają status inny niż OFFLINE. Po
+	 * zwróconej liście można iterować bez synchronizacji, ale nie można
+	 * jej modyfikować.
 	 *
 	 * @return dostępne kontakty
 	 */
-	protected Vector<IpmsgContact> getOnlineContacts()
+	protected List<IpmsgContact> getOnlineContacts()
+	{
+		return onlineContacts.getSnapshot();
+	}
+
+	/**
+	 * Zwraca raport ze statystykami działania protokołu - do debugowania.
+	 *
+	 * @return tekstowy raport
+	 */
+	public String getStatistics()
 	{
-		Vector<IpmsgContact> online = new Vector<IpmsgContact>();
+		StringBuilder report = new StringBuilder();
+		packetDispatcher.appendStatistics(report);
+		sendThread.appendStatistics(report);
+		IpmsgConnectionThread connection = connectionThread;
+		if (connection != null)
+			connection.appendStatistics(report);
+		contactsThread.appendStatistics(report);
+		entryReplyThread.appendStatistics(report);
+		hostList.appendStatistics(report);
+		contactCache.appendStatistics(report);
+		postMessageThread.appendStatistics(report);
+
+		report.append("Czasy odpowiedzi kontaktów\n");
 		synchronized (contactList)
 		{
-			for (Contact contact : contactList)
+			for (IpmsgContact contact : contactsByAddress.values())
 			{
-				if (!(contact instanceof IpmsgContact))
-					continue;
-				if (contact.getStatus() == Contact.UserStatus.OFFLINE)
+				if (contact.rtt.getSamplesCount() == 0)
 					continue;
-				online.add((IpmsgContact)contact);
+				report.append("  ").append(contact.getName()).
+					append(" (").append(contact.getIP()).append("): ");
+				contact.rtt.appendStatistics(report);
 			}
 		}
-		return online;
+		report.append("Powiadomienia o obecności\n");
+		report.append("  przetworzone: ").append(presenceUpdatesCount.get()).
+			append(", ze zmianą danych kontaktu: ").
+			append(presenceChangesCount.get()).append('\n');
+		appendFootprint(report);
+		report.append("Filtr powtórzeń\n");
+		report.append("  pamiętane pakiety: ").append(duplicateFilter.size()).append('\n');
+		report.append("  odrzucone powtórzenia: ").
+			append(duplicateFilter.getDuplicatesCount()).append('\n');
+		report.append("  wymuszone obroty koła: ").
+			append(duplicateFilter.getForcedRotationsCount()).append('\n');
+		return report.toString();
+	}
+
+	/**
+	 * Dopisuje do raportu zajętość pamięci - rozmiary list i indeksów konta
+	 * oraz sterty JVM (do sprawdzania, czy nie rośnie przy długim działaniu).
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	private void appendFootprint(StringBuilder report)
+	{
+		int contacts, rooms = 0;
+		long evicted;
+		synchronized (contactList)
+		{
+			contacts = contactsByAddress.size();
+			for (IpmsgContact contact : contactsByAddress.values())
+				if (contact.hasPrivateChatRoom())
+					rooms++;
+			evicted = evictedCount;
+		}
+		int online = onlineContacts.size();
+
+		report.append("Pamięć\n");
+		report.append("  kontakty: ").append(contacts).
+			append(" (dostępne: ").append(online).
+			append(", niedostępne: ").append(contacts - online).
+			append(", z pokojem prywatnym: ").append(rooms).append(")\n");
+		report.append("  usunięte nieużywane kontakty: ").append(evicted).append('\n');
+		onlineContacts.appendStatistics(report);
+		report.append("  pokoje: ").append(chatRoomList.getSize()).
+			append(", przesyłane pliki: ").append(transferredFiles.size()).append('\n');
+		report.append("  zapamiętane adresy: ").append(addressCache.size()).append('\n');
+		stringPool.appendStatistics(report);
+		Runtime runtime = Runtime.getRuntime();
+		long total = runtime.totalMemory();
+		report.append("  sterta JVM: ").
+			append((total - runtime.freeMemory()) / 1024).append(" KiB zajęte / ").
+			append(total / 1024).append(" KiB przydzielone / ").
+			append(runtime.maxMemory() / 1024).append(" KiB maks.\n");
 	}
 
 	/**
@@ -429,20 +888,19 @@ public class IpmsgAccount extends Account
 			throw new NullPointerException();
 		Contact.UserStatus oldStatus = this.userStatus;
 		this.userStatus = status;
+		if (oldStatus != status)
+			invalidateStatusImages();
 
 		if (status == Contact.UserStatus.OFFLINE)
 		{
 			if (isConnected())
 			{
+				saveContactCache(oldStatus);
 				statusNotify(IpmsgPacket.COMM_EXIT);
 				setConnected(false);
 
-				synchronized (contactList)
-				{
-					for (Contact contact : contactList)
-						if (contact instanceof IpmsgContact)
-							((IpmsgContact)contact).setStatus(IpmsgContact.UserStatus.OFFLINE);
-				}
+				for (IpmsgContact contact : getOnlineContacts())
+					contact.setStatus(IpmsgContact.UserStatus.OFFLINE);
 			}
 
 			notifyObservers();
@@ -454,7 +912,11 @@ public class IpmsgAccount extends Account
 		if (oldStatus == Contact.UserStatus.OFFLINE)
 		{
 			if (isConnected())
+			{
+				loadContactCache();
 				statusNotify(IpmsgPacket.COMM_ENTRY);
+				hostList.requestList();
+			}
 			else
 				this.userStatus = Contact.UserStatus.OFFLINE;
 		}
@@ -490,6 +952,7 @@ public class IpmsgAccount extends Account
 		if (textStatus.equals(this.textStatus))
 			return;
 		this.textStatus = textStatus;
+		invalidateStatusImages();
 		if (isConnected())
 			statusNotify(IpmsgPacket.COMM_ABSENCE);
 	}
@@ -499,7 +962,7 @@ public class IpmsgAccount extends Account
 	 *
 	 * @param command rodzaj polecenia powiadamiającego (COMM_ENTRY,
 	 * COMM_ABSENCE, COMM_ANSENTRY lub COMM_EXIT)
-	 * @see #statusNotify(int, String)
+	 * @see #statusNotify(int, IpmsgContact)
 	 */
 	protected void statusNotify(int command)
 	{
@@ -511,9 +974,30 @@ public class IpmsgAccount extends Account
 	 * 
 	 * @param command rodzaj polecenia powiadamiającego (COMM_ENTRY,
 	 * COMM_ABSENCE, COMM_ANSENTRY lub COMM_EXIT)
-	 * @param ip IP osoby powiadamianej (<code>null</code>, jeżeli broadcast)
+	 * @param contact osoba powiadamiana (<code>null</code>, jeżeli broadcast)
 	 */
-	protected void statusNotify(int command, String ip)
+	protected void statusNotify(int command, IpmsgContact contact)
+	{
+		// indywidualne COMM_ENTRY to zapytanie o dostępność
+		long extraFlags = (command == IpmsgPacket.COMM_ENTRY && contact != null) ?
+			IpmsgPacket.FLAG_UNICASTENTRY : 0;
+		statusNotify(command, contact, extraFlags, null);
+	}
+
+	/**
+	 * Powiadamia wybraną osobę o statusie konta, pakietem z dodatkowymi
+	 * flagami.
+	 *
+	 * @param command rodzaj polecenia powiadamiającego (COMM_ENTRY,
+	 * COMM_ABSENCE, COMM_ANSENTRY lub COMM_EXIT)
+	 * @param contact osoba powiadamiana (<code>null</code>, jeżeli broadcast)
+	 * @param extraFlags dodatkowe flagi pakietu (np.
+	 * {@link IpmsgPacket#FLAG_UNICASTENTRY})
+	 * @param listener słuchacz powiadamiany o wysłaniu pakietu (lub
+	 * <code>null</code>)
+	 */
+	protected void statusNotify(int command, IpmsgContact contact,
+		long extraFlags, IpmsgSendThread.SendListener listener)
 	{
 		if (command != IpmsgPacket.COMM_ENTRY &&
 			command != IpmsgPacket.COMM_ABSENCE &&
@@ -521,28 +1005,85 @@ public class IpmsgAccount extends Account
 			command != IpmsgPacket.COMM_EXIT)
 			throw new IllegalArgumentException();
 
-		String userName = Configuration.getInstance().getNick();
+		IpmsgSendThread.Lane lane =
+			(command == IpmsgPacket.COMM_ANSENTRY || command == IpmsgPacket.COMM_EXIT) ?
+			IpmsgSendThread.Lane.CONTROL : IpmsgSendThread.Lane.PRESENCE;
+		try
+		{
+			sendPacket(getStatusImage(command, extraFlags), contact, true, lane,
+				listener);
+		}
+		catch (ConnectionLostException e)
+		{
+		}
+	}
 
-		IpmsgPacket packet = new IpmsgPacket(userName);
-		packet.ip = ip;
-		packet.setCommand(command);
-		packet.setFlag(IpmsgPacket.FLAG_FILEATTACH, true);
+	/**
+	 * Zserializowane pakiety powiadomień o statusie. Klucz: identyfikator
+	 * polecenia wraz z dodatkowymi flagami. Unieważniane przy zmianie nicka,
+	 * statusu lub statusu opisowego.
+	 */
+	private final HashMap<Long, IpmsgPacketImage> statusImages =
+			new HashMap<Long, IpmsgPacketImage>();
 
-		if (this.userStatus == Contact.UserStatus.ONLINE)
-			packet.setFlag(IpmsgPacket.FLAG_ABSENCE, false);
-		else // IContact.UserStatus.BUSY
-			packet.setFlag(IpmsgPacket.FLAG_ABSENCE, true);
 
-		if (textStatus.isEmpty())
-			packet.data = userName + '\0' + groupName;
-		else
-			packet.data = userName + '[' + textStatus + ']' + '\0' + groupName;
-		try
+	/**
+	 * Unieważnia zserializowane pakiety powiadomień o statusie.
+	 */
+	protected void invalidateStatusImages()
+	{
+		synchronized (statusImages)
 		{
-			sendPacket(packet);
+			statusImages.clear();
 		}
-		catch (ConnectionLostException e)
+	}
+
+	/**
+	 * Pobiera zserializowany pakiet powiadomienia o statusie konta. Jeżeli
+	 * nie jest dostępny (lub jest nieaktualny) - tworzy go.
+	 *
+	 * @param command rodzaj polecenia powiadamiającego
+	 * @param extraFlags dodatkowe flagi pakietu (np.
+	 * {@link IpmsgPacket#FLAG_UNICASTENTRY})
+	 * @return obraz pakietu
+	 */
+	private IpmsgPacketImage getStatusImage(int command, long extraFlags)
+	{
+		Long key = command | extraFlags;
+		String userName = Configuration.getInstance().getNick();
+		String hostName = NameService.getLocalHostName();
+
+		synchronized (statusImages)
 		{
+			IpmsgPacketImage image = statusImages.get(key);
+			if (image != null &&
+				image.userName.equals(userName) &&
+				image.hostName.equals(hostName))
+				return image;
+
+			IpmsgPacket packet = new IpmsgPacket(userName);
+			packet.setCommand(command);
+			if (extraFlags != 0)
+				packet.setFlag(extraFlags, true);
+			packet.setFlag(IpmsgPacket.FLAG_FILEATTACH, true);
+			packet.setFlag(IpmsgPacket.FLAG_SERVER, true);
+			IpmsgConnectionThread connection = connectionThread;
+			packet.setFlag(IpmsgPacket.FLAG_MULTICASTGROUP,
+				connection != null && connection.isMulticastActive());
+
+			if (this.userStatus == Contact.UserStatus.ONLINE)
+				packet.setFlag(IpmsgPacket.FLAG_ABSENCE, false);
+			else // IContact.UserStatus.BUSY
+				packet.setFlag(IpmsgPacket.FLAG_ABSENCE, true);
+
+			if (textStatus.isEmpty())
+				packet.data = userName + '\0' + groupName;
+			else
+				packet.data = userName + '[' + textStatus + ']' + '\0' + groupName;
+
+			image = createPacketImage(packet);
+			statusImages.put(key, image);
+			return image;
 		}
 	}
 
@@ -551,21 +1092,58 @@ public class IpmsgAccount extends Account
 		// <editor-fold defaultstate="collapsed" desc="Odbieranie wiadomośći">
 
 	/**
-	 * Potwierdzone pakiety - kluczem jest <code>[id pakietu]/[id usera]</code>,
-	 * wartością czas potwierdzenia (unix timestamp). Jeżeli minął
-	 * confirmedMessagesTimeout, potwierdzenie jest nieaktualne (powinno być
-	 * zignorowane, może być usunięte).
+	 * Czas, przez jaki pamiętane są odebrane pakiety. W tym czasie pakiet
+	 * o tym samym numerze, od tego samego nadawcy, zostanie uznany za
+	 * powtórzenie i zignorowany.
+	 */
+	protected static final int duplicatePacketsTimeout = 300000; //5 minut
+
+	/**
+	 * Filtr powtórzonych pakietów (np. ponownie wysłanych wiadomości, albo
+	 * pakietów nadanych na kilku interfejsach). Używany tylko w wątku
+	 * połączenia.
+	 */
+	protected final IpmsgDuplicateFilter duplicateFilter =
+			new IpmsgDuplicateFilter(duplicatePacketsTimeout);
+
+	/**
+	 * Obsługa pakietu odrzuconego jako powtórzenie. Wywoływane z wątku
+	 * połączenia - nie może blokować.
 	 *
-	 * @todo czyszczenie, co jakiś czas
+	 * @param packet powtórzony pakiet
 	 */
-	protected final HashMap<String, Long> confirmedMessages =
-			new HashMap<String, Long>();
+	protected void gotDuplicatePacket(IpmsgPacket packet)
+	{
+		// np. własny broadcast, który wrócił przez pętlę zwrotną
+		if (InterfaceInfoProvider.isLocalAdress(packet.ipAddress))
+			return;
+		// potwierdzamy wszystkie, bo może poprzednie potwierdzenie nie doszło
+		if (packet.getCommand() == IpmsgPacket.COMM_SENDMSG &&
+			packet.getFlag(IpmsgPacket.FLAG_SENDCHECK))
+			confirmMessage(packet);
+	}
 
 	/**
-	 * Czas, po którym potwierdzenia pakietów tracą ważność. Po tym czasie
-	 * pakiet o tym samym identyfikatorze zostanie znowu przyjęty.
+	 * Wysyła potwierdzenie odbioru wiadomości.
+	 *
+	 * @param packet odebrany pakiet z wiadomością
 	 */
-	protected static final int confirmedMessagesTimeout = 300000; //5 minut
+	private void confirmMessage(IpmsgPacket packet)
+	{
+		IpmsgPacket confirmPacket =
+			new IpmsgPacket(Configuration.getInstance().getNick());
+		confirmPacket.ip = packet.ip;
+		confirmPacket.ipAddress = packet.ipAddress;
+		confirmPacket.setCommand(IpmsgPacket.COMM_RECVMSG);
+		confirmPacket.data = Long.toString(packet.packetNo);
+		try
+		{
+			sendPacket(confirmPacket);
+		}
+		catch (ConnectionLostException e)
+		{
+		}
+	}
 
 	/**
 	 * Obsługa odbieranych wiadomości.
@@ -579,43 +1157,16 @@ public class IpmsgAccount extends Account
 				packet.getFlag(IpmsgPacket.FLAG_MULTICAST) ||
 				packet.getFlag(IpmsgPacket.FLAG_MULTICAST_NEW) ||
 				packet.getFlag(IpmsgPacket.FLAG_BROADCAST);
-		String userName = Configuration.getInstance().getNick();
 
 		if (sendCheck)
-		{
-			// potwierdzamy wszystkie, bo może jakiś nie doszedł
-			IpmsgPacket confirmPacket = new IpmsgPacket(userName);
-			confirmPacket.ip = packet.ip;
-			confirmPacket.setCommand(IpmsgPacket.COMM_RECVMSG);
-			confirmPacket.data = Long.toString(packet.packetNo);
-			try
-			{
-				sendPacket(confirmPacket);
-			}
-			catch (ConnectionLostException e)
-			{
-			}
-
-			synchronized (confirmedMessages)
-			{
-				String messageID = packet.packetNo + "/" + IpmsgContact.getID(packet.ip);
-				long now = (new Date()).getTime();
-				
-				// już odebrano
-				if (confirmedMessages.containsKey(messageID) &&
-					confirmedMessages.get(messageID) + confirmedMessagesTimeout >= now)
-					return;
-				
-				confirmedMessages.put(messageID, now);
-			}
-		}
+			confirmMessage(packet);
 
 		//ignorujemy wiadomość odsyłaną automatycznie
 		if (Configuration.getInstance().getIgnoreAutoResponses() &&
 			packet.getFlag(IpmsgPacket.FLAG_AUTORET))
 			return;
 
-		IpmsgContact contact = (IpmsgContact)contactList.get(packet.ip + "@ipmsg");
+		IpmsgContact contact = getContact(packet.ipAddress);
 		String authorName;
 		if (contact == null)
 			authorName = "Nieznajomy (" + packet.ip + ")";
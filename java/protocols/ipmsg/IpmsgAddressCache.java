@@ -0,0 +1,219 @@
+package protocols.ipmsg;
+
+import java.net.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.InterfaceInfoProvider;
+import tools.IntHashMap;
+
+/**
+ * Pamięć podręczna adresów IPv4 używanych w protokole. Dla każdego adresu
+ * (w postaci liczby) przechowuje raz zbudowaną postać tekstową i adres
+ * gniazda - dzięki temu odbiór i wysyłanie pakietów nie tworzą nowych
+ * obiektów i napisów dla każdego pakietu.
+ *
+ * Adresy IPv6 (odbierane przez grupę multicast IPv6 link-local) dostają
+ * zastępcze numery z zakresu 0.0.0.0/8 - taki adres IPv4 nigdy nie jest
+ * adresem nadawcy pakietu, więc nie koliduje z prawdziwymi adresami.
+ * Numer zastępczy jest stały, dopóki adres jest pamiętany - adresy IPv6 nie
+ * są czyszczone razem z adresami IPv4, tylko mają własny limit.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+class IpmsgAddressCache
+{
+	/**
+	 * Maksymalna ilość pamiętanych adresów. Po jej przekroczeniu adresy IPv4
+	 * są czyszczone (np. przy zalewie pakietów z fałszywych adresów).
+	 */
+	protected final static int maxEntries = 65536;
+
+	/**
+	 * Maksymalna ilość pamiętanych adresów IPv6. Po jej przekroczeniu
+	 * zapominany jest najdawniej używany adres.
+	 */
+	protected final static int maxIPv6Entries = 4096;
+
+	/**
+	 * Górna granica (wyłącznie) zakresu numerów zastępczych adresów IPv6.
+	 */
+	protected final static int ipv6AddressesEnd = 0x01000000;
+
+	private final IntHashMap<Entry> entries = new IntHashMap<Entry>(256);
+
+	/**
+	 * Wpisy adresów IPv6, według adresu, od najdawniej używanego.
+	 */
+	private final LinkedHashMap<Inet6Address, Entry> ipv6Entries =
+		new LinkedHashMap<Inet6Address, Entry>(16, 0.75f, true)
+		{
+			@Override protected boolean removeEldestEntry(
+				Map.Entry<Inet6Address, Entry> eldest)
+			{
+				if (size() <= maxIPv6Entries)
+					return false;
+				entries.remove(eldest.getValue().address);
+				return true;
+			}
+		};
+
+	/**
+	 * Następny wolny numer zastępczy adresu IPv6.
+	 */
+	private int nextIPv6Address = 1;
+
+	/**
+	 * Adres IPv4 (lub IPv6 z numerem zastępczym), w kilku postaciach.
+	 */
+	static class Entry
+	{
+		/**
+		 * Adres w postaci liczby.
+		 */
+		public final int address;
+
+		/**
+		 * Adres w postaci <code>xxx.xxx.xxx.xxx</code> (lub tekstowa postać
+		 * adresu IPv6).
+		 */
+		public final String ip;
+
+		/**
+		 * Adres gniazda protokołu (UDP i TCP) pod tym adresem.
+		 */
+		public final InetSocketAddress socketAddress;
+
+		public Entry(int address)
+		{
+			this.address = address;
+			this.ip = toString(address);
+			InetAddress inetAddress;
+			try
+			{
+				inetAddress = InetAddress.getByAddress(new byte[] {
+					(byte)(address >>> 24), (byte)(address >>> 16),
+					(byte)(address >>> 8), (byte)address });
+			}
+			catch (UnknownHostException e)
+			{
+				throw new AssertionError(e); // tablica ma zawsze 4 bajty
+			}
+			this.socketAddress = new InetSocketAddress(inetAddress,
+				IpmsgConnectionThread.port);
+		}
+
+		public Entry(int address, Inet6Address inetAddress)
+		{
+			this.address = address;
+			this.ip = inetAddress.getHostAddress();
+			this.socketAddress = new InetSocketAddress(inetAddress,
+				IpmsgConnectionThread.port);
+		}
+
+		private static String toString(int address)
+		{
+			StringBuilder sb = new StringBuilder(15);
+			sb.append(address >>> 24).append('.');
+			sb.append((address >>> 16) & 0xFF).append('.');
+			sb.append((address >>> 8) & 0xFF).append('.');
+			sb.append(address & 0xFF);
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Pobiera (lub tworzy) wpis dla podanego adresu.
+	 *
+	 * @param address adres IPv4 w postaci liczby
+	 * @return wpis adresu
+	 */
+	public synchronized Entry get(int address)
+	{
+		Entry entry = entries.get(address);
+		if (entry != null)
+			return entry;
+		if (entries.size() >= maxEntries)
+			clear();
+		entry = new Entry(address);
+		entries.put(address, entry);
+		return entry;
+	}
+
+	/**
+	 * Pobiera (lub tworzy) wpis dla podanego adresu IPv4 lub IPv6.
+	 *
+	 * @param address adres
+	 * @return wpis adresu
+	 */
+	public synchronized Entry get(InetAddress address)
+	{
+		if (address instanceof Inet4Address)
+			return get(InterfaceInfoProvider.toInt((Inet4Address)address));
+		if (!(address instanceof Inet6Address))
+			throw new IllegalArgumentException("Nieobsługiwany typ adresu");
+
+		Entry entry = ipv6Entries.get((Inet6Address)address);
+		if (entry != null)
+			return entry;
+		if (entries.size() >= maxEntries)
+			clear();
+		entry = new Entry(nextIPv6Address(), (Inet6Address)address);
+		entries.put(entry.address, entry);
+		ipv6Entries.put((Inet6Address)address, entry);
+		return entry;
+	}
+
+	/**
+	 * Zwraca ilość zapamiętanych adresów.
+	 *
+	 * @return ilość wpisów
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Przydziela numer zastępczy adresu IPv6. Numery nie są używane ponownie
+	 * do wyczerpania zakresu (aby nie pomylić nowego adresu z kontaktem
+	 * utworzonym dla zapomnianego), a potem pomijane są numery przydzielone
+	 * pamiętanym adresom.
+	 *
+	 * @return wolny numer zastępczy
+	 */
+	private int nextIPv6Address()
+	{
+		while (true)
+		{
+			if (nextIPv6Address >= ipv6AddressesEnd)
+				nextIPv6Address = 1;
+			int address = nextIPv6Address++;
+			if (!entries.containsKey(address))
+				return address;
+		}
+	}
+
+	/**
+	 * Czyści pamięć adresów IPv4. Adresy IPv6 są zachowywane (razem z ich
+	 * numerami zastępczymi), aby znane kontakty nie dostały nowych numerów.
+	 */
+	private void clear()
+	{
+		entries.clear();
+		for (Entry entry : ipv6Entries.values())
+			entries.put(entry.address, entry);
+	}
+
+	/**
+	 * Pobiera (lub tworzy) wpis dla adresu w postaci tekstowej.
+	 *
+	 * @param ip adres w postaci <code>xxx.xxx.xxx.xxx</code>
+	 * @return wpis adresu
+	 * @throws UnknownHostException jeżeli adres jest nieprawidłowy
+	 */
+	public Entry get(String ip) throws UnknownHostException
+	{
+		return get(InterfaceInfoProvider.parseIPv4(ip));
+	}
+}
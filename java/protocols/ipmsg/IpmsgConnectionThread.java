@@ -2,13 +2,30 @@ package protocols.ipmsg;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 
+import main.*;
+import net.InterfaceInfoProvider;
 import protocols.ConnectionLostException;
+import tools.ByteBufferPool;
+import tools.SwingEventQueue;
 
 /**
  * Wątek połączenia IPMsg. Dokładniej mówiąc, nie jest to połączenie, tylko
  * otwarcie portu UDP, do odbioru i wysyłania pakietów protokołu IPMsg.
  *
+ * Odbiór odbywa się przez selektor NIO, dzięki czemu jeden wątek może
+ * obsługiwać kilka gniazd, a zamknięcie połączenia budzi wątek natychmiast
+ * (bez oczekiwania na timeout gniazda).
+ *
+ * Jeżeli w konfiguracji włączono transport multicast, główne gniazdo dołącza
+ * do grupy multicast na każdym interfejsie (także IPv6 link-local - wtedy
+ * kontakty IPv6 dostają zastępcze adresy, patrz {@link IpmsgAddressCache}).
+ *
  * @author Tomasz Wasilczyk (www.wasilczyk.pl)
  */
 class IpmsgConnectionThread extends Thread
@@ -19,26 +36,57 @@ class IpmsgConnectionThread extends Thread
 	protected final IpmsgAccount ipmsgAccount;
 
 	/**
-	 * Gniazdo połączenia.
+	 * Główne gniazdo połączenia - na nim nasłuchujemy na porcie protokołu
+	 * i przez nie wysyłamy pakiety.
+	 */
+	protected DatagramChannel channel;
+
+	/**
+	 * Selektor obsługujący wszystkie gniazda odbiorcze.
 	 */
-	protected DatagramSocket sock;
+	protected Selector selector;
+
+	/**
+	 * Gniazda dodatkowe, oczekujące na zarejestrowanie w selektorze (musi to
+	 * nastąpić w wątku odbiorczym).
+	 */
+	private final Vector<DatagramChannel> pendingChannels =
+			new Vector<DatagramChannel>();
 
 	private final Object sockSendLocker = new Object();
 
 	/**
 	 * Czy połączono.
 	 */
-	public boolean isConnected = false;
+	public volatile boolean isConnected = false;
 
 	/**
 	 * Czy nie udało się połączyć.
 	 */
-	public boolean failedConnecting = false;
+	public volatile boolean failedConnecting = false;
+
+	/**
+	 * Maksymalny rozmiar odbieranego pakietu (maksymalny rozmiar datagramu
+	 * UDP).
+	 */
+	protected final static int maxPacketSize = 65536;
+
+	/**
+	 * Pula buforów dla odbieranych pakietów.
+	 */
+	protected final static ByteBufferPool bufferPool =
+			new ByteBufferPool(maxPacketSize, 4);
 
 	/**
-	 * Bufor dla odbieranych pakietów.
+	 * Dekoder odbieranych pakietów (używany tylko w wątku odbiorczym).
 	 */
-	protected final byte[] readBuff = new byte[102400];
+	protected final IpmsgPacketCodec codec = new IpmsgPacketCodec();
+
+	/**
+	 * Ile pakietów maksymalnie odczytać z jednego gniazda w jednym przebiegu
+	 * selektora - aby jedno zalewane gniazdo nie zagłodziło pozostałych.
+	 */
+	protected final static int maxPacketsPerSelect = 64;
 
 	/**
 	 * Port, na którym jest nasłuchiwanie, oraz na który są wysyłane pakiety
@@ -47,9 +95,105 @@ class IpmsgConnectionThread extends Thread
 	protected final static int port = 2425;
 
 	/**
-	 * Czas oczekiwania na aktywność gniazda, w milisekundach.
+	 * Przez ile routerów mogą przejść pakiety wysyłane do grupy multicast.
+	 */
+	protected final static int multicastTTL = 16;
+
+	/**
+	 * Maksymalna ilość pamiętanych par adresów (IPv4 i IPv6) tych samych
+	 * nadawców, oraz pakietów odebranych przez IPv6 (do odrzucania ich kopii
+	 * odebranych przez IPv4).
+	 */
+	protected final static int maxIPv6Hosts = 4096;
+
+	/**
+	 * Jak długo (w ms) pakiet odebrany przez IPv6 czeka na swoją kopię
+	 * odebraną przez IPv4.
+	 */
+	protected final static int dualPathWindow = 5000;
+
+	/**
+	 * Adres grupy multicast, lub <code>null</code>, jeżeli transport
+	 * multicast jest wyłączony.
+	 */
+	protected InetAddress multicastGroup;
+
+	/**
+	 * Czy przy aktywnej grupie multicast pomijać broadcast (tam, gdzie to
+	 * możliwe).
+	 *
+	 * @see Configuration#getMulticastOnly()
+	 */
+	protected volatile boolean multicastOnly;
+
+	/**
+	 * Członkostwa w grupie multicast, według interfejsu. Synchronizacja na
+	 * obiekcie mapy.
+	 */
+	private final HashMap<NetworkInterface, MembershipKey> memberships =
+			new HashMap<NetworkInterface, MembershipKey>();
+
+	/**
+	 * Adresy grupy multicast na interfejsach, do których dołączono.
+	 */
+	private volatile MulticastTarget[] multicastTargets = new MulticastTarget[0];
+
+	/**
+	 * Obserwator zmian interfejsów - dołącza do grupy na nowych interfejsach.
+	 */
+	private final Observer interfacesObserver = new Observer()
+	{
+		public void update(Observable o, Object arg)
+		{
+			if (isConnected)
+				joinMulticastGroup();
+		}
+	};
+
+	/**
+	 * Pakiet rozsyłany do wszystkich, odebrany przez IPv6.
 	 */
-	protected final static int socketTimeout = 1000;
+	private static class IPv6Copy
+	{
+		public final int address;
+		public final int command;
+		public final String userName;
+		public final String hostName;
+		public final long time;
+
+		public IPv6Copy(IpmsgPacket packet, long time)
+		{
+			this.address = packet.ipAddress;
+			this.command = packet.getCommand();
+			this.userName = packet.userName;
+			this.hostName = packet.hostName;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Ostatnie pakiety rozsyłane do wszystkich, odebrane przez IPv6, według
+	 * numeru pakietu. Używane tylko w wątku odbiorczym.
+	 */
+	private final LinkedHashMap<Long, IPv6Copy> ipv6Copies =
+			new LinkedHashMap<Long, IPv6Copy>()
+	{
+		@Override protected boolean removeEldestEntry(
+			Map.Entry<Long, IPv6Copy> eldest)
+		{
+			return size() > maxIPv6Hosts;
+		}
+	};
+
+	/**
+	 * Adresy IPv6 nadawców, według ich adresów IPv4 - pary ustalone na
+	 * podstawie pakietu odebranego obiema drogami. Używane tylko w wątku
+	 * odbiorczym.
+	 */
+	private final HashMap<Integer, Integer> ipv6Pairs =
+			new HashMap<Integer, Integer>();
+
+	private final AtomicLong dualPathDroppedCount = new AtomicLong();
 
 	/**
 	 * Główny konstruktor.
@@ -64,84 +208,504 @@ class IpmsgConnectionThread extends Thread
 		this.start();
 	}
 
+	/**
+	 * Adres grupy multicast na jednym interfejsie.
+	 */
+	static class MulticastTarget
+	{
+		public final NetworkInterface iface;
+
+		public final InetSocketAddress address;
+
+		public MulticastTarget(NetworkInterface iface, InetSocketAddress address)
+		{
+			this.iface = iface;
+			this.address = address;
+		}
+	}
+
 	@Override public void run()
 	{
+		SwingEventQueue.markNonBlockingThread();
+		multicastGroup = getConfiguredMulticastGroup();
+		multicastOnly = (multicastGroup != null) &&
+			Configuration.getInstance().getMulticastOnly();
 		try
 		{
-			sock = new DatagramSocket(port);
-			sock.setSoTimeout(socketTimeout);
+			selector = Selector.open();
+			if (multicastGroup instanceof Inet6Address)
+				channel = DatagramChannel.open(StandardProtocolFamily.INET6);
+			else
+				channel = DatagramChannel.open();
+			channel.socket().bind(new InetSocketAddress(port));
+			channel.socket().setBroadcast(true);
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ);
 		}
-		catch (SocketException e)
+		catch (IOException e)
 		{
+			closeAll();
 			failedConnecting = true;
 			return;
 		}
 
 		isConnected = true;
 
-		while (true)
+		if (multicastGroup != null)
 		{
-			if (isInterrupted())
-				break;
-
-			DatagramPacket packet = new DatagramPacket(readBuff, readBuff.length);
 			try
 			{
-				sock.receive(packet);
+				channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, false);
+				channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, multicastTTL);
+				joinMulticastGroup();
+				InterfaceInfoProvider.interfacesObserver.addObserver(interfacesObserver);
+			}
+			catch (IOException e)
+			{
+				Main.logger.log(Level.WARNING, "Nie udało się skonfigurować " +
+					"gniazda multicast", e);
+			}
+		}
+
+		ByteBuffer buff = bufferPool.acquire();
+		try
+		{
+			while (!isInterrupted())
+			{
+				selector.select();
 
-				if (isInterrupted())
+				if (isInterrupted() || !channel.isOpen())
 					break;
 
-				IpmsgPacket ipmsgPacket;
+				registerPendingChannels();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid() || !key.isReadable())
+						continue;
+
+					DatagramChannel keyChannel = (DatagramChannel)key.channel();
+					try
+					{
+						receiveFrom(keyChannel, buff);
+					}
+					catch (IOException e)
+					{
+						if (keyChannel == channel)
+							throw e;
+						// gniazdo dodatkowe - wyrejestrowujemy tylko je
+						key.cancel();
+						keyChannel.close();
+					}
+				}
+			}
+		}
+		catch (IOException e)
+		{
+		}
+		catch (ClosedSelectorException e)
+		{
+		}
+		finally
+		{
+			InterfaceInfoProvider.interfacesObserver.deleteObserver(interfacesObserver);
+			bufferPool.release(buff);
+			isConnected = false;
+			closeAll();
+		}
+	}
+
+	/**
+	 * Odczytuje z konfiguracji adres grupy multicast.
+	 *
+	 * @return adres grupy, lub <code>null</code>, jeżeli transport multicast
+	 * jest wyłączony (lub adres jest nieprawidłowy)
+	 */
+	private static InetAddress getConfiguredMulticastGroup()
+	{
+		Configuration conf = Configuration.getInstance();
+		if (!conf.getMulticastEnabled())
+			return null;
+		try
+		{
+			InetAddress group = InetAddress.getByName(conf.getMulticastGroup());
+			if (group.isMulticastAddress())
+				return group;
+		}
+		catch (UnknownHostException e)
+		{
+		}
+		Main.logger.log(Level.WARNING, "Nieprawidłowy adres grupy multicast: " +
+			conf.getMulticastGroup());
+		return null;
+	}
+
+	/**
+	 * Dołącza do grupy multicast na wszystkich (nowych) interfejsach, które
+	 * obsługują multicast i mają adres z rodziny adresu grupy, oraz opuszcza
+	 * grupę na interfejsach, które zniknęły.
+	 */
+	protected void joinMulticastGroup()
+	{
+		InetAddress group = multicastGroup;
+		if (group == null)
+			return;
+
+		Vector<NetworkInterface> ifaces = new Vector<NetworkInterface>();
+		try
+		{
+			Enumeration<NetworkInterface> all = NetworkInterface.getNetworkInterfaces();
+			while (all != null && all.hasMoreElements())
+			{
+				NetworkInterface ni = all.nextElement();
+				if (ni.isUp() && !ni.isLoopback() && ni.supportsMulticast() &&
+					hasAddressForGroup(ni, group))
+					ifaces.add(ni);
+			}
+		}
+		catch (SocketException e)
+		{
+			return;
+		}
 
+		synchronized (memberships)
+		{
+			Iterator<Map.Entry<NetworkInterface, MembershipKey>> it =
+				memberships.entrySet().iterator();
+			while (it.hasNext())
+			{
+				Map.Entry<NetworkInterface, MembershipKey> membership = it.next();
+				if (ifaces.contains(membership.getKey()) &&
+					membership.getValue().isValid())
+					continue;
+				membership.getValue().drop();
+				it.remove();
+			}
+
+			Vector<MulticastTarget> targets = new Vector<MulticastTarget>();
+			for (NetworkInterface ni : ifaces)
+			{
 				try
 				{
-					ipmsgPacket = IpmsgPacket.fromRAWData(
-							packet.getData(), packet.getLength());
-					ipmsgPacket.ip = packet.getAddress().getHostAddress();
+					if (!memberships.containsKey(ni))
+						memberships.put(ni, channel.join(group, ni));
+					InetAddress target = group;
+					if (group instanceof Inet6Address) // adres z zakresem interfejsu
+						target = Inet6Address.getByAddress(null, group.getAddress(), ni);
+					targets.add(new MulticastTarget(ni,
+						new InetSocketAddress(target, port)));
 				}
-				catch (IllegalArgumentException e)
+				catch (IOException e)
 				{
-					System.err.println(e.getMessage());
-					System.err.println(
-						"Pakiet od " + packet.getAddress().getHostAddress() + ", " +
-						"Dane: [" + new String(packet.getData(), 0, packet.getLength()) + "]"
-						);
-					continue;
+					Main.logger.log(Level.WARNING, "Nie udało się dołączyć do " +
+						"grupy multicast na interfejsie " + ni.getName(), e);
+				}
+				catch (UnsupportedOperationException e)
+				{
+					Main.logger.log(Level.WARNING, "Nie udało się dołączyć do " +
+						"grupy multicast na interfejsie " + ni.getName(), e);
 				}
+				catch (IllegalStateException e) // gniazdo zamknięte
+				{
+					return;
+				}
+			}
+			multicastTargets = targets.toArray(new MulticastTarget[targets.size()]);
+		}
+	}
 
-				ipmsgAccount.handlePacket(ipmsgPacket);
+	/**
+	 * Sprawdza, czy interfejs ma adres, przez który można odbierać pakiety
+	 * z podanej grupy.
+	 *
+	 * @param ni interfejs
+	 * @param group grupa multicast
+	 * @return <code>true</code>, jeżeli interfejs ma adres odpowiedniej rodziny
+	 */
+	private static boolean hasAddressForGroup(NetworkInterface ni, InetAddress group)
+	{
+		Enumeration<InetAddress> addresses = ni.getInetAddresses();
+		while (addresses.hasMoreElements())
+		{
+			InetAddress address = addresses.nextElement();
+			if (group instanceof Inet4Address && address instanceof Inet4Address)
+				return true;
+			if (group instanceof Inet6Address && address instanceof Inet6Address &&
+				address.isLinkLocalAddress())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Sprawdza, czy transport multicast jest aktywny (dołączono do grupy na
+	 * co najmniej jednym interfejsie).
+	 *
+	 * @return <code>true</code>, jeżeli można wysyłać pakiety do grupy
+	 */
+	public boolean isMulticastActive()
+	{
+		return multicastTargets.length > 0;
+	}
+
+	/**
+	 * Odczytuje pakiety oczekujące w podanym gnieździe.
+	 *
+	 * @param ch gniazdo, z którego odczytać pakiety
+	 * @param buff bufor na dane pakietu
+	 * @throws IOException jeżeli wystąpił błąd odczytu z gniazda
+	 */
+	protected void receiveFrom(DatagramChannel ch, ByteBuffer buff) throws IOException
+	{
+		for (int i = 0; i < maxPacketsPerSelect; i++)
+		{
+			buff.clear();
+			SocketAddress from = ch.receive(buff);
+			if (from == null)
+				return;
+			buff.flip();
+
+			handleDatagram(buff, (InetSocketAddress)from);
+		}
+	}
+
+	/**
+	 * Deserializuje odebrany datagram i kolejkuje go do obsługi przez konto.
+	 * Sama obsługa odbywa się poza wątkiem połączenia. Powtórzone pakiety są
+	 * odrzucane już tutaj, podobnie jak pakiety spoza IPv4.
+	 *
+	 * @param buff bufor z danymi pakietu (gotowy do odczytu)
+	 * @param from adres nadawcy
+	 */
+	protected void handleDatagram(ByteBuffer buff, InetSocketAddress from)
+	{
+		InetAddress fromAddress = from.getAddress();
+		IpmsgAddressCache.Entry fromEntry;
+		if (fromAddress instanceof Inet4Address)
+			fromEntry = ipmsgAccount.addressCache.get(
+				InterfaceInfoProvider.toInt((Inet4Address)fromAddress));
+		else if (fromAddress instanceof Inet6Address &&
+			multicastGroup instanceof Inet6Address)
+			fromEntry = ipmsgAccount.addressCache.get(fromAddress);
+		else
+			return;
+		int fromIP = fromEntry.address;
+
+		IpmsgPacket ipmsgPacket;
+		try
+		{
+			ipmsgPacket = codec.decode(buff);
+			ipmsgPacket.ip = fromEntry.ip;
+			ipmsgPacket.ipAddress = fromIP;
+		}
+		catch (IllegalArgumentException e)
+		{
+			System.err.println(e.getMessage());
+			System.err.println(
+				"Pakiet od " + from.getAddress().getHostAddress() + ", " +
+				"Dane: [" + codec.decodeString(buff, buff.position(), buff.limit()) + "]"
+				);
+			return;
+		}
+
+		if (multicastGroup instanceof Inet6Address && isDualPathCopy(ipmsgPacket,
+			fromAddress instanceof Inet6Address))
+			return;
+
+		if (ipmsgAccount.duplicateFilter.checkAndMark(fromIP,
+			ipmsgPacket.packetNo, System.currentTimeMillis()))
+		{
+			ipmsgAccount.gotDuplicatePacket(ipmsgPacket);
+			return;
+		}
+
+		ipmsgAccount.packetDispatcher.dispatch(ipmsgPacket);
+	}
+
+	/**
+	 * Sprawdza, czy pakiet odebrany przez IPv4 jest kopią pakietu odebranego
+	 * już przez grupę multicast IPv6 (nadawca wysyła pakiety do wszystkich
+	 * obiema drogami) - aby ten sam kontakt nie pojawił się dwa razy.
+	 *
+	 * Dotyczy tylko pakietów rozsyłanych do wszystkich (powiadomień
+	 * o obecności i wiadomości do pokoju publicznego) - pakiety wysłane
+	 * indywidualnie nigdy nie są odrzucane. Kopia musi mieć ten sam numer
+	 * i przyjść od adresu IPv4 sparowanego z nadawcą kopii IPv6. Para jest
+	 * ustalana przy pierwszej zgodności numeru pakietu, polecenia i nazw
+	 * użytkownika oraz hosta.
+	 *
+	 * @param packet odebrany pakiet
+	 * @param fromIPv6 czy pakiet odebrano przez IPv6
+	 * @return <code>true</code>, jeżeli pakiet należy odrzucić
+	 */
+	private boolean isDualPathCopy(IpmsgPacket packet, boolean fromIPv6)
+	{
+		if (!isSentToAll(packet))
+			return false;
+		long now = System.currentTimeMillis();
+		if (fromIPv6)
+		{
+			ipv6Copies.put(packet.packetNo, new IPv6Copy(packet, now));
+			return false;
+		}
+
+		IPv6Copy copy = ipv6Copies.get(packet.packetNo);
+		if (copy == null || now - copy.time > dualPathWindow ||
+			now < copy.time || copy.command != packet.getCommand())
+			return false;
+		Integer pairedAddress = ipv6Pairs.get(packet.ipAddress);
+		if (pairedAddress == null || pairedAddress != copy.address)
+		{
+			if (!copy.userName.equals(packet.userName) ||
+				!copy.hostName.equals(packet.hostName))
+				return false;
+			if (ipv6Pairs.size() >= maxIPv6Hosts)
+				ipv6Pairs.clear();
+			ipv6Pairs.put(packet.ipAddress, copy.address);
+		}
+		dualPathDroppedCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Sprawdza, czy pakiet jest rozsyłany do wszystkich (na broadcast lub
+	 * do grupy multicast), czyli czy może dotrzeć zarówno przez IPv4, jak
+	 * i IPv6.
+	 *
+	 * @param packet odebrany pakiet
+	 * @return <code>true</code>, jeżeli jest to powiadomienie o obecności lub
+	 * wiadomość do pokoju publicznego
+	 */
+	private static boolean isSentToAll(IpmsgPacket packet)
+	{
+		switch (packet.getCommand())
+		{
+			case IpmsgPacket.COMM_ENTRY:
+				return !packet.getFlag(IpmsgPacket.FLAG_UNICASTENTRY);
+			case IpmsgPacket.COMM_EXIT:
+			case IpmsgPacket.COMM_ABSENCE:
+				return true;
+			case IpmsgPacket.COMM_SENDMSG:
+				// tak jak w IpmsgAccount.gotMessage - wiadomości do pokoju
+				// publicznego mają flagę FLAG_MULTICAST
+				return packet.getFlag(IpmsgPacket.FLAG_BROADCAST) ||
+					packet.getFlag(IpmsgPacket.FLAG_MULTICAST) ||
+					packet.getFlag(IpmsgPacket.FLAG_MULTICAST_NEW);
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Rejestruje w selektorze gniazda dodane przez
+	 * {@link #addChannel(DatagramChannel)}.
+	 *
+	 * @throws IOException jeżeli nie udało się przełączyć gniazda w tryb
+	 * nieblokujący
+	 */
+	private void registerPendingChannels() throws IOException
+	{
+		if (pendingChannels.isEmpty())
+			return;
+		synchronized (pendingChannels)
+		{
+			for (DatagramChannel ch : pendingChannels)
+			{
+				ch.configureBlocking(false);
+				ch.register(selector, SelectionKey.OP_READ);
 			}
-			catch (SocketTimeoutException e)
+			pendingChannels.clear();
+		}
+	}
+
+	/**
+	 * Dodaje kolejne (już związane z adresem) gniazdo, z którego wątek ma
+	 * odbierać pakiety. Gniazdo zostanie zamknięte razem z połączeniem.
+	 *
+	 * @param ch gniazdo do obsługi
+	 */
+	public void addChannel(DatagramChannel ch)
+	{
+		if (ch == null)
+			throw new NullPointerException();
+		pendingChannels.add(ch);
+		Selector sel = selector;
+		if (sel != null)
+			sel.wakeup();
+	}
+
+	/**
+	 * Zamyka wszystkie gniazda i selektor.
+	 */
+	private void closeAll()
+	{
+		synchronized (sockSendLocker)
+		{
+			multicastTargets = new MulticastTarget[0];
+			if (selector != null)
 			{
+				try
+				{
+					for (SelectionKey key : selector.keys())
+						key.channel().close();
+					selector.close();
+				}
+				catch (IOException e)
+				{
+				}
+				catch (ClosedSelectorException e)
+				{
+				}
 			}
-			catch (IOException e)
+			if (channel != null)
+				try
+				{
+					channel.close();
+				}
+				catch (IOException e)
+				{
+				}
+			synchronized (pendingChannels)
 			{
-				break;
+				for (DatagramChannel ch : pendingChannels)
+					try
+					{
+						ch.close();
+					}
+					catch (IOException e)
+					{
+					}
+				pendingChannels.clear();
 			}
 		}
-
-		sock.close();
-		isConnected = false;
 	}
 
 	/**
-	 * Zamyka port i kończy wątek połączenia.
+	 * Zamyka port i kończy wątek połączenia. Wątek jest budzony natychmiast.
 	 */
 	public void disconnect()
 	{
 		isConnected = false;
 		this.interrupt();
+		Selector sel = selector;
+		if (sel != null)
+			sel.wakeup();
 	}
 
 	/**
 	 * Wysyła pakiet za pomocą otwartego portu UDP.
 	 *
-	 * @param packet pakiet do wysłania
+	 * @param data dane pakietu (od bieżącej pozycji do limitu); pozycja bufora
+	 * nie jest zmieniana
+	 * @param target adres odbiorcy
+	 * @throws ConnectionLostException jeżeli połączenie zostało zamknięte
 	 */
-	public void send(DatagramPacket packet) throws ConnectionLostException
+	public void send(ByteBuffer data, InetSocketAddress target) throws ConnectionLostException
 	{
-		if (packet == null)
+		if (data == null || target == null)
 			throw new NullPointerException();
 		if (!isConnected)
 			throw new ConnectionLostException();
@@ -151,10 +715,13 @@ class IpmsgConnectionThread extends Thread
 				throw new ConnectionLostException();
 			try
 			{
-				sock.send(packet);
+				sendLocked(data, target);
 			}
-			catch (SocketTimeoutException e)
+			catch (ClosedByInterruptException e)
 			{
+				// przerwano wątek wysyłający - gniazdo zostało zamknięte
+				disconnect();
+				throw new ConnectionLostException();
 			}
 			catch (IOException e)
 			{
@@ -162,4 +729,99 @@ class IpmsgConnectionThread extends Thread
 			}
 		}
 	}
+
+	/**
+	 * Wysyła pakiet do grupy multicast, na każdym interfejsie, na którym do
+	 * niej dołączono. Błąd wysyłania na jednym interfejsie (np. właśnie
+	 * wyłączonym) nie przerywa wysyłania na pozostałych.
+	 *
+	 * @param data dane pakietu (od bieżącej pozycji do limitu); pozycja bufora
+	 * nie jest zmieniana
+	 * @return <code>true</code>, jeżeli pakiet wysłano na co najmniej jednym
+	 * interfejsie
+	 * @throws ConnectionLostException jeżeli połączenie zostało zamknięte
+	 */
+	public boolean sendMulticast(ByteBuffer data) throws ConnectionLostException
+	{
+		if (data == null)
+			throw new NullPointerException();
+		MulticastTarget[] targets = multicastTargets;
+		if (targets.length == 0)
+			return false;
+		if (!isConnected)
+			throw new ConnectionLostException();
+		boolean sent = false;
+		synchronized(sockSendLocker)
+		{
+			if (!isConnected)
+				throw new ConnectionLostException();
+			for (MulticastTarget target : targets)
+			{
+				try
+				{
+					channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, target.iface);
+					sendLocked(data, target.address);
+					sent = true;
+				}
+				catch (ClosedByInterruptException e)
+				{
+					disconnect();
+					throw new ConnectionLostException();
+				}
+				catch (ClosedChannelException e)
+				{
+					throw new ConnectionLostException();
+				}
+				catch (IOException e)
+				{
+					// interfejs niedostępny - pomijamy
+				}
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Wysyła pakiet przez główne gniazdo. Wywoływane z zablokowanym
+	 * {@link #sockSendLocker}.
+	 *
+	 * @param data dane pakietu; pozycja bufora nie jest zmieniana
+	 * @param target adres odbiorcy
+	 * @throws IOException jeżeli wystąpił błąd wysyłania
+	 */
+	private void sendLocked(ByteBuffer data, InetSocketAddress target) throws IOException
+	{
+		int position = data.position();
+		try
+		{
+			channel.send(data, target);
+		}
+		finally
+		{
+			data.position(position);
+		}
+	}
+
+	/**
+	 * Dopisuje informacje o transporcie multicast do raportu.
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	public void appendStatistics(StringBuilder report)
+	{
+		InetAddress group = multicastGroup;
+		report.append("Grupa multicast: ");
+		if (group == null)
+		{
+			report.append("wyłączona\n");
+			return;
+		}
+		report.append(group.getHostAddress()).append(" (interfejsy:");
+		for (MulticastTarget target : multicastTargets)
+			report.append(' ').append(target.iface.getName());
+		report.append(")\n");
+		if (group instanceof Inet6Address)
+			report.append("  odrzucone kopie przez IPv4: ").
+				append(dualPathDroppedCount.get()).append('\n');
+	}
 }
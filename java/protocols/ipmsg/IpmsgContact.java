@@ -1,5 +1,8 @@
 package protocols.ipmsg;
 
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
 import protocols.*;
 
 /**
@@ -14,43 +17,166 @@ public class IpmsgContact extends Contact
 	 */
 	protected final String ip;
 
+	/**
+	 * Adres IPv4 kontaktu w postaci liczby.
+	 */
+	protected final int address;
+
+	/**
+	 * Adres gniazda protokołu kontaktu.
+	 */
+	protected final InetSocketAddress socketAddress;
+
+	/**
+	 * Unikalny identyfikator kontaktu.
+	 */
+	protected final String id;
+
 	/**
 	 * Nazwa kontaktu.
 	 */
-	protected String name = "";
+	protected volatile String name = "";
 
 	/**
 	 * Nazwa grupy kontaktu.
 	 */
-	protected String group = "";
+	protected volatile String group = "";
 
 	/**
 	 * Status opisowy kontaktu.
 	 */
-	protected String textStatus = "";
+	protected volatile String textStatus = "";
 
 	/**
 	 * Status kontaktu.
 	 */
-	protected UserStatus status = UserStatus.OFFLINE;
+	protected volatile UserStatus status = UserStatus.OFFLINE;
+
+	/**
+	 * Czy kontakt jest w indeksie dostępnych kontaktów. Synchronizacja na
+	 * obiekcie indeksu.
+	 *
+	 * @see IpmsgOnlineContacts
+	 */
+	boolean indexedOnline = false;
+
+	/**
+	 * Grupa, w której kontakt jest liczony w indeksie dostępnych kontaktów.
+	 * Synchronizacja na obiekcie indeksu.
+	 *
+	 * @see IpmsgOnlineContacts
+	 */
+	String indexedGroup = null;
+
+	/**
+	 * Czas odebrania ostatniego pakietu od kontaktu (unix timestamp, w ms).
+	 */
+	protected volatile long lastSeen = 0;
+
+	/**
+	 * Czas ostatniego pobrania kontaktu z indeksu konta lub zmiany jego
+	 * statusu (unix timestamp, w ms). Kontakty długo nieużywane są usuwane
+	 * z listy.
+	 *
+	 * @see IpmsgAccount#evictStaleContacts(long)
+	 */
+	volatile long lastUsed = System.currentTimeMillis();
+
+	/**
+	 * Czy kontakt ma wyznaczony termin sprawdzenia dostępności.
+	 *
+	 * @see IpmsgContactsThread
+	 */
+	volatile boolean livenessScheduled = false;
+
+	/**
+	 * Termin sprawdzenia dostępności kontaktu.
+	 *
+	 * @see IpmsgContactsThread
+	 */
+	long livenessDeadline = 0;
+
+	/**
+	 * Ilość zapytań o dostępność, na które kontakt jeszcze nie odpowiedział.
+	 *
+	 * @see IpmsgContactsThread
+	 */
+	int probesSent = 0;
+
+	/**
+	 * Czas wysłania pierwszego z zapytań o dostępność, na które kontakt
+	 * jeszcze nie odpowiedział.
+	 *
+	 * @see IpmsgContactsThread
+	 */
+	long probesStartTime = 0;
+
+	/**
+	 * Czas faktycznego wysłania (jednokrotnego) zapytania o dostępność, na
+	 * które kontakt jeszcze nie odpowiedział, -1 jeżeli zapytanie czeka
+	 * w kolejce wysyłania, lub 0.
+	 *
+	 * @see IpmsgContactsThread
+	 */
+	final AtomicLong probeSentTime = new AtomicLong();
+
+	/**
+	 * Czy kontakt jest potwierdzony (odebrano od niego pakiet). Kontakty
+	 * wczytane z pliku są niepotwierdzone.
+	 *
+	 * @see IpmsgContactCache
+	 */
+	volatile boolean confirmed = true;
+
+	/**
+	 * Nazwa użytkownika zalogowanego na maszynie kontaktu (nie jest to nick).
+	 */
+	volatile String userName = "";
+
+	/**
+	 * Nazwa hosta kontaktu.
+	 */
+	volatile String hostName = "";
+
+	/**
+	 * Czy kontakt jest serwerem wymiany listy kontaktów (ustawia flagę
+	 * {@link IpmsgPacket#FLAG_SERVER} w powiadomieniach o obecności).
+	 *
+	 * @see IpmsgHostList
+	 */
+	volatile boolean listServer = false;
+
+	/**
+	 * Czy kontakt należy do grupy multicast (ustawia flagę
+	 * {@link IpmsgPacket#FLAG_MULTICASTGROUP} w powiadomieniach o obecności).
+	 */
+	volatile boolean multicastMember = false;
+
+	/**
+	 * Estymator czasu odpowiedzi kontaktu.
+	 */
+	final IpmsgRttEstimator rtt = new IpmsgRttEstimator();
 
 	/**
 	 * Główny konstruktor.
 	 *
 	 * @param account konto, z którym ma być powiązany kontakt
-	 * @param ip adres IPv4 kontaktu
+	 * @param address adres IPv4 kontaktu
 	 */
-	public IpmsgContact(IpmsgAccount account, String ip)
+	IpmsgContact(IpmsgAccount account, IpmsgAddressCache.Entry address)
 	{
 		super(account);
-		if (account == null || ip == null)
+		if (account == null || address == null)
 			throw new NullPointerException();
-		this.ip = ip;
+		this.ip = address.ip;
+		this.address = address.address;
+		this.socketAddress = address.socketAddress;
+		this.id = getID(ip);
 	}
 
 	public String getID()
 	{
-		return getID(ip);
+		return id;
 	}
 
 	/**
@@ -74,6 +200,46 @@ public class IpmsgContact extends Contact
 		return ip;
 	}
 
+	/**
+	 * Pobiera adres IPv4 kontaktu w postaci liczby.
+	 *
+	 * @return adres kontaktu
+	 */
+	public int getAddress()
+	{
+		return address;
+	}
+
+	/**
+	 * Pobiera adres gniazda protokołu kontaktu.
+	 *
+	 * @return adres gniazda
+	 */
+	InetSocketAddress getSocketAddress()
+	{
+		return socketAddress;
+	}
+
+	/**
+	 * Pobiera czas odebrania ostatniego pakietu od kontaktu.
+	 *
+	 * @return unix timestamp, w ms (0, jeżeli nic nie odebrano)
+	 */
+	public long getLastSeen()
+	{
+		return lastSeen;
+	}
+
+	/**
+	 * Ustawia czas odebrania ostatniego pakietu od kontaktu.
+	 *
+	 * @param lastSeen unix timestamp, w ms
+	 */
+	void setLastSeen(long lastSeen)
+	{
+		this.lastSeen = lastSeen;
+	}
+
 	public IpmsgAccount getAccount()
 	{
 		return (IpmsgAccount)account;
@@ -93,11 +259,7 @@ public class IpmsgContact extends Contact
 	{
 		if (name == null)
 			throw new NullPointerException();
-		name = name.trim();
-		if (this.name.equals(name))
-			return;
-		this.name = name.trim();
-		this.notifyObservers();
+		update(null, name, null, null);
 	}
 
 	/**
@@ -119,11 +281,7 @@ public class IpmsgContact extends Contact
 	{
 		if (name == null)
 			throw new NullPointerException();
-		name = name.trim();
-		if (this.group.equals(name))
-			return;
-		this.group = name.trim();
-		this.notifyObservers();
+		update(null, null, null, name);
 	}
 
 	/**
@@ -145,10 +303,24 @@ public class IpmsgContact extends Contact
 	{
 		if (status == null)
 			throw new NullPointerException();
-		if (this.status.equals(status))
-			return;
+		update(status, null, null, null);
+	}
+
+	@Override public boolean isConfirmed()
+	{
+		return confirmed;
+	}
 
-		this.status = status;
+	/**
+	 * Ustawia, czy kontakt jest potwierdzony.
+	 *
+	 * @param confirmed czy kontakt jest potwierdzony
+	 */
+	void setConfirmed(boolean confirmed)
+	{
+		if (this.confirmed == confirmed)
+			return;
+		this.confirmed = confirmed;
 		this.notifyObservers();
 	}
 
@@ -166,10 +338,98 @@ public class IpmsgContact extends Contact
 	{
 		if (status == null)
 			throw new NullPointerException();
-		status = status.trim();
-		if (textStatus.equals(status))
-			return;
-		textStatus = status;
+		update(null, null, status, null);
+	}
+
+	/**
+	 * Zmienia jednocześnie kilka danych kontaktu (np. z powiadomienia
+	 * o obecności). Obserwatorzy są powiadamiani co najwyżej raz - i tylko,
+	 * jeżeli któraś z danych faktycznie się zmieniła.
+	 *
+	 * @param status nowy status, lub <code>null</code>, jeżeli bez zmian
+	 * @param name nowa nazwa, lub <code>null</code>, jeżeli bez zmian
+	 * @param textStatus nowy status opisowy, lub <code>null</code>, jeżeli
+	 * bez zmian
+	 * @param group nowa grupa, lub <code>null</code>, jeżeli bez zmian
+	 * @return <code>true</code>, jeżeli coś się zmieniło
+	 */
+	boolean update(UserStatus status, String name, String textStatus,
+		String group)
+	{
+		return update(status, name, textStatus, group, false);
+	}
+
+	/**
+	 * Zmienia jednocześnie kilka danych kontaktu, ale tylko jeżeli jest on
+	 * niedostępny - sprawdzenie i zmiana są atomowe, więc np. wpis z listy
+	 * kontaktów nie nadpisze aktualniejszego powiadomienia od samego
+	 * kontaktu.
+	 *
+	 * @param status nowy status (dostępny)
+	 * @param name nowa nazwa, lub <code>null</code>, jeżeli bez zmian
+	 * @param textStatus nowy status opisowy, lub <code>null</code>, jeżeli
+	 * bez zmian
+	 * @param group nowa grupa, lub <code>null</code>, jeżeli bez zmian
+	 * @return <code>true</code>, jeżeli kontakt był niedostępny (i został
+	 * zmieniony)
+	 * @see #update(UserStatus, String, String, String)
+	 */
+	boolean updateIfOffline(UserStatus status, String name, String textStatus,
+		String group)
+	{
+		if (status == null || status == UserStatus.OFFLINE)
+			throw new IllegalArgumentException("Kontakt musi stać się dostępny");
+		return update(status, name, textStatus, group, true);
+	}
+
+	private boolean update(UserStatus status, String name, String textStatus,
+		String group, boolean onlyIfOffline)
+	{
+		boolean indexChanged = false, changed = false;
+		synchronized (this)
+		{
+			if (onlyIfOffline && this.status != UserStatus.OFFLINE)
+				return false;
+			if (status != null && this.status != status)
+			{
+				this.status = status;
+				lastUsed = System.currentTimeMillis();
+				indexChanged = true;
+			}
+			if (group != null)
+			{
+				group = group.trim();
+				if (!this.group.equals(group))
+				{
+					this.group = group;
+					indexChanged = true;
+				}
+			}
+			if (name != null)
+			{
+				name = name.trim();
+				if (!this.name.equals(name))
+				{
+					this.name = name;
+					changed = true;
+				}
+			}
+			if (textStatus != null)
+			{
+				textStatus = textStatus.trim();
+				if (!this.textStatus.equals(textStatus))
+				{
+					this.textStatus = textStatus;
+					changed = true;
+				}
+			}
+		}
+
+		if (indexChanged)
+			getAccount().onlineContacts.update(this);
+		if (!changed && !indexChanged)
+			return false;
 		this.notifyObservers();
+		return true;
 	}
 }
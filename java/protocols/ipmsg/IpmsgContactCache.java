@@ -0,0 +1,309 @@
+package protocols.ipmsg;
+
+import java.io.*;
+import java.util.List;
+import java.util.Vector;
+import java.util.logging.Level;
+
+import main.Main;
+import protocols.Contact;
+
+/**
+ * Plik z ostatnio znanymi (dostępnymi) kontaktami. Po uruchomieniu
+ * programu kontakty z pliku są od razu wyświetlane na liście - jako
+ * niepotwierdzone - i sprawdzane zapytaniami wysyłanymi bezpośrednio do
+ * nich, więc lista jest użyteczna także w sieciach, w których broadcast jest
+ * filtrowany.
+ *
+ * Format pliku (DataOutputStream): nagłówek {@link #magic}, wersja
+ * formatu, ilość wpisów, a po nich wpisy - adres IPv4, czas ostatniego
+ * kontaktu, status, flagi, nazwa, grupa, status opisowy, nazwa użytkownika
+ * i hosta.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+class IpmsgContactCache
+{
+	/**
+	 * Nagłówek pliku ("ULCC").
+	 */
+	protected final static int magic = 0x554C4343;
+
+	/**
+	 * Wersja formatu pliku.
+	 */
+	protected final static byte formatVersion = 1;
+
+	/**
+	 * Maksymalna ilość zapisywanych kontaktów.
+	 */
+	protected final static int maxEntries = 65536;
+
+	/**
+	 * Maksymalna długość zapisywanego pola tekstowego (w znakach). Pola
+	 * pochodzą z pakietów od kontaktów, a {@link DataOutputStream#writeUTF}
+	 * nie zapisze napisu dłuższego niż 65535 bajtów - dłuższe są obcinane,
+	 * aby jeden kontakt nie uniemożliwił zapisu całego pliku.
+	 */
+	protected final static int maxFieldLength = 4096;
+
+	/**
+	 * Kontakty, od których nic nie odebrano od tylu ms, nie są wczytywane.
+	 */
+	protected final static long maxAge = 7L * 24 * 60 * 60 * 1000;
+
+	private final static byte flagMulticastMember = 1;
+
+	private final static byte flagListServer = 2;
+
+	/**
+	 * Ścieżka pliku.
+	 */
+	protected final String fileName;
+
+	// statystyki
+
+	private int loadedCount = 0;
+
+	private long loadTime = -1;
+
+	private int savedCount = 0;
+
+	private long saveTime = -1;
+
+	/**
+	 * Główny konstruktor.
+	 *
+	 * @param fileName ścieżka pliku
+	 */
+	public IpmsgContactCache(String fileName)
+	{
+		if (fileName == null)
+			throw new NullPointerException();
+		this.fileName = fileName;
+	}
+
+	/**
+	 * Zapisany kontakt, w postaci powiadomienia o obecności.
+	 */
+	static class Entry
+	{
+		/**
+		 * Powiadomienie o obecności, odpowiadające zapisanemu kontaktowi.
+		 */
+		public final IpmsgPacket presence;
+
+		/**
+		 * Czas ostatniego kontaktu (unix timestamp, w ms).
+		 */
+		public final long lastSeen;
+
+		public Entry(IpmsgPacket presence, long lastSeen)
+		{
+			this.presence = presence;
+			this.lastSeen = lastSeen;
+		}
+	}
+
+	/**
+	 * Wczytuje zapisane kontakty. Jeżeli pliku nie ma, lub jest uszkodzony,
+	 * zwraca pustą listę.
+	 *
+	 * @param addressCache pamięć adresów, z której pobierane są adresy
+	 * kontaktów
+	 * @return zapisane kontakty
+	 */
+	public Vector<Entry> load(IpmsgAddressCache addressCache)
+	{
+		long start = System.nanoTime();
+		long now = System.currentTimeMillis();
+		Vector<Entry> entries = new Vector<Entry>();
+		File file = new File(fileName);
+		if (!file.exists())
+			return entries;
+
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+			if (in.readInt() != magic || in.readByte() != formatVersion)
+				return entries;
+			int count = Math.min(in.readInt(), maxEntries);
+			for (int i = 0; i < count; i++)
+			{
+				int address = in.readInt();
+				long lastSeen = in.readLong();
+				byte status = in.readByte();
+				byte flags = in.readByte();
+				String name = in.readUTF();
+				String group = in.readUTF();
+				String textStatus = in.readUTF();
+				String userName = in.readUTF();
+				String hostName = in.readUTF();
+
+				if (now - lastSeen > maxAge || lastSeen > now)
+					continue;
+
+				IpmsgPacket presence = new IpmsgPacket(0);
+				presence.setCommand(IpmsgPacket.COMM_ANSENTRY);
+				presence.setFlag(IpmsgPacket.FLAG_ABSENCE,
+					status == Contact.UserStatus.BUSY.ordinal());
+				presence.setFlag(IpmsgPacket.FLAG_MULTICASTGROUP,
+					(flags & flagMulticastMember) != 0);
+				presence.setFlag(IpmsgPacket.FLAG_SERVER,
+					(flags & flagListServer) != 0);
+				presence.userName = userName;
+				presence.hostName = hostName;
+				presence.data = (textStatus.isEmpty() ? name :
+					name + '[' + textStatus + ']') + '\0' + group;
+				presence.ipAddress = address;
+				presence.ip = addressCache.get(address).ip;
+				entries.add(new Entry(presence, lastSeen));
+			}
+		}
+		catch (IOException e)
+		{
+			Main.logger.log(Level.WARNING, "Nie udało się wczytać zapisanych " +
+				"kontaktów", e);
+		}
+		finally
+		{
+			if (in != null)
+				try
+				{
+					in.close();
+				}
+				catch (IOException e)
+				{
+				}
+		}
+
+		synchronized (this)
+		{
+			loadedCount = entries.size();
+			loadTime = System.nanoTime() - start;
+		}
+		return entries;
+	}
+
+	/**
+	 * Zapisuje dostępne kontakty. Plik jest zapisywany pod tymczasową
+	 * nazwą i dopiero potem podmieniany, więc przerwany zapis nie psuje
+	 * poprzedniej wersji.
+	 *
+	 * @param contacts kontakty do zapisania
+	 */
+	public synchronized void save(List<IpmsgContact> contacts)
+	{
+		long start = System.nanoTime();
+		File file = new File(fileName);
+		File tmpFile = new File(fileName + ".tmp");
+
+		Vector<IpmsgContact> saved = new Vector<IpmsgContact>(contacts.size());
+		for (IpmsgContact contact : contacts)
+		{
+			if (saved.size() >= maxEntries)
+				break;
+			// adresy IPv6 są zastępcze - nie mają znaczenia po ponownym uruchomieniu
+			if (contact.getAddress() < IpmsgAddressCache.ipv6AddressesEnd ||
+				contact.getLastSeen() == 0)
+				continue;
+			saved.add(contact);
+		}
+
+		DataOutputStream out = null;
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmpFile)));
+			out.writeInt(magic);
+			out.writeByte(formatVersion);
+			out.writeInt(saved.size());
+			for (IpmsgContact contact : saved)
+			{
+				byte flags = 0;
+				if (contact.multicastMember)
+					flags |= flagMulticastMember;
+				if (contact.listServer)
+					flags |= flagListServer;
+
+				out.writeInt(contact.getAddress());
+				out.writeLong(contact.getLastSeen());
+				out.writeByte(contact.getStatus().ordinal());
+				out.writeByte(flags);
+				writeField(out, contact.getName());
+				writeField(out, contact.getGroup());
+				writeField(out, contact.textStatus);
+				writeField(out, contact.userName);
+				writeField(out, contact.hostName);
+			}
+			out.close();
+			out = null;
+
+			if (!tmpFile.renameTo(file)) // Windows nie nadpisuje plików
+			{
+				file.delete();
+				if (!tmpFile.renameTo(file))
+					throw new IOException("Nie udało się zmienić nazwy pliku " +
+						tmpFile.getPath());
+			}
+		}
+		catch (IOException e)
+		{
+			Main.logger.log(Level.WARNING, "Nie udało się zapisać kontaktów", e);
+			return;
+		}
+		finally
+		{
+			if (out != null)
+				try
+				{
+					out.close();
+				}
+				catch (IOException e)
+				{
+				}
+		}
+
+		savedCount = saved.size();
+		saveTime = System.nanoTime() - start;
+	}
+
+	/**
+	 * Zapisuje pole tekstowe, obcięte do {@link #maxFieldLength} znaków
+	 * (bez rozdzielania par surogatów).
+	 *
+	 * @param out strumień, do którego zapisać pole
+	 * @param field zapisywane pole
+	 * @throws IOException jeżeli wystąpił błąd zapisu
+	 */
+	private static void writeField(DataOutputStream out, String field)
+		throws IOException
+	{
+		if (field.length() > maxFieldLength)
+		{
+			int length = maxFieldLength;
+			if (Character.isHighSurrogate(field.charAt(length - 1)))
+				length--;
+			field = field.substring(0, length);
+		}
+		out.writeUTF(field);
+	}
+
+	/**
+	 * Dopisuje statystyki pliku kontaktów do raportu.
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	public synchronized void appendStatistics(StringBuilder report)
+	{
+		report.append("Zapisane kontakty\n");
+		if (loadTime >= 0)
+			report.append("  wczytane: ").append(loadedCount).append(" (").
+				append(loadTime / 1000).append(" µs)\n");
+		if (saveTime >= 0)
+			report.append("  zapisane: ").append(savedCount).append(" (").
+				append(saveTime / 1000).append(" µs)\n");
+	}
+}
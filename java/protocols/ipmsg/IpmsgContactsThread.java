@@ -5,6 +5,7 @@ import java.util.*;
 import main.Main;
 import net.InterfaceInfoProvider;
 import protocols.*;
+import tools.SwingEventQueue;
 
 /**
  * Wątek sprawdzania dostępności jest inicjowany wraz z utworzeniem obiektu
@@ -12,44 +13,104 @@ import protocols.*;
  * ale nie poinformowały o tym, oraz znajduje kontakty, których ogłoszenia
  * o dostępności nie dotarły.
  *
+ * Każdy dostępny kontakt ma własny termin sprawdzenia, liczony od ostatniego
+ * odebranego od niego pakietu. Terminy są trzymane w kole czasowym - przy
+ * każdym takcie sprawdzane są tylko kontakty z bieżącej szczeliny, więc
+ * zapytania rozkładają się równomiernie w czasie, zamiast być wysyłane do
+ * wszystkich naraz.
+ *
  * @see IpmsgAccount.setConnected(boolean)
  * @author Tomasz Wasilczyk (www.wasilczyk.pl)
  */
 class IpmsgContactsThread extends Thread
 {
 	/**
-	 * Ile czasu w ms ma być pomiędzy kolejnymi akcjami odświeżania listy.
+	 * Po ilu ms ciszy kontakt jest odpytywany o dostępność.
 	 */
 	protected final static int refreshInterval = 60000;
 
 	/**
-	 * Osobne ustawienie czasu oczekiwania dla pierwszego odświeżenia po
+	 * Co ile ms wysyłane jest ogłoszenie na broadcast - w celu odnalezienia
+	 * kontaktów, których ogłoszenia o dostępności nie dotarły.
+	 */
+	protected final static int discoveryInterval = 600000;
+
+	/**
+	 * Osobne ustawienie czasu oczekiwania dla pierwszego ogłoszenia po
 	 * utworzeniu połączenia (otworzeniu serwera UDP).
 	 *
-	 * @see #refreshInterval
+	 * @see #discoveryInterval
 	 */
 	protected final static int refreshFirstInterval = 5000;
 
 	/**
-	 * Ile czasu ma kontakt na odpowiedź. Odpowiedź na poprzednie zapytanie
-	 * (z tego samego przebiegu akcji odświeżania) liczy się jak bieżąca
-	 * odpowiedź.
+	 * W jakim czasie (w ms) od połączenia są odpytywane kontakty wczytane
+	 * z pliku, jako niepotwierdzone.
+	 *
+	 * @see IpmsgContactCache
+	 */
+	protected final static int verifyWindow = 3000;
+
+	/**
+	 * Co ile ms zapisywane są dostępne kontakty.
+	 *
+	 * @see IpmsgContactCache
+	 */
+	protected final static int cacheSaveInterval = 300000;
+
+	/**
+	 * Co ile ms usuwane są z listy kontakty nieużywane dłużej niż
+	 * {@link #contactRetention}.
+	 */
+	protected final static int evictionInterval = 600000;
+
+	/**
+	 * Po ilu ms niedostępny i nieużywany kontakt jest usuwany z listy.
+	 *
+	 * @see IpmsgAccount#evictStaleContacts(long)
+	 */
+	protected final static long contactRetention = 24L * 60 * 60 * 1000;
+
+	/**
+	 * Ile czasu ma kontakt na odpowiedź na (pierwsze) zapytanie, jeżeli nie
+	 * zmierzono jeszcze jego czasu odpowiedzi. Czas na odpowiedź na kolejne
+	 * zapytania jest podwajany.
+	 *
+	 * @see IpmsgRttEstimator
 	 */
 	protected final static int confirmTimeout = 2000;
 
+	/**
+	 * Minimalny czas na odpowiedź na zapytanie.
+	 */
+	protected final static int minConfirmTimeout = 250;
+
+	/**
+	 * Maksymalny czas na odpowiedź na pojedyncze zapytanie.
+	 */
+	protected final static int maxConfirmTimeout = 4000;
+
 	/**
 	 * Ile razy kontakt jest odpytywany (bez powodzenia) przed skreśleniem
-	 * z listy.
+	 * z listy. Łączny czas odpytywania nie jest krótszy od maksymalnego
+	 * opóźnienia odpowiedzi na ogłoszenie
+	 * ({@link IpmsgEntryReplyThread#maxDelay}) - z takim opóźnieniem
+	 * odpowiadają na zapytania starsze wersje UniLANChat.
 	 *
 	 * @see #confirmTimeout
 	 */
 	protected final static int confirmMaxCount = 5;
 
 	/**
-	 * Lista nie potwierdzonych (w danej akcji odświeżania) kontaktów.
+	 * Długość jednej szczeliny (taktu) koła czasowego, w ms.
 	 */
-	private final HashMap<String, IpmsgContact> unconfirmedContacts =
-			new HashMap<String, IpmsgContact>();
+	protected final static int slotDuration = 500;
+
+	/**
+	 * Ilość szczelin koła czasowego. Terminy dalsze niż jeden obrót koła
+	 * czekają w szczelinie przez kolejne obroty.
+	 */
+	protected final static int slotsCount = 256;
 
 	/**
 	 * Konto obsługiwane przez wątek.
@@ -57,13 +118,51 @@ class IpmsgContactsThread extends Thread
 	protected final IpmsgAccount ipmsgAccount;
 
 	/**
-	 * Cache, mirror unconfirmedContacts, aby nie blokować metody
-	 * potwierdzania kontaktów online (i wątku połączenia).
-	 *
-	 * @see confirmContact(IpmsgContact)
+	 * Koło czasowe - szczeliny z kontaktami, których termin sprawdzenia
+	 * w nich wypada. Synchronizacja na obiekcie wątku.
+	 */
+	private final ArrayList<ArrayList<IpmsgContact>> wheel =
+			new ArrayList<ArrayList<IpmsgContact>>(slotsCount);
+
+	/**
+	 * Czas rozpoczęcia bieżącej szczeliny koła.
+	 */
+	private long wheelTime = 0;
+
+	/**
+	 * Indeks bieżącej szczeliny koła.
+	 */
+	private int wheelSlot = 0;
+
+	/**
+	 * Ilość kontaktów w kole.
+	 */
+	private int scheduledCount = 0;
+
+	/**
+	 * Czy ma zostać wysłane ogłoszenie na broadcast (najszybciej, jak to
+	 * możliwe).
+	 */
+	private boolean discoveryRequested = false;
+
+	/**
+	 * Niepotwierdzone kontakty, oczekujące na wyznaczenie terminu zapytania.
 	 */
-	private final Vector<IpmsgContact> notifyPersonally =
-			new Vector<IpmsgContact>();
+	private final ArrayList<IpmsgContact> unconfirmed = new ArrayList<IpmsgContact>();
+
+	private final Random random = new Random();
+
+	// statystyki
+
+	private long probesCount = 0;
+
+	private long maxProbesPerSecond = 0;
+
+	private long currentSecond = 0;
+
+	private long currentSecondProbes = 0;
+
+	private long timedOutCount = 0;
 
 	/**
 	 * Główny konstruktor.
@@ -74,62 +173,81 @@ class IpmsgContactsThread extends Thread
 	{
 		super("ULC-Ipmsg-ContactsThread");
 		this.ipmsgAccount = ipmsgAccount;
+		for (int i = 0; i < slotsCount; i++)
+			wheel.add(new ArrayList<IpmsgContact>());
 		setDaemon(true);
 		start();
 
 		InterfaceInfoProvider.interfacesObserver.addObserver(new InterfacesObserver());
 	}
 
-	@Override public synchronized void run()
+	@Override public void run()
 	{
+		SwingEventQueue.markNonBlockingThread();
+		Vector<IpmsgContact> probe = new Vector<IpmsgContact>();
+		Vector<IpmsgContact> timedOut = new Vector<IpmsgContact>();
 		try
 		{
 			while (true)
 			{
 				if (!ipmsgAccount.isConnected())
 				{
-					while (!ipmsgAccount.isConnected())
-						wait(1000);
-					sleep(refreshFirstInterval);
+					synchronized (this)
+					{
+						clearWheel();
+						while (!ipmsgAccount.isConnected())
+							wait(1000);
+						wheelTime = System.currentTimeMillis();
+						// ogłoszenie właśnie wysłało konto - kolejne po refreshFirstInterval
+						discoveryRequested = false;
+					}
 				}
 
-				// przygotowanie listy kontaktów do sprawdzenia
-				synchronized (unconfirmedContacts)
+				long nextDiscovery = System.currentTimeMillis() + refreshFirstInterval;
+				long nextCacheSave = System.currentTimeMillis() + cacheSaveInterval;
+				long nextEviction = System.currentTimeMillis() + evictionInterval;
+				while (ipmsgAccount.isConnected())
 				{
-					unconfirmedContacts.clear();
-					Vector<IpmsgContact> online = ipmsgAccount.getOnlineContacts();
-					for (IpmsgContact contact : online)
-						unconfirmedContacts.put(contact.getID(), contact);
-				}
+					boolean discovery;
+					synchronized (this)
+					{
+						long now = System.currentTimeMillis();
+						if (!discoveryRequested && unconfirmed.isEmpty() &&
+							now < wheelTime + slotDuration)
+							wait(wheelTime + slotDuration - now);
 
-				// wysłanie powiadomienia do wszystkich
-				ipmsgAccount.statusNotify(IpmsgPacket.COMM_ENTRY);
-				sleep(confirmTimeout);
+						now = System.currentTimeMillis();
+						discovery = discoveryRequested || now >= nextDiscovery;
+						discoveryRequested = false;
 
-				// wysyłanie powiadomień osobno, do opornych
-				for (int i = 0; i < confirmMaxCount; i++)
-				{
-					if (unconfirmedContacts.isEmpty())
-						break;
-					notifyPersonally.clear();
-					synchronized (unconfirmedContacts)
-					{
-						notifyPersonally.addAll(unconfirmedContacts.values());
+						scheduleUnconfirmed(now);
+						advanceWheel(now, probe, timedOut);
 					}
-					for (IpmsgContact contact : notifyPersonally)
-						ipmsgAccount.statusNotify(IpmsgPacket.COMM_ENTRY, contact.getIP());
-					sleep(confirmTimeout);
-				}
 
-				// usuwanie nie potwierdzonych kontaktów
-				synchronized (unconfirmedContacts)
-				{
-					for (IpmsgContact contact : unconfirmedContacts.values())
+					// wysyłanie i powiadamianie poza synchronizacją
+					if (discovery)
+					{
+						ipmsgAccount.statusNotify(IpmsgPacket.COMM_ENTRY);
+						nextDiscovery = System.currentTimeMillis() + discoveryInterval;
+					}
+					if (System.currentTimeMillis() >= nextCacheSave)
+					{
+						ipmsgAccount.saveContactCache();
+						nextCacheSave = System.currentTimeMillis() + cacheSaveInterval;
+					}
+					if (System.currentTimeMillis() >= nextEviction)
+					{
+						ipmsgAccount.evictStaleContacts(contactRetention);
+						nextEviction = System.currentTimeMillis() + evictionInterval;
+					}
+					for (IpmsgContact contact : probe)
+						ipmsgAccount.statusNotify(IpmsgPacket.COMM_ENTRY, contact,
+							IpmsgPacket.FLAG_UNICASTENTRY, new ProbeSendListener(contact));
+					for (IpmsgContact contact : timedOut)
 						contact.setStatus(Contact.UserStatus.OFFLINE);
-					unconfirmedContacts.clear();
+					probe.clear();
+					timedOut.clear();
 				}
-
-				wait(refreshInterval);
 			}
 		}
 		catch (InterruptedException e)
@@ -139,13 +257,200 @@ class IpmsgContactsThread extends Thread
 	}
 
 	/**
-	 * Powoduje przyspieszenie odświeżania listy przez przerwanie ewentualnego
-	 * oczekiwania na minięcie oczekiwania na następny przebieg.
+	 * Przetwarza szczeliny koła, których czas minął.
 	 *
-	 * @see #refreshInterval
+	 * @param now bieżący czas
+	 * @param probe wektor, do którego dopisać kontakty do odpytania
+	 * @param timedOut wektor, do którego dopisać kontakty, które nie
+	 * odpowiedziały na zapytania
+	 */
+	private void advanceWheel(long now, Vector<IpmsgContact> probe,
+		Vector<IpmsgContact> timedOut)
+	{
+		if (now < wheelTime) // przestawiono zegar
+			wheelTime = now;
+		int steps = 0;
+		while (wheelTime + slotDuration <= now && steps++ < slotsCount)
+		{
+			wheelTime += slotDuration;
+			wheelSlot = (wheelSlot + 1) % slotsCount;
+			processSlot(now, probe, timedOut);
+		}
+		if (wheelTime + slotDuration <= now) // zaległości dłuższe niż obrót
+			wheelTime = now;
+
+		if (!probe.isEmpty())
+		{
+			probesCount += probe.size();
+			long second = now / 1000;
+			if (second != currentSecond)
+			{
+				currentSecond = second;
+				currentSecondProbes = 0;
+			}
+			currentSecondProbes += probe.size();
+			if (currentSecondProbes > maxProbesPerSecond)
+				maxProbesPerSecond = currentSecondProbes;
+		}
+	}
+
+	private void processSlot(long now, Vector<IpmsgContact> probe,
+		Vector<IpmsgContact> timedOut)
+	{
+		ArrayList<IpmsgContact> slot = wheel.get(wheelSlot);
+		if (slot.isEmpty())
+			return;
+		ArrayList<IpmsgContact> due = new ArrayList<IpmsgContact>(slot.size());
+		Iterator<IpmsgContact> it = slot.iterator();
+		while (it.hasNext())
+		{
+			IpmsgContact contact = it.next();
+			if (contact.livenessDeadline > now)
+				continue; // następny obrót koła
+			it.remove();
+			due.add(contact);
+		}
+		scheduledCount -= due.size();
+
+		for (IpmsgContact contact : due)
+		{
+			contact.livenessScheduled = false;
+			if (contact.getStatus() == Contact.UserStatus.OFFLINE)
+				continue;
+
+			long lastSeen = contact.getLastSeen();
+			if (now - lastSeen < refreshInterval)
+			{
+				contact.probesSent = 0;
+				contact.probeSentTime.set(0);
+				schedule(contact, lastSeen + refreshInterval);
+			}
+			else if (contact.probesSent >= confirmMaxCount)
+			{
+				contact.probesSent = 0;
+				contact.probeSentTime.set(0);
+				timedOutCount++;
+				timedOut.add(contact);
+			}
+			else
+			{
+				contact.probesSent++;
+				if (contact.probesSent == 1)
+					contact.probesStartTime = now;
+				// algorytm Karna - mierzymy tylko odpowiedź na pierwsze
+				// zapytanie; czas ustawi ProbeSendListener po wysłaniu
+				contact.probeSentTime.set((contact.probesSent == 1) ? -1 : 0);
+				probe.add(contact);
+				schedule(contact, getProbeDeadline(contact, now));
+			}
+		}
+	}
+
+	/**
+	 * Wyznacza termin odpowiedzi na właśnie wysyłane zapytanie: czas
+	 * odpowiedzi kontaktu (RTO), podwajany z każdym kolejnym zapytaniem. Po
+	 * ostatnim zapytaniu kontakt czeka co najmniej
+	 * {@link IpmsgEntryReplyThread#maxDelay} + RTO od pierwszego zapytania.
+	 *
+	 * @param contact odpytywany kontakt
+	 * @param now bieżący czas
+	 * @return termin odpowiedzi
+	 */
+	private static long getProbeDeadline(IpmsgContact contact, long now)
+	{
+		long rto = contact.rtt.getRTO(confirmTimeout, minConfirmTimeout,
+			maxConfirmTimeout);
+		long timeout = Math.min(rto << Math.min(contact.probesSent - 1, 16),
+			maxConfirmTimeout);
+		long deadline = now + timeout;
+		if (contact.probesSent >= confirmMaxCount)
+			deadline = Math.max(deadline, contact.probesStartTime +
+				IpmsgEntryReplyThread.maxDelay + rto);
+		return deadline;
+	}
+
+	/**
+	 * Zapisuje czas faktycznego wysłania zapytania (a nie jego
+	 * zakolejkowania) - jeżeli jest ono próbką czasu odpowiedzi.
+	 */
+	static class ProbeSendListener implements IpmsgSendThread.SendListener
+	{
+		private final IpmsgContact contact;
+
+		public ProbeSendListener(IpmsgContact contact)
+		{
+			this.contact = contact;
+		}
+
+		public void packetSent(long time)
+		{
+			// jeżeli w międzyczasie wysłano kolejne zapytanie, nie mierzymy
+			contact.probeSentTime.compareAndSet(-1, time);
+		}
+	}
+
+	/**
+	 * Wyznacza terminy zapytań niepotwierdzonym kontaktom - losowo
+	 * w czasie {@link #verifyWindow}.
+	 *
+	 * @param now bieżący czas
+	 */
+	private void scheduleUnconfirmed(long now)
+	{
+		if (unconfirmed.isEmpty())
+			return;
+		for (IpmsgContact contact : unconfirmed)
+		{
+			if (contact.livenessScheduled ||
+				contact.getStatus() == Contact.UserStatus.OFFLINE)
+				continue;
+			schedule(contact, now + random.nextInt(verifyWindow));
+		}
+		unconfirmed.clear();
+	}
+
+	/**
+	 * Wstawia kontakt do koła czasowego.
+	 *
+	 * @param contact kontakt do sprawdzenia
+	 * @param deadline czas sprawdzenia
+	 */
+	private void schedule(IpmsgContact contact, long deadline)
+	{
+		assert(!contact.livenessScheduled);
+		long delay = Math.max(deadline - wheelTime, slotDuration);
+		// zaokrąglenie w górę - szczelina nie może wypaść przed terminem
+		int slot = (int)((wheelSlot + (delay + slotDuration - 1) / slotDuration) %
+			slotsCount);
+		contact.livenessDeadline = deadline;
+		contact.livenessScheduled = true;
+		wheel.get(slot).add(contact);
+		scheduledCount++;
+	}
+
+	private void clearWheel()
+	{
+		for (ArrayList<IpmsgContact> slot : wheel)
+		{
+			for (IpmsgContact contact : slot)
+			{
+				contact.livenessScheduled = false;
+				contact.probesSent = 0;
+			}
+			slot.clear();
+		}
+		scheduledCount = 0;
+	}
+
+	/**
+	 * Powoduje przyspieszenie odświeżania listy - ogłoszenie na broadcast
+	 * zostanie wysłane natychmiast.
+	 *
+	 * @see #discoveryInterval
 	 */
 	public synchronized void speedupRefresh()
 	{
+		discoveryRequested = true;
 		notifyAll();
 	}
 
@@ -164,19 +469,94 @@ class IpmsgContactsThread extends Thread
 	}
 
 	/**
-	 * Potwierdzanie dostępności kontaktu. Wywołana, jeżeli kontakt wysłał
-	 * pakiet typu COMM_ANSENTRY.
+	 * Odnotowuje odebranie pakietu od kontaktu. Jeżeli kontakt jest
+	 * dostępny, a nie ma jeszcze terminu sprawdzenia, zostaje on wyznaczony
+	 * - z losowym przesunięciem, aby kontakty, które pojawiły się
+	 * jednocześnie, nie były później odpytywane jednocześnie.
+	 *
+	 * @param contact kontakt, od którego odebrano pakiet
+	 */
+	public void contactSeen(IpmsgContact contact)
+	{
+		long now = System.currentTimeMillis();
+		contact.setLastSeen(now);
+		if (!contact.isConfirmed())
+			contact.setConfirmed(true);
+		if (contact.livenessScheduled ||
+			contact.getStatus() == Contact.UserStatus.OFFLINE)
+			return;
+		synchronized (this)
+		{
+			if (contact.livenessScheduled || !ipmsgAccount.isConnected())
+				return;
+			schedule(contact, now + refreshInterval +
+				random.nextInt(refreshInterval / 2));
+		}
+	}
+
+	/**
+	 * Odnotowuje natychmiastową odpowiedź kontaktu na zapytanie o dostępność
+	 * (COMM_ANSENTRY z flagą {@link IpmsgPacket#FLAG_UNICASTENTRY}). Tylko
+	 * takie pakiety są próbkami czasu odpowiedzi - inne mogą być wysłane
+	 * niezależnie od zapytania, albo z losowym opóźnieniem.
+	 *
+	 * @param contact kontakt, który odpowiedział
+	 */
+	public void probeAnswered(IpmsgContact contact)
+	{
+		long probeSentTime = contact.probeSentTime.getAndSet(0);
+		if (probeSentTime > 0)
+			contact.rtt.addSample(System.currentTimeMillis() - probeSentTime);
+	}
+
+	/**
+	 * Zleca sprawdzenie kontaktu wczytanego z pliku (niepotwierdzonego)
+	 * - zapytanie zostanie do niego wysłane wkrótce po połączeniu.
+	 *
+	 * @param contact niepotwierdzony kontakt
+	 * @see IpmsgContactCache
+	 */
+	public synchronized void verifyContact(IpmsgContact contact)
+	{
+		if (contact == null)
+			throw new NullPointerException();
+		unconfirmed.add(contact);
+		notifyAll();
+	}
+
+	/**
+	 * Wyznacza termin sprawdzenia kontaktu dodanego z listy pobranej od
+	 * serwera wymiany listy (nic jeszcze od niego nie odebrano). Terminy są
+	 * rozłożone losowo w czasie {@link #refreshInterval}, a zwykle i tak
+	 * wcześniej nadchodzi odpowiedź kontaktu na ogłoszenie o dostępności.
 	 *
-	 * @param contact potwierdzany kontakt
+	 * @param contact kontakt z listy
+	 * @see IpmsgHostList
 	 */
-	public void confirmContact(IpmsgContact contact)
+	public void contactListed(IpmsgContact contact)
 	{
-		if (unconfirmedContacts.isEmpty() ||
-			!unconfirmedContacts.containsKey(contact.getID()))
+		if (contact.livenessScheduled)
 			return;
-		synchronized (unconfirmedContacts)
+		synchronized (this)
 		{
-			unconfirmedContacts.remove(contact.getID());
+			if (contact.livenessScheduled || !ipmsgAccount.isConnected())
+				return;
+			schedule(contact, System.currentTimeMillis() +
+				random.nextInt(refreshInterval));
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Dopisuje statystyki sprawdzania dostępności do raportu.
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	public synchronized void appendStatistics(StringBuilder report)
+	{
+		report.append("Sprawdzanie dostępności\n");
+		report.append("  kontakty w kole: ").append(scheduledCount).append('\n');
+		report.append("  wysłane zapytania: ").append(probesCount).
+			append(" (maks. ").append(maxProbesPerSecond).append("/s)\n");
+		report.append("  kontakty niedostępne: ").append(timedOutCount).append('\n');
+	}
+}
@@ -0,0 +1,218 @@
+package protocols.ipmsg;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Filtr powtórzonych pakietów - pamięta pary (adres IPv4 nadawcy, numer
+ * pakietu) odebrane w ostatnim czasie.
+ *
+ * Wpisy są przechowywane w kole czasowym złożonym z kilku segmentów; każdy
+ * segment to tablica mieszająca o stałej pojemności (adresowanie otwarte, na
+ * typach prostych). Nowe wpisy trafiają do bieżącego segmentu, a co
+ * <code>timeout / segmentsCount</code> najstarszy segment jest czyszczony
+ * i staje się bieżącym. Jeżeli bieżący segment się zapełni, koło jest
+ * obracane wcześniej - dzięki temu zużycie pamięci jest stałe, niezależnie
+ * od czasu działania i natężenia ruchu.
+ *
+ * Klasa nie jest bezpieczna wątkowo.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+class IpmsgDuplicateFilter
+{
+	/**
+	 * Ilość segmentów koła czasowego.
+	 */
+	protected final static int segmentsCount = 5;
+
+	/**
+	 * Pojemność tablicy pojedynczego segmentu (potęga dwójki).
+	 *
+	 * Przy zalewie pakietów koło obraca się po zapełnieniu segmentu, więc
+	 * pamiętanych jest co najmniej <code>(segmentsCount - 1) *
+	 * segmentMaxEntries</code> ostatnich pakietów (49152). Ponowienia tej
+	 * samej wiadomości są rozłożone na najwyżej <code>(maxSendTries - 1) *
+	 * maxRetransmitTimeout</code> = 16 s, co przy 2000 pakietów/s (limit
+	 * wątku wysyłającego) daje 32000 pakietów - okno pokrywa je z zapasem.
+	 *
+	 * @see IpmsgMessagePacket#maxSendTries
+	 * @see IpmsgPostMessageThread#maxRetransmitTimeout
+	 * @see IpmsgSendThread#bulkPacketsPerSecond
+	 */
+	protected final static int segmentCapacity = 16384;
+
+	/**
+	 * Maksymalna ilość wpisów w jednym segmencie (75% pojemności).
+	 */
+	protected final static int segmentMaxEntries = segmentCapacity * 3 / 4;
+
+	/**
+	 * Czas, na jaki segment pozostaje bieżącym, w milisekundach.
+	 */
+	protected final long segmentDuration;
+
+	private final int[][] ips = new int[segmentsCount][segmentCapacity];
+
+	private final long[][] packetNos = new long[segmentsCount][segmentCapacity];
+
+	private final boolean[][] used = new boolean[segmentsCount][segmentCapacity];
+
+	private final int[] entriesCount = new int[segmentsCount];
+
+	/**
+	 * Indeks bieżącego segmentu.
+	 */
+	private int current = 0;
+
+	/**
+	 * Czas, od którego bieżący segment przyjmuje wpisy.
+	 */
+	private long currentSince;
+
+	/**
+	 * Ilość wykrytych powtórzeń. Odczytywana także spoza wątku połączenia
+	 * (statystyki).
+	 */
+	private final AtomicLong duplicatesCount = new AtomicLong();
+
+	/**
+	 * Ilość obrotów koła wymuszonych zapełnieniem segmentu.
+	 */
+	private final AtomicLong forcedRotationsCount = new AtomicLong();
+
+	/**
+	 * Główny konstruktor.
+	 *
+	 * @param timeout minimalny czas (w milisekundach), przez jaki pakiet jest
+	 * pamiętany (przy umiarkowanym natężeniu ruchu)
+	 */
+	public IpmsgDuplicateFilter(long timeout)
+	{
+		if (timeout <= 0)
+			throw new IllegalArgumentException("Nieprawidłowy czas ważności");
+		this.segmentDuration = timeout / (segmentsCount - 1);
+		this.currentSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * Sprawdza, czy pakiet był już odebrany, a jeżeli nie - zapamiętuje go.
+	 *
+	 * @param ip adres IPv4 nadawcy
+	 * @param packetNo numer pakietu
+	 * @param now bieżący czas, w milisekundach
+	 * @return <code>true</code>, jeżeli pakiet jest powtórzeniem
+	 */
+	public boolean checkAndMark(int ip, long packetNo, long now)
+	{
+		advance(now);
+
+		int hash = hash(ip, packetNo);
+		for (int segment = 0; segment < segmentsCount; segment++)
+			if (entriesCount[segment] > 0 && find(segment, ip, packetNo, hash) >= 0)
+			{
+				duplicatesCount.incrementAndGet();
+				return true;
+			}
+
+		if (entriesCount[current] >= segmentMaxEntries)
+		{
+			forcedRotationsCount.incrementAndGet();
+			rotate(now);
+		}
+		insert(current, ip, packetNo, hash);
+		return false;
+	}
+
+	/**
+	 * Obraca koło czasowe, jeżeli minął czas bieżącego segmentu.
+	 *
+	 * @param now bieżący czas, w milisekundach
+	 */
+	private void advance(long now)
+	{
+		if (now < currentSince) // przestawiono zegar
+			currentSince = now;
+		long elapsed = now - currentSince;
+		if (elapsed < segmentDuration)
+			return;
+		long steps = Math.min(elapsed / segmentDuration, segmentsCount);
+		for (long i = 0; i < steps; i++)
+			rotate(now);
+	}
+
+	/**
+	 * Czyści najstarszy segment i czyni go bieżącym.
+	 *
+	 * @param now bieżący czas, w milisekundach
+	 */
+	private void rotate(long now)
+	{
+		current = (current + 1) % segmentsCount;
+		if (entriesCount[current] > 0)
+		{
+			Arrays.fill(used[current], false);
+			entriesCount[current] = 0;
+		}
+		currentSince = now;
+	}
+
+	private static int hash(int ip, long packetNo)
+	{
+		long h = packetNo * 0x9E3779B97F4A7C15L + ip;
+		h ^= (h >>> 29);
+		return (int)(h ^ (h >>> 32));
+	}
+
+	private int find(int segment, int ip, long packetNo, int hash)
+	{
+		boolean[] segUsed = used[segment];
+		int[] segIps = ips[segment];
+		long[] segPacketNos = packetNos[segment];
+		int mask = segmentCapacity - 1;
+		for (int i = hash & mask; segUsed[i]; i = (i + 1) & mask)
+			if (segPacketNos[i] == packetNo && segIps[i] == ip)
+				return i;
+		return -1;
+	}
+
+	private void insert(int segment, int ip, long packetNo, int hash)
+	{
+		boolean[] segUsed = used[segment];
+		int mask = segmentCapacity - 1;
+		int i = hash & mask;
+		while (segUsed[i])
+			i = (i + 1) & mask;
+		segUsed[i] = true;
+		ips[segment][i] = ip;
+		packetNos[segment][i] = packetNo;
+		entriesCount[segment]++;
+	}
+
+	/**
+	 * @return ilość pamiętanych pakietów
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (int count : entriesCount)
+			size += count;
+		return size;
+	}
+
+	/**
+	 * @return ilość wykrytych powtórzeń
+	 */
+	public long getDuplicatesCount()
+	{
+		return duplicatesCount.get();
+	}
+
+	/**
+	 * @return ilość obrotów koła wymuszonych zapełnieniem segmentu
+	 */
+	public long getForcedRotationsCount()
+	{
+		return forcedRotationsCount.get();
+	}
+}
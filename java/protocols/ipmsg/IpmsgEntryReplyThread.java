@@ -0,0 +1,288 @@
+package protocols.ipmsg;
+
+import java.util.*;
+
+import tools.IntHashMap;
+import tools.SwingEventQueue;
+
+/**
+ * Wątek odpowiadający na ogłoszenia o dostępności (COMM_ENTRY) innych
+ * kontaktów.
+ *
+ * Gdy wiele klientów uruchamia się jednocześnie, każdy z nich rozsyła
+ * ogłoszenie na broadcast, a każdy inny odpowiada na nie. Aby odpowiedzi nie
+ * kolidowały ze sobą, są wysyłane z losowym opóźnieniem, proporcjonalnym do
+ * wielkości sieci, kolejne ogłoszenia od kontaktu czekającego na odpowiedź
+ * są łączone w jedną odpowiedź, a ilość odpowiedzi na sekundę jest
+ * ograniczona.
+ *
+ * Zapytania wysłane indywidualnie ({@link IpmsgPacket#FLAG_UNICASTENTRY})
+ * nie trafiają do tego wątku - odpowiedź na nie jest wysyłana od razu.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+class IpmsgEntryReplyThread extends Thread
+{
+	/**
+	 * Opóźnienie odpowiedzi przypadające na jeden dostępny kontakt w sieci,
+	 * w ms.
+	 */
+	protected final static int delayPerContact = 2;
+
+	/**
+	 * Maksymalne losowe opóźnienie odpowiedzi, w ms. Musi być krótsze od
+	 * łącznego czasu, jaki kontakty mają na odpowiedź na zapytania (starsze
+	 * wersje opóźniają także odpowiedzi na zapytania indywidualne).
+	 *
+	 * @see IpmsgContactsThread#confirmMaxCount
+	 */
+	protected final static int maxDelay = 1500;
+
+	/**
+	 * Maksymalna ilość odpowiedzi wysyłanych w ciągu sekundy.
+	 */
+	protected final static int maxRepliesPerSecond = 200;
+
+	/**
+	 * Maksymalna ilość odpowiedzi oczekujących na wysłanie. Nadmiarowe
+	 * odpowiedzi są pomijane.
+	 */
+	protected final static int maxPending = 4096;
+
+	/**
+	 * Co ile ms odświeżana jest wielkość sieci.
+	 */
+	protected final static int networkSizeRefreshInterval = 1000;
+
+	/**
+	 * Konto, w ramach którego są wysyłane odpowiedzi.
+	 */
+	protected final IpmsgAccount ipmsgAccount;
+
+	/**
+	 * Odpowiedzi oczekujące na wysłanie, według czasu wysłania.
+	 */
+	private final PriorityQueue<PendingReply> queue =
+			new PriorityQueue<PendingReply>();
+
+	/**
+	 * Kontakty oczekujące na odpowiedź (klucz: adres kontaktu).
+	 */
+	private final IntHashMap<PendingReply> pending =
+			new IntHashMap<PendingReply>();
+
+	private final Random random = new Random();
+
+	/**
+	 * Ostatnio zmierzona wielkość sieci (ilość dostępnych kontaktów).
+	 */
+	private int networkSize = 0;
+
+	/**
+	 * Czas ostatniego pomiaru wielkości sieci.
+	 */
+	private long networkSizeTime = 0;
+
+	/**
+	 * Początek bieżącej sekundy (do limitu odpowiedzi).
+	 */
+	private long budgetSecond = 0;
+
+	/**
+	 * Ilość odpowiedzi wysłanych w bieżącej sekundzie.
+	 */
+	private int budgetUsed = 0;
+
+	// statystyki
+
+	private long repliesCount = 0;
+
+	private long mergedCount = 0;
+
+	private long droppedCount = 0;
+
+	private long deferredCount = 0;
+
+	private int maxRepliesInSecond = 0;
+
+	/**
+	 * Główny konstruktor.
+	 *
+	 * @param ipmsgAccount konto, w ramach którego mają być wysyłane odpowiedzi
+	 */
+	public IpmsgEntryReplyThread(IpmsgAccount ipmsgAccount)
+	{
+		super("ULC-Ipmsg-EntryReplyThread");
+		if (ipmsgAccount == null)
+			throw new NullPointerException();
+		this.ipmsgAccount = ipmsgAccount;
+		setDaemon(true);
+		start();
+	}
+
+	/**
+	 * Odpowiedź oczekująca na wysłanie.
+	 */
+	static class PendingReply implements Comparable<PendingReply>
+	{
+		public final IpmsgContact contact;
+
+		public long sendTime;
+
+		public PendingReply(IpmsgContact contact, long sendTime)
+		{
+			this.contact = contact;
+			this.sendTime = sendTime;
+		}
+
+		public int compareTo(PendingReply o)
+		{
+			if (sendTime < o.sendTime)
+				return -1;
+			if (sendTime > o.sendTime)
+				return 1;
+			return 0;
+		}
+	}
+
+	/**
+	 * Planuje odpowiedź na ogłoszenie kontaktu. Jeżeli kontakt już czeka na
+	 * odpowiedź, nowe ogłoszenie jest do niej dołączane.
+	 *
+	 * @param contact kontakt, który wysłał ogłoszenie
+	 */
+	public synchronized void scheduleReply(IpmsgContact contact)
+	{
+		if (contact == null)
+			throw new NullPointerException();
+		if (pending.containsKey(contact.getAddress()))
+		{
+			mergedCount++;
+			return;
+		}
+		if (pending.size() >= maxPending)
+		{
+			droppedCount++;
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		int window = Math.min(maxDelay, getNetworkSize(now) * delayPerContact);
+		long sendTime = now + ((window > 0) ? random.nextInt(window + 1) : 0);
+
+		PendingReply reply = new PendingReply(contact, sendTime);
+		pending.put(contact.getAddress(), reply);
+		queue.add(reply);
+		if (queue.peek() == reply)
+			notifyAll();
+	}
+
+	/**
+	 * Zwraca (odświeżaną co jakiś czas) wielkość sieci.
+	 *
+	 * @param now bieżący czas
+	 * @return ilość dostępnych kontaktów
+	 */
+	private int getNetworkSize(long now)
+	{
+		if (now - networkSizeTime >= networkSizeRefreshInterval ||
+			now < networkSizeTime)
+		{
+			networkSize = ipmsgAccount.getOnlineContactsCount();
+			networkSizeTime = now;
+		}
+		return networkSize;
+	}
+
+	/**
+	 * Czeka na odpowiedź, którą można już wysłać.
+	 *
+	 * @return kontakt, do którego należy wysłać odpowiedź
+	 * @throws InterruptedException jeżeli przerwano wątek
+	 */
+	private synchronized IpmsgContact takeNext() throws InterruptedException
+	{
+		while (true)
+		{
+			PendingReply head = queue.peek();
+			long now = System.currentTimeMillis();
+			if (head == null)
+			{
+				wait();
+				continue;
+			}
+			if (head.sendTime > now)
+			{
+				wait(head.sendTime - now);
+				continue;
+			}
+
+			if (now - budgetSecond >= 1000 || now < budgetSecond)
+			{
+				budgetSecond = now;
+				budgetUsed = 0;
+			}
+			if (budgetUsed >= maxRepliesPerSecond)
+			{
+				// limit wyczerpany - przesuwamy odpowiedź na następną sekundę
+				queue.poll();
+				head.sendTime = budgetSecond + 1000 + random.nextInt(1000);
+				queue.add(head);
+				deferredCount++;
+				continue;
+			}
+
+			budgetUsed++;
+			if (budgetUsed > maxRepliesInSecond)
+				maxRepliesInSecond = budgetUsed;
+			repliesCount++;
+			queue.poll();
+			pending.remove(head.contact.getAddress());
+			return head.contact;
+		}
+	}
+
+	/**
+	 * Usuwa wszystkie oczekujące odpowiedzi (np. po rozłączeniu).
+	 */
+	public synchronized void clear()
+	{
+		queue.clear();
+		pending.clear();
+	}
+
+	@Override public void run()
+	{
+		SwingEventQueue.markNonBlockingThread();
+		while (true)
+		{
+			IpmsgContact contact;
+			try
+			{
+				contact = takeNext();
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+			ipmsgAccount.statusNotify(IpmsgPacket.COMM_ANSENTRY, contact);
+		}
+	}
+
+	/**
+	 * Dopisuje statystyki odpowiedzi do raportu.
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	public synchronized void appendStatistics(StringBuilder report)
+	{
+		report.append("Odpowiedzi na COMM_ENTRY (sieć: ").append(networkSize).
+			append(" kontaktów)\n");
+		report.append("  oczekujące: ").append(pending.size()).append('\n');
+		report.append("  wysłane: ").append(repliesCount).
+			append(" (maks. ").append(maxRepliesInSecond).append("/s)\n");
+		report.append("  połączone: ").append(mergedCount).
+			append(", pominięte: ").append(droppedCount).
+			append(", przesunięte: ").append(deferredCount).append('\n');
+	}
+}
@@ -23,21 +23,30 @@ class IpmsgFileListSendRequestHeader
 	 */
 	public static IpmsgFileListSendRequestHeader fromRawData(String data)
 	{
-		String[] lines = data.split("\007");
-
 		IpmsgFileListSendRequestHeader fileListHeader = new IpmsgFileListSendRequestHeader();
 
-		for(String line: lines)
+		// puste sekcje na końcu są pomijane
+		int end = data.length();
+		while (end > 0 && data.charAt(end - 1) == '\007')
+			end--;
+
+		int from = 0;
+		do
 		{
+			int lineEnd = data.indexOf('\007', from);
+			if (lineEnd < 0 || lineEnd > end)
+				lineEnd = end;
 			try
 			{
-				fileListHeader.headerList.add(IpmsgFileSendRequestHeader.fromRawData(line));
+				fileListHeader.headerList.add(IpmsgFileSendRequestHeader.fromRawData(data, from, lineEnd));
 			}
 			catch(IllegalArgumentException ex)
 			{
 				throw new IllegalArgumentException("Blad przy parsowaniu naglowkow listy plikow", ex);
 			}
+			from = lineEnd + 1;
 		}
+		while (from < end);
 
 		return fileListHeader;
 	}
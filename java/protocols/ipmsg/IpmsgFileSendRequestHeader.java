@@ -1,5 +1,7 @@
 package protocols.ipmsg;
 
+import java.util.ArrayList;
+
 /**
  * Reprezentuje nagłówek przesyłany podczas żądania wysłania pliku.
  * Dołączany jako kombinacja do danych pakietu przez osobę chcącą wysłać plik.
@@ -51,14 +53,30 @@ class IpmsgFileSendRequestHeader
 	 * @return obiekt nagłówka
 	 */
 	public static IpmsgFileSendRequestHeader fromRawData(String data)
+	{
+		return fromRawData(data, 0, data.length());
+	}
+
+	/**
+	 * Konstruktor nagłówka dla pakietów odbieranych, parsujący fragment
+	 * tekstu. Pola liczbowe są parsowane w miejscu, bez dzielenia tekstu.
+	 *
+	 * @param data dane, których fragment należy zparsować
+	 * @param from indeks początku nagłówka (włącznie)
+	 * @param to indeks końca nagłówka (wyłącznie)
+	 * @return obiekt nagłówka
+	 */
+	public static IpmsgFileSendRequestHeader fromRawData(String data, int from, int to)
 	{
 		IpmsgFileSendRequestHeader header = new IpmsgFileSendRequestHeader();
 
-		int i = data.indexOf(":");
+		int i = data.indexOf(':', from);
+		if (i < 0 || i >= to)
+			throw new IllegalArgumentException("Pole fileID jest niepoprawne");
 
 		try
 		{
-			header.fileID = Long.parseLong(data.substring(0, i++), 16);
+			header.fileID = IpmsgPacketCodec.parseLong(data, from, i++, 16);
 		}
 		catch(NumberFormatException ex)
 		{
@@ -66,15 +84,17 @@ class IpmsgFileSendRequestHeader
 		}
 
 		int j = i;
-		
-		while(j < data.length())
+		boolean escaped = false;
+
+		while(j < to)
 		{
 			if(data.charAt(j) == ':')
 			{
-				if(j > data.length() - 2 || data.charAt(j + 1) != ':')
+				if(j > to - 2 || data.charAt(j + 1) != ':')
 					break;
 				else
 				{
+					escaped = true;
 					j += 2;
 					continue;
 				}
@@ -82,30 +102,52 @@ class IpmsgFileSendRequestHeader
 			j++;
 		}
 
-		header.fileName = data.substring(i, j).replace("::", ":");
-
-		String fields[] = data.substring(++j).split(":");
+		if (escaped)
+			header.fileName = data.substring(i, j).replace("::", ":");
+		else
+			header.fileName = data.substring(i, j);
 
-		if(fields.length < 3)
-			throw new IllegalArgumentException("Niepoprawna liczba sekcji");
-
-		try
-		{
-			header.fileSize = Long.parseLong(fields[0], 16);
-			header.modificationTime = Long.parseLong(fields[1], 16);
-			header.fileAttribute = Long.parseLong(fields[2], 16);
-		}
-		catch(NumberFormatException ex)
+		// pola fileSize, modificationTime i fileAttribute
+		long[] numericFields = new long[3];
+		int fieldStart = j + 1;
+		for (int k = 0; k < 3; k++)
 		{
-			throw new IllegalArgumentException("Niepoprawne pole fileSize," +
-					"modificationTime, badz fileAttribute");
+			if (fieldStart >= to)
+				throw new IllegalArgumentException("Niepoprawna liczba sekcji");
+			int fieldEnd = data.indexOf(':', fieldStart);
+			if (fieldEnd < 0 || fieldEnd > to)
+				fieldEnd = to;
+			try
+			{
+				numericFields[k] = IpmsgPacketCodec.parseLong(data, fieldStart, fieldEnd, 16);
+			}
+			catch(NumberFormatException ex)
+			{
+				throw new IllegalArgumentException("Niepoprawne pole fileSize," +
+						"modificationTime, badz fileAttribute");
+			}
+			fieldStart = fieldEnd + 1;
 		}
-
-		if(fields.length > 3)
+		header.fileSize = numericFields[0];
+		header.modificationTime = numericFields[1];
+		header.fileAttribute = numericFields[2];
+
+		// atrybuty dodatkowe (puste pola na końcu są pomijane)
+		int attributesEnd = to;
+		while (attributesEnd > fieldStart && data.charAt(attributesEnd - 1) == ':')
+			attributesEnd--;
+		if(fieldStart < attributesEnd)
 		{
-			header.extendedAttributes = new String[fields.length - 3];
-			for(int k = 0; k < fields.length - 3; k++)
-				header.extendedAttributes[k] = fields[k + 3].trim();
+			ArrayList<String> attributes = new ArrayList<String>();
+			while (fieldStart <= attributesEnd)
+			{
+				int fieldEnd = data.indexOf(':', fieldStart);
+				if (fieldEnd < 0 || fieldEnd > attributesEnd)
+					fieldEnd = attributesEnd;
+				attributes.add(data.substring(fieldStart, fieldEnd).trim());
+				fieldStart = fieldEnd + 1;
+			}
+			header.extendedAttributes = attributes.toArray(new String[attributes.size()]);
 		}
 
 		return header;
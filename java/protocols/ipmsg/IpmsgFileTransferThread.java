@@ -3,6 +3,8 @@ package protocols.ipmsg;
 import java.io.*;
 import java.net.*;
 
+import tools.SwingEventQueue;
+
 /**
  * Klasa zajmująca się transferem pliku w obrębie danego konta użytkownika.
  *
@@ -49,6 +51,7 @@ public class IpmsgFileTransferThread extends Thread
 
 	@Override public void run()
 	{
+		SwingEventQueue.markNonBlockingThread();
 		Socket socket = null;
 
 		try
@@ -123,6 +126,7 @@ public class IpmsgFileTransferThread extends Thread
 
 		@Override public void run()
 		{
+			SwingEventQueue.markNonBlockingThread();
 			byte[] buffer = new byte[bufferSize];
 			int readSize, currentSize = 0;
 
@@ -170,7 +174,7 @@ public class IpmsgFileTransferThread extends Thread
 					return;
 				}
 
-				IpmsgSentFile file = account.getSentFile(socket.getInetAddress().getHostAddress(), header);
+				IpmsgSentFile file = account.getSentFile(socket.getInetAddress(), header);
 				// Jesli pliku nie zadeklarowano do wysłania to konczymy
 				if (file == null)
 				{
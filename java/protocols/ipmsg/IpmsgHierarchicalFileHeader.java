@@ -2,6 +2,7 @@ package protocols.ipmsg;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.nio.ByteBuffer;
 
 /**
  * Reprezentuje nagłówek identyfikujący przesyłany plik
@@ -49,27 +50,42 @@ class IpmsgHierarchicalFileHeader
 		if (data == null)
 			throw new NullPointerException();
 
-		String[] splittedData = (new String(data, 0, length, IpmsgPacket.protocolCharset)).split(":");
+		// puste pola na końcu są pomijane
+		while (length > 0 && data[length - 1] == ':')
+			length--;
 
-		if (splittedData.length < 4)
-			throw new IllegalArgumentException("Nieprawidlowa liczba sekcji");
+		int[] separators = new int[3];
+		int pos = 0;
+		for (int i = 0; i < 3; i++)
+		{
+			while (pos < length && data[pos] != ':')
+				pos++;
+			if (pos >= length)
+				throw new IllegalArgumentException("Nieprawidlowa liczba sekcji");
+			separators[i] = pos++;
+		}
+		int attributeEnd = pos;
+		while (attributeEnd < length && data[attributeEnd] != ':')
+			attributeEnd++;
 
 		IpmsgHierarchicalFileHeader header = new IpmsgHierarchicalFileHeader();
+		ByteBuffer buff = ByteBuffer.wrap(data, 0, length);
 
 		try
 		{
-			header.headerSize = Long.parseLong(splittedData[0], 16);
+			header.headerSize = IpmsgPacketCodec.parseLong(buff, 0, separators[0], 16);
 		}
 		catch (NumberFormatException ex)
 		{
 			throw new IllegalArgumentException("Nieprawidlowy rozmiar naglowka", ex);
 		}
 
-		header.fileName = splittedData[1].trim();
+		header.fileName = new String(data, separators[0] + 1,
+			separators[1] - separators[0] - 1, IpmsgPacket.protocolCharset).trim();
 
 		try
 		{
-			header.fileSize = Long.parseLong(splittedData[2], 16);
+			header.fileSize = IpmsgPacketCodec.parseLong(buff, separators[1] + 1, separators[2], 16);
 		}
 		catch (NumberFormatException ex)
 		{
@@ -78,7 +94,7 @@ class IpmsgHierarchicalFileHeader
 
 		try
 		{
-			header.fileAttribute = Long.parseLong(splittedData[3], 16);
+			header.fileAttribute = IpmsgPacketCodec.parseLong(buff, separators[2] + 1, attributeEnd, 16);
 		}
 		catch (NumberFormatException ex)
 		{
@@ -94,11 +110,13 @@ class IpmsgHierarchicalFileHeader
 				(!header.fileName.equals(".") || header.fileSize != 0))
 			throw new IllegalArgumentException("");
 
-		if (splittedData.length > 4)
+		if (attributeEnd < length)
 		{
-			header.extendedAttributes = new String[splittedData.length - 4];
-			for(int i = 4; i < splittedData.length; i++)
-				header.extendedAttributes[i - 4] = splittedData[i].trim();
+			String[] splittedData = (new String(data, attributeEnd + 1,
+				length - attributeEnd - 1, IpmsgPacket.protocolCharset)).split(":");
+			header.extendedAttributes = new String[splittedData.length];
+			for(int i = 0; i < splittedData.length; i++)
+				header.extendedAttributes[i] = splittedData[i].trim();
 		}
 
 		return header;
@@ -147,8 +165,42 @@ class IpmsgHierarchicalFileHeader
 	 * Serializuje obiekt nagłówka do tablicy bajtów.
 	 *
 	 * @return zserialozowany obiekt nagłówka
+	 * @see #writeRawData(IpmsgPacketCodec, ByteBuffer)
 	 */
 	public byte[] toRawData()
+	{
+		ByteBuffer buff = ByteBuffer.allocate(getRawDataLengthBound());
+		writeRawData(new IpmsgPacketCodec(), buff);
+		byte[] raw = new byte[buff.position()];
+		buff.flip();
+		buff.get(raw);
+		return raw;
+	}
+
+	/**
+	 * Zwraca górne ograniczenie rozmiaru zserializowanego nagłówka.
+	 *
+	 * @return maksymalny rozmiar nagłówka, w bajtach
+	 */
+	public int getRawDataLengthBound()
+	{
+		int chars = fileName.length();
+		if (extendedAttributes != null)
+			for (String extendedAttribute: extendedAttributes)
+				chars += extendedAttribute.length() + 1;
+		return 8 + 2 * 16 + 4 + (int)(chars * IpmsgPacket.protocolMaxBytesPerChar);
+	}
+
+	/**
+	 * Serializuje obiekt nagłówka do bufora podanego przez wywołującego, od
+	 * jego bieżącej pozycji.
+	 *
+	 * @param codec koder, przy użyciu którego zapisać nagłówek
+	 * @param buff bufor docelowy
+	 * @throws java.nio.BufferOverflowException jeżeli nagłówek nie mieści się
+	 * w buforze
+	 */
+	public void writeRawData(IpmsgPacketCodec codec, ByteBuffer buff)
 	{
 		headerSize = fileName.length() +
 				Long.toHexString(fileSize).length() +
@@ -156,23 +208,20 @@ class IpmsgHierarchicalFileHeader
 		if (extendedAttributes != null)
 			for(String extendedAttribute: extendedAttributes)
 				headerSize += extendedAttribute.length() + 1;
-		StringBuilder builder = new StringBuilder("");
-		builder.append(String.format("%08x", headerSize));
-		builder.append(":");
-		builder.append(fileName);
-		builder.append(":");
-		builder.append(Long.toHexString(fileSize));
-		builder.append(":");
-		builder.append(Long.toHexString(fileAttribute));
+		codec.putLong(buff, headerSize, 16, 8);
+		buff.put((byte)':');
+		codec.encodeString(fileName, buff);
+		buff.put((byte)':');
+		codec.putLong(buff, fileSize, 16);
+		buff.put((byte)':');
+		codec.putLong(buff, fileAttribute, 16);
 
 		if (extendedAttributes != null)
 			for (String extendedAttribute: extendedAttributes)
 			{
-				builder.append(":");
-				builder.append(extendedAttribute);
+				buff.put((byte)':');
+				codec.encodeString(extendedAttribute, buff);
 			}
-		builder.append(":");
-
-		return builder.toString().getBytes(IpmsgPacket.protocolCharset);
+		buff.put((byte)':');
 	}
 }
@@ -0,0 +1,442 @@
+package protocols.ipmsg;
+
+import java.net.UnknownHostException;
+import java.util.*;
+
+import main.Configuration;
+import net.InterfaceInfoProvider;
+import protocols.ConnectionLostException;
+import protocols.Contact;
+
+/**
+ * Wymiana listy kontaktów (COMM_BR_ISGETLIST2, COMM_OKGETLIST, COMM_GETLIST,
+ * COMM_ANSLIST).
+ *
+ * Klient po połączeniu pyta na broadcast o serwer listy, a od pierwszego,
+ * który się zgłosi, pobiera (stronami) listę dostępnych kontaktów - dzięki
+ * temu lista jest wypełniona od razu, zanim odpowiedzą na ogłoszenie
+ * wszystkie kontakty w sieci.
+ *
+ * Każdy klient UniLANChat jest też serwerem listy (flaga FLAG_SERVER
+ * w powiadomieniach o obecności). Aby na zapytanie nowego klienta nie
+ * odpowiadały wszystkie serwery w sieci, każdy odpowiada z takim
+ * prawdopodobieństwem, aby odpowiedziało średnio
+ * {@link #expectedResponders}.
+ *
+ * Format danych COMM_ANSLIST (zgodny z ipmsg): numer początku następnej
+ * strony (0 - ostatnia strona) i ilość wpisów, a po nich wpisy - każdy
+ * składa się z nazwy użytkownika, nazwy hosta, flag statusu, adresu IPv4,
+ * portu, nicka i grupy. Wszystkie pola są zakończone znakiem '\a', a puste
+ * pola zastępuje znak '\b'.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+class IpmsgHostList
+{
+	/**
+	 * Separator pól listy.
+	 */
+	protected final static char separator = '\u0007';
+
+	/**
+	 * Zastępnik pustego pola listy.
+	 */
+	protected final static String emptyField = "\b";
+
+	/**
+	 * Ilość pól jednego wpisu listy.
+	 */
+	protected final static int entryFields = 7;
+
+	/**
+	 * Maksymalna długość danych jednej strony listy, w znakach (tyle, ile
+	 * przyjmują starsze wersje ipmsg).
+	 */
+	protected final static int maxPageLength = 8000;
+
+	/**
+	 * Ile serwerów listy ma średnio odpowiedzieć na jedno zapytanie.
+	 */
+	protected final static int expectedResponders = 3;
+
+	/**
+	 * Ile ms czekamy na zgłoszenie serwera lub kolejną stronę listy.
+	 */
+	protected final static int fetchTimeout = 2000;
+
+	/**
+	 * Konto, w ramach którego wymieniana jest lista.
+	 */
+	protected final IpmsgAccount ipmsgAccount;
+
+	/**
+	 * Czy trwa pobieranie listy.
+	 */
+	private boolean fetching = false;
+
+	/**
+	 * Serwer, od którego pobieramy listę, lub <code>null</code>, jeżeli
+	 * jeszcze się żaden nie zgłosił.
+	 */
+	private IpmsgContact fetchServer;
+
+	/**
+	 * Numer pierwszego wpisu strony, o którą poprosiliśmy serwer.
+	 */
+	private int fetchPageStart = 0;
+
+	/**
+	 * Termin zgłoszenia serwera lub nadejścia kolejnej strony.
+	 */
+	private long fetchDeadline = 0;
+
+	/**
+	 * Początek pobierania listy.
+	 */
+	private long fetchStart = 0;
+
+	private final Random random = new Random();
+
+	// statystyki
+
+	private long offersSent = 0;
+
+	private long pagesSent = 0;
+
+	private long pagesReceived = 0;
+
+	private long hostsReceived = 0;
+
+	private long lastFetchTime = -1;
+
+	/**
+	 * Główny konstruktor.
+	 *
+	 * @param ipmsgAccount konto, w ramach którego wymieniana jest lista
+	 */
+	public IpmsgHostList(IpmsgAccount ipmsgAccount)
+	{
+		if (ipmsgAccount == null)
+			throw new NullPointerException();
+		this.ipmsgAccount = ipmsgAccount;
+	}
+
+	/**
+	 * Rozpoczyna pobieranie listy - wysyła na broadcast zapytanie o serwer.
+	 */
+	public void requestList()
+	{
+		synchronized (this)
+		{
+			long now = System.currentTimeMillis();
+			fetching = true;
+			fetchServer = null;
+			fetchPageStart = 0;
+			fetchStart = now;
+			fetchDeadline = now + fetchTimeout;
+		}
+		send(IpmsgPacket.COMM_BR_ISGETLIST2, "", null, IpmsgSendThread.Lane.PRESENCE);
+	}
+
+	/**
+	 * Sprawdza, czy pobieranie listy jest w toku (i nie minął jego termin).
+	 *
+	 * @param now bieżący czas
+	 * @return <code>true</code>, jeżeli lista jest pobierana
+	 */
+	private boolean isFetching(long now)
+	{
+		if (fetching && now > fetchDeadline)
+			fetching = false;
+		return fetching;
+	}
+
+	/**
+	 * Obsługuje zapytanie o serwer listy (COMM_BR_ISGETLIST lub
+	 * COMM_BR_ISGETLIST2).
+	 *
+	 * @param contact kontakt pytający o serwer
+	 */
+	public void gotListServerQuery(IpmsgContact contact)
+	{
+		synchronized (this)
+		{
+			if (isFetching(System.currentTimeMillis())) // sami nie mamy listy
+				return;
+			int online = 0, servers = 0;
+			for (IpmsgContact listed : ipmsgAccount.getOnlineContacts())
+			{
+				online++;
+				if (listed.listServer)
+					servers++;
+			}
+			if (online == 0)
+				return;
+			if (servers > expectedResponders &&
+				random.nextInt(servers) >= expectedResponders)
+				return;
+			offersSent++;
+		}
+		send(IpmsgPacket.COMM_OKGETLIST, "", contact, IpmsgSendThread.Lane.CONTROL);
+	}
+
+	/**
+	 * Obsługuje zgłoszenie serwera listy (COMM_OKGETLIST). Lista jest
+	 * pobierana od pierwszego serwera, który się zgłosi.
+	 *
+	 * @param contact serwer listy
+	 */
+	public void gotListServerOffer(IpmsgContact contact)
+	{
+		synchronized (this)
+		{
+			long now = System.currentTimeMillis();
+			if (!isFetching(now) || fetchServer != null)
+				return;
+			fetchServer = contact;
+			fetchPageStart = 0;
+			fetchDeadline = now + fetchTimeout;
+		}
+		send(IpmsgPacket.COMM_GETLIST, "0", contact, IpmsgSendThread.Lane.CONTROL);
+	}
+
+	/**
+	 * Obsługuje żądanie strony listy (COMM_GETLIST) - odsyła stronę listy
+	 * dostępnych kontaktów, zaczynając od podanego numeru.
+	 *
+	 * @param contact kontakt żądający listy
+	 * @param data numer pierwszego wpisu strony
+	 */
+	public void gotListRequest(IpmsgContact contact, String data)
+	{
+		int start;
+		try
+		{
+			start = Math.max(0, Integer.parseInt(data.trim()));
+		}
+		catch (NumberFormatException e)
+		{
+			start = 0;
+		}
+
+		List<IpmsgContact> online = ipmsgAccount.getOnlineContacts();
+		Vector<IpmsgContact> listed = new Vector<IpmsgContact>(online.size());
+		for (IpmsgContact onlineContact : online)
+			// adresy IPv6 mają znaczenie tylko w lokalnym łączu, a kontakty
+			// niepotwierdzone mogą być już niedostępne
+			if (onlineContact.getAddress() >= IpmsgAddressCache.ipv6AddressesEnd &&
+				onlineContact != contact && onlineContact.confirmed)
+				listed.add(onlineContact);
+		// stała kolejność, aby kolejne strony do siebie pasowały
+		Collections.sort(listed, new Comparator<IpmsgContact>()
+		{
+			public int compare(IpmsgContact a, IpmsgContact b)
+			{
+				long diff = (a.getAddress() & 0xFFFFFFFFL) -
+					(b.getAddress() & 0xFFFFFFFFL);
+				return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+			}
+		});
+
+		StringBuilder entries = new StringBuilder();
+		int count = 0;
+		int next = start;
+		for (; next < listed.size(); next++)
+		{
+			int length = entries.length();
+			appendEntry(entries, listed.get(next));
+			if (entries.length() > maxPageLength && count > 0)
+			{
+				entries.setLength(length);
+				break;
+			}
+			count++;
+		}
+		if (next >= listed.size())
+			next = 0;
+
+		StringBuilder page = new StringBuilder(entries.length() + 16);
+		page.append(next).append(separator).append(count).append(separator);
+		page.append(entries);
+
+		synchronized (this)
+		{
+			pagesSent++;
+		}
+		send(IpmsgPacket.COMM_ANSLIST, page.toString(), contact,
+			IpmsgSendThread.Lane.PRESENCE);
+	}
+
+	/**
+	 * Dopisuje wpis kontaktu do strony listy.
+	 *
+	 * @param page strona listy
+	 * @param contact kontakt
+	 */
+	private static void appendEntry(StringBuilder page, IpmsgContact contact)
+	{
+		long flags = IpmsgPacket.FLAG_FILEATTACH;
+		if (contact.getStatus() == Contact.UserStatus.BUSY)
+			flags |= IpmsgPacket.FLAG_ABSENCE;
+		if (contact.listServer)
+			flags |= IpmsgPacket.FLAG_SERVER;
+		if (contact.multicastMember)
+			flags |= IpmsgPacket.FLAG_MULTICASTGROUP;
+
+		String nick = contact.getName();
+		String textStatus = contact.textStatus;
+		if (!textStatus.isEmpty())
+			nick = nick + '[' + textStatus + ']';
+
+		appendField(page, contact.userName);
+		appendField(page, contact.hostName);
+		page.append(flags).append(separator);
+		page.append(contact.getIP()).append(separator);
+		page.append(IpmsgConnectionThread.port).append(separator);
+		appendField(page, nick);
+		appendField(page, contact.getGroup());
+	}
+
+	private static void appendField(StringBuilder page, String field)
+	{
+		if (field == null || field.isEmpty())
+			page.append(emptyField);
+		else
+			page.append(field.replace(separator, ' '));
+		page.append(separator);
+	}
+
+	/**
+	 * Obsługuje stronę listy (COMM_ANSLIST) - dodaje wymienione w niej
+	 * kontakty i żąda kolejnej strony. Przyjmowane są tylko strony od
+	 * serwera, którego zgłoszenie (COMM_OKGETLIST) przyjęliśmy, i tylko ta,
+	 * o którą poprosiliśmy (numer kolejnej strony musi się zgadzać z ilością
+	 * wpisów) - powtórzone lub niezamówione strony są odrzucane.
+	 *
+	 * @param contact serwer listy
+	 * @param data dane strony
+	 */
+	public void gotList(IpmsgContact contact, String data)
+	{
+		String[] fields = data.split(String.valueOf(separator), -1);
+		if (fields.length < 2)
+			return;
+		int next, count;
+		try
+		{
+			next = Integer.parseInt(fields[0].trim());
+			count = Integer.parseInt(fields[1].trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return;
+		}
+
+		boolean finished;
+		synchronized (this)
+		{
+			long now = System.currentTimeMillis();
+			if (!isFetching(now) || fetchServer != contact)
+				return;
+			finished = (next <= 0);
+			if (!finished && (count <= 0 || next != fetchPageStart + count))
+				return;
+			fetchPageStart = next;
+			fetchDeadline = now + fetchTimeout;
+			pagesReceived++;
+			if (finished)
+			{
+				fetching = false;
+				lastFetchTime = now - fetchStart;
+			}
+		}
+
+		int added = 0;
+		for (int i = 2; i + entryFields <= fields.length; i += entryFields)
+		{
+			try
+			{
+				int address = InterfaceInfoProvider.parseIPv4(fields[i + 3].trim());
+				if (InterfaceInfoProvider.isLocalAdress(address))
+					continue;
+				IpmsgPacket entry = new IpmsgPacket(0);
+				entry.commandFlags = Long.parseLong(fields[i + 2].trim()) &
+					IpmsgPacket.optMask;
+				entry.setCommand(IpmsgPacket.COMM_ANSENTRY);
+				entry.userName = getField(fields[i]);
+				entry.hostName = getField(fields[i + 1]);
+				entry.data = getField(fields[i + 5]) + '\0' + getField(fields[i + 6]);
+				entry.ipAddress = address;
+				entry.ip = ipmsgAccount.addressCache.get(address).ip;
+				if (ipmsgAccount.gotListedContact(entry))
+					added++;
+			}
+			catch (UnknownHostException e)
+			{
+			}
+			catch (NumberFormatException e)
+			{
+			}
+		}
+
+		synchronized (this)
+		{
+			hostsReceived += added;
+		}
+		if (!finished)
+			send(IpmsgPacket.COMM_GETLIST, Integer.toString(next), contact,
+				IpmsgSendThread.Lane.CONTROL);
+	}
+
+	private static String getField(String field)
+	{
+		if (field.equals(emptyField))
+			return "";
+		return field;
+	}
+
+	/**
+	 * Wysyła pakiet wymiany listy.
+	 *
+	 * @param command polecenie
+	 * @param data dane pakietu
+	 * @param contact odbiorca (<code>null</code>, jeżeli broadcast)
+	 * @param lane pas, którym wysłać pakiet
+	 */
+	private void send(int command, String data, IpmsgContact contact,
+		IpmsgSendThread.Lane lane)
+	{
+		IpmsgPacket packet = new IpmsgPacket(Configuration.getInstance().getNick());
+		packet.setCommand(command);
+		packet.data = data;
+		if (contact != null)
+		{
+			packet.ip = contact.getIP();
+			packet.ipAddress = contact.getAddress();
+		}
+		try
+		{
+			ipmsgAccount.sendPacket(packet, lane);
+		}
+		catch (ConnectionLostException e)
+		{
+		}
+	}
+
+	/**
+	 * Dopisuje statystyki wymiany listy do raportu.
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	public synchronized void appendStatistics(StringBuilder report)
+	{
+		report.append("Wymiana listy kontaktów\n");
+		report.append("  zgłoszenia jako serwer: ").append(offersSent).
+			append(", wysłane strony: ").append(pagesSent).append('\n');
+		report.append("  odebrane strony: ").append(pagesReceived).
+			append(", dodane kontakty: ").append(hostsReceived);
+		if (lastFetchTime >= 0)
+			report.append(", czas pobierania: ").append(lastFetchTime).append(" ms");
+		report.append('\n');
+	}
+}
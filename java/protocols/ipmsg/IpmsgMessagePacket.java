@@ -5,17 +5,19 @@ import java.util.Vector;
 
 import main.Configuration;
 import protocols.*;
+import tools.IntHashMap;
 
 /**
  * Klasa pomocnicza przechowująca wiadomość do wysłania, listę odbiorców
- * oraz licznik prób.
+ * oraz stan doręczenia do każdego z nich.
  *
  * @author Tomasz Wasilczyk (www.wasilczyk.pl)
  */
 class IpmsgMessagePacket
 {
 	/**
-	 * Maksymalna ilość prób, w ilu jest wysyłana wiadomość.
+	 * Maksymalna ilość prób, w ilu jest wysyłana wiadomość do jednego
+	 * odbiorcy.
 	 */
 	protected final static int maxSendTries = 5;
 
@@ -30,6 +32,13 @@ class IpmsgMessagePacket
 	 */
 	public final Vector<IpmsgContact> receivers = new Vector<IpmsgContact>();
 
+	/**
+	 * Czy wiadomość jest wysyłana do pokoju publicznego - wtedy pierwsza
+	 * próba to jeden pakiet na broadcast, a ponawiane są tylko doręczenia do
+	 * odbiorców, którzy go nie potwierdzili.
+	 */
+	public final boolean broadcast;
+
 	/**
 	 * Wysyłana wiadomość wychodząca.
 	 */
@@ -41,9 +50,11 @@ class IpmsgMessagePacket
 	public final IpmsgAccount ipmsgAccount;
 
 	/**
-	 * Aktualna ilość prób wysyłania.
+	 * Doręczenia oczekujące na potwierdzenie. Klucz: adres odbiorcy.
+	 * Synchronizacja na obiekcie {@link IpmsgPostMessageThread}.
 	 */
-	protected int sendTries = 0;
+	final IntHashMap<IpmsgPostMessageThread.Delivery> pendingDeliveries =
+			new IntHashMap<IpmsgPostMessageThread.Delivery>();
 
 	/**
 	 * Główny konstruktor.
@@ -61,9 +72,11 @@ class IpmsgMessagePacket
 		{
 			receivers.addAll(ipmsgAccount.getOnlineContacts());
 			packet.setFlag(IpmsgPacket.FLAG_MULTICAST, true); // FLAG_BROADCAST ignoruje flagę FLAG_SENDCHECK
+			broadcast = true;
 		}
 		else
 		{
+			broadcast = false;
 			if (room instanceof PrivateChatRoom)
 				// zakładamy, że dostarczono pokój do rozmowy prywatnej z innym
 				// użytkownikiem ipmsg
@@ -115,26 +128,31 @@ class IpmsgMessagePacket
 	}
 
 	/**
-	 * Pobiera identyfikator wiadomości (czyli pakietu wychodzącego).
+	 * Zserializowany pakiet - tworzony raz, używany dla wszystkich odbiorców
+	 * i prób.
+	 */
+	private IpmsgPacketImage image;
+
+	/**
+	 * Pobiera zserializowany pakiet wiadomości. Pakiet nie powinien być już
+	 * modyfikowany.
 	 *
-	 * @return identyfikator
+	 * @return obraz pakietu
 	 */
-	public long getID()
+	public synchronized IpmsgPacketImage getImage()
 	{
-		return packet.packetNo;
+		if (image == null)
+			image = ipmsgAccount.createPacketImage(packet);
+		return image;
 	}
 
 	/**
-	 * Sprawdza, czy można jeszcze raz spróbować wysłać wiadomość - jeżeli
-	 * tak, zaznacza kolejną próbę jako wykonaną.
+	 * Pobiera identyfikator wiadomości (czyli pakietu wychodzącego).
 	 *
-	 * @return <code>true</code>, jeżeli wykonać próbę
+	 * @return identyfikator
 	 */
-	public synchronized boolean isNextTryAvailable()
+	public long getID()
 	{
-		if (sendTries >= maxSendTries)
-			return false;
-		sendTries++;
-		return true;
+		return packet.packetNo;
 	}
 }
@@ -0,0 +1,151 @@
+package protocols.ipmsg;
+
+import java.util.*;
+
+import protocols.Contact;
+
+/**
+ * Indeks dostępnych kontaktów konta, aktualizowany przy zmianach statusu
+ * (i grupy) kontaktów - zamiast przeglądania całej listy kontaktów przy
+ * każdym zapytaniu.
+ *
+ * Lista dostępnych kontaktów jest zwracana jako niemodyfikowalna migawka,
+ * po której można iterować bez żadnej synchronizacji. Migawka jest tworzona
+ * ponownie dopiero przy pierwszym pobraniu po zmianie indeksu.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+class IpmsgOnlineContacts
+{
+	/**
+	 * Dostępne kontakty. Synchronizacja na obiekcie indeksu.
+	 */
+	private final HashSet<IpmsgContact> online = new HashSet<IpmsgContact>();
+
+	/**
+	 * Ilość dostępnych kontaktów w poszczególnych grupach.
+	 *
+	 * Klucz: nazwa grupy
+	 * Wartość: jednoelementowa tablica z ilością kontaktów
+	 */
+	private final HashMap<String, int[]> groupCounts = new HashMap<String, int[]>();
+
+	/**
+	 * Bieżąca migawka, lub <code>null</code>, jeżeli indeks zmienił się od
+	 * jej utworzenia.
+	 */
+	private List<IpmsgContact> snapshot = null;
+
+	// statystyki
+
+	private long updatesCount = 0;
+
+	private long snapshotsCount = 0;
+
+	/**
+	 * Uzgadnia stan kontaktu w indeksie z jego bieżącym statusem i grupą.
+	 * Wywoływane po każdej zmianie statusu lub grupy kontaktu; wielokrotne
+	 * wywołanie niczego nie zmienia, więc kolejność wywołań z różnych wątków
+	 * nie ma znaczenia.
+	 *
+	 * @param contact kontakt, który się zmienił
+	 */
+	public synchronized void update(IpmsgContact contact)
+	{
+		boolean isOnline = (contact.getStatus() != Contact.UserStatus.OFFLINE);
+		String group = isOnline ? contact.getGroup() : null;
+		if (contact.indexedOnline == isOnline &&
+			(!isOnline || group.equals(contact.indexedGroup)))
+			return;
+
+		if (contact.indexedOnline)
+		{
+			decrementGroup(contact.indexedGroup);
+			if (!isOnline)
+				online.remove(contact);
+		}
+		if (isOnline)
+		{
+			incrementGroup(group);
+			if (!contact.indexedOnline)
+				online.add(contact);
+		}
+		if (contact.indexedOnline != isOnline)
+			snapshot = null;
+		contact.indexedOnline = isOnline;
+		contact.indexedGroup = group;
+		updatesCount++;
+	}
+
+	private void incrementGroup(String group)
+	{
+		int[] count = groupCounts.get(group);
+		if (count == null)
+		{
+			count = new int[1];
+			groupCounts.put(group, count);
+		}
+		count[0]++;
+	}
+
+	private void decrementGroup(String group)
+	{
+		int[] count = groupCounts.get(group);
+		if (count == null)
+			return;
+		if (--count[0] <= 0)
+			groupCounts.remove(group);
+	}
+
+	/**
+	 * Pobiera migawkę dostępnych kontaktów. Zwróconej listy nie można
+	 * modyfikować, a kolejne zmiany indeksu jej nie dotyczą.
+	 *
+	 * @return dostępne kontakty, w nieokreślonej kolejności
+	 */
+	public synchronized List<IpmsgContact> getSnapshot()
+	{
+		if (snapshot == null)
+		{
+			snapshot = Collections.unmodifiableList(Arrays.asList(
+				online.toArray(new IpmsgContact[online.size()])));
+			snapshotsCount++;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Zwraca ilość dostępnych kontaktów.
+	 *
+	 * @return ilość dostępnych kontaktów
+	 */
+	public synchronized int size()
+	{
+		return online.size();
+	}
+
+	/**
+	 * Zwraca ilość dostępnych kontaktów w podanej grupie.
+	 *
+	 * @param group nazwa grupy
+	 * @return ilość dostępnych kontaktów w grupie
+	 */
+	public synchronized int getGroupSize(String group)
+	{
+		int[] count = groupCounts.get(group);
+		return (count == null) ? 0 : count[0];
+	}
+
+	/**
+	 * Dopisuje statystyki indeksu do raportu.
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	public synchronized void appendStatistics(StringBuilder report)
+	{
+		report.append("  indeks dostępnych: ").append(online.size()).
+			append(" (grup: ").append(groupCounts.size()).
+			append(", zmiany: ").append(updatesCount).
+			append(", migawki: ").append(snapshotsCount).append(")\n");
+	}
+}
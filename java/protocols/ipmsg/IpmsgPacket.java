@@ -1,5 +1,6 @@
 package protocols.ipmsg;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 
 import net.NameService;
@@ -17,12 +18,29 @@ class IpmsgPacket
 	 */
 	protected final static Charset protocolCharset = Charset.forName("cp1250");
 
+	/**
+	 * Maksymalna ilość bajtów, jaką może zająć jeden znak w kodowaniu
+	 * protokołu.
+	 */
+	protected final static float protocolMaxBytesPerChar =
+			protocolCharset.newEncoder().maxBytesPerChar();
+
 	/**
 	 * Numer ostatnio wygenerowanego pakietu wychodzącego. W oryginalnej
 	 * implementacji jest to unix timestamp.
 	 */
 	public static long selfPacketNo = Math.round(Math.random() * 100000);
 
+	/**
+	 * Generuje numer dla kolejnego pakietu wychodzącego.
+	 *
+	 * @return nowy, unikalny numer pakietu
+	 */
+	public static synchronized long nextPacketNo()
+	{
+		return ++selfPacketNo;
+	}
+
 	/**
 	 * Numer kolejny pakietu.
 	 */
@@ -39,6 +57,13 @@ class IpmsgPacket
 	 */
 	public String ip;
 
+	/**
+	 * Powiązany adres IPv4 w postaci liczby - odpowiada polu {@link #ip}
+	 * (ma znaczenie tylko wtedy, gdy <code>ip</code> nie jest
+	 * <code>null</code>).
+	 */
+	public int ipAddress;
+
 	/**
 	 * Nazwa hosta nadawcy.
 	 */
@@ -197,6 +222,27 @@ class IpmsgPacket
 	 */
 	public final static long FLAG_DIALUP = 0x00010000;
 
+	/**
+	 * Powiadamianie o obecności (rozszerzenie UniLANChat): klient należy do
+	 * grupy multicast (ustawionej w konfiguracji), więc powiadomienia
+	 * o obecności i wiadomości do pokoju publicznego można do niego wysyłać
+	 * przez tą grupę, zamiast na broadcast. Ipmsg nie definiuje tego bitu
+	 * (nie jest to {@link #FLAG_MULTICAST}, które jest opcją wysyłania
+	 * wiadomości).
+	 */
+	public final static long FLAG_MULTICASTGROUP = 0x20000000L;
+
+	/**
+	 * Pakiet COMM_ENTRY (rozszerzenie UniLANChat): zapytanie o dostępność
+	 * wysłane indywidualnie (nie na broadcast), np. przy sprawdzaniu, czy
+	 * kontakt jest nadal dostępny. Odpowiedź należy wysłać natychmiast - bez
+	 * losowego opóźnienia, stosowanego przy ogłoszeniach na broadcast.
+	 * Pakiet COMM_ANSENTRY: natychmiastowa odpowiedź na takie zapytanie
+	 * (tylko takie odpowiedzi są próbkami czasu odpowiedzi kontaktu).
+	 * Ipmsg nie definiuje tego bitu.
+	 */
+	public final static long FLAG_UNICASTENTRY = 0x40000000L;
+
 		// </editor-fold>
 
 		// <editor-fold desc="Powiadamianie o obecności, przesyłanie wiadomości">
@@ -296,7 +342,7 @@ class IpmsgPacket
 		if (userName == null)
 			throw new NullPointerException();
 		
-		this.packetNo = ++selfPacketNo;
+		this.packetNo = nextPacketNo();
 		this.hostName = NameService.getLocalHostName();
 		this.userName = userName;
 	}
@@ -315,18 +361,33 @@ class IpmsgPacket
 	// <editor-fold defaultstate="collapsed" desc="Serializacja">
 
 	/**
-	 * Serializacja - zwraca dane gotowe do wysłania.
+	 * Serializacja - zwraca dane gotowe do wysłania. W miejscach, gdzie
+	 * pakiety są wysyłane często, należy korzystać bezpośrednio z
+	 * {@link IpmsgPacketCodec}, zapisując do własnego bufora.
 	 *
 	 * @return zserializowany pakiet
 	 */
 	public byte[] getRAWData()
 	{
-		return ("1:" + //numer protokołu
-				Long.toString(packetNo) + ":" +
-				userName + ":" +
-				hostName + ":" +
-				Long.toString(commandFlags) + ":" +
-				data + '\0').getBytes(protocolCharset);
+		ByteBuffer buff = ByteBuffer.allocate(getRAWDataLengthBound());
+		new IpmsgPacketCodec().encode(this, buff);
+		byte[] raw = new byte[buff.position()];
+		buff.flip();
+		buff.get(raw);
+		return raw;
+	}
+
+	/**
+	 * Zwraca górne ograniczenie rozmiaru zserializowanego pakietu.
+	 *
+	 * @return maksymalny rozmiar danych pakietu, w bajtach
+	 */
+	public int getRAWDataLengthBound()
+	{
+		// wersja, 4 separatory, 2 liczby, znak końca
+		return 2 + 4 + 2 * 20 + 1 +
+			(int)((userName.length() + hostName.length() + data.length()) *
+			protocolMaxBytesPerChar);
 	}
 
 	/**
@@ -335,42 +396,11 @@ class IpmsgPacket
 	 * @param raw Bufor z danymi binarnymi
 	 * @param length Długość danych binarnych w buforze
 	 * @return Zdeserializowany pakiet
+	 * @see IpmsgPacketCodec#decode(ByteBuffer)
 	 */
 	public static IpmsgPacket fromRAWData(byte[] raw, int length)
 	{
-		String[] data = (new String(raw, 0, length, protocolCharset)).split(":", 6);
-		if (data.length != 6)
-			throw new IllegalArgumentException("Nieprawidłowa ilość sekcji");
-		if (!data[0].equals("1"))
-			throw new IllegalArgumentException("Nieznana wersja protokołu");
-
-		IpmsgPacket packet;
-		try
-		{
-			packet = new IpmsgPacket(Long.parseLong(data[1]));
-		}
-		catch (NumberFormatException e)
-		{
-			throw new IllegalArgumentException("Nieprawidłowy numer pakietu");
-		}
-
-		packet.userName = data[2];
-		packet.hostName = data[3];
-		try
-		{
-			packet.commandFlags = Long.parseLong(data[4]);
-		}
-		catch (NumberFormatException e)
-		{
-			throw new IllegalArgumentException("Nieprawidłowy numer polecenia");
-		}
-
-		if (data[5].length() > 0 && data[5].charAt(data[5].length() - 1) == '\0')
-			packet.data = data[5].substring(0, data[5].length() - 1);
-		else
-			packet.data = data[5];
-
-		return packet;
+		return new IpmsgPacketCodec().decode(ByteBuffer.wrap(raw, 0, length));
 	}
 
 	/**
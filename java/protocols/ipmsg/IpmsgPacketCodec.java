@@ -0,0 +1,358 @@
+package protocols.ipmsg;
+
+import java.nio.*;
+import java.nio.charset.*;
+
+/**
+ * Koder i dekoder pakietów IPMsg, operujący bezpośrednio na buforach bajtów.
+ *
+ * Dekoder przegląda surowe dane bajt po bajcie (separator ':' jest zawsze
+ * jednym bajtem w kodowaniu protokołu), pola liczbowe parsuje w miejscu,
+ * a do postaci tekstowej zamienia tylko pola tekstowe - przy użyciu
+ * wielokrotnie używanego dekodera znaków. Koder zapisuje pakiet do bufora
+ * podanego przez wywołującego.
+ *
+ * Obiekt nie jest bezpieczny wielowątkowo - każdy wątek powinien korzystać
+ * z osobnej instancji.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+class IpmsgPacketCodec
+{
+	/**
+	 * Dekoder znaków w kodowaniu protokołu.
+	 */
+	private final CharsetDecoder decoder = IpmsgPacket.protocolCharset.newDecoder().
+			onMalformedInput(CodingErrorAction.REPLACE).
+			onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/**
+	 * Koder znaków w kodowaniu protokołu.
+	 */
+	private final CharsetEncoder encoder = IpmsgPacket.protocolCharset.newEncoder().
+			onMalformedInput(CodingErrorAction.REPLACE).
+			onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+	/**
+	 * Bufor pomocniczy dla dekodowanych i kodowanych pól tekstowych.
+	 */
+	private CharBuffer charBuff = CharBuffer.allocate(1024);
+
+	/**
+	 * Bufor pomocniczy dla cyfr zapisywanych liczb.
+	 */
+	private final byte[] digitsBuff = new byte[20];
+
+	/**
+	 * Pozycje separatorów sekcji w dekodowanym pakiecie.
+	 */
+	private final int[] separators = new int[5];
+
+	private final static byte[] digits = "0123456789abcdef".getBytes();
+
+	// <editor-fold defaultstate="collapsed" desc="Dekodowanie">
+
+	/**
+	 * Deserializuje pakiet z bufora. Odczytywane są dane od bieżącej pozycji
+	 * do limitu bufora; pozycja i limit bufora nie są zmieniane.
+	 *
+	 * @param buff bufor z danymi pakietu
+	 * @return zdeserializowany pakiet
+	 * @throws IllegalArgumentException jeżeli dane nie są poprawnym pakietem
+	 */
+	public IpmsgPacket decode(ByteBuffer buff)
+	{
+		if (buff == null)
+			throw new NullPointerException();
+		int start = buff.position();
+		int end = buff.limit();
+
+		int[] sep = separators;
+		int pos = start;
+		for (int i = 0; i < 5; i++)
+		{
+			pos = indexOf(buff, (byte)':', pos, end);
+			if (pos < 0)
+				throw new IllegalArgumentException("Nieprawidłowa ilość sekcji");
+			sep[i] = pos++;
+		}
+
+		if (sep[0] - start != 1 || buff.get(start) != '1')
+			throw new IllegalArgumentException("Nieznana wersja protokołu");
+
+		IpmsgPacket packet;
+		try
+		{
+			packet = new IpmsgPacket(parseLong(buff, sep[0] + 1, sep[1], 10));
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Nieprawidłowy numer pakietu");
+		}
+
+		packet.userName = decodeString(buff, sep[1] + 1, sep[2]);
+		packet.hostName = decodeString(buff, sep[2] + 1, sep[3]);
+		try
+		{
+			packet.commandFlags = parseLong(buff, sep[3] + 1, sep[4], 10);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Nieprawidłowy numer polecenia");
+		}
+
+		int dataEnd = end;
+		if (dataEnd > sep[4] + 1 && buff.get(dataEnd - 1) == 0)
+			dataEnd--;
+		packet.data = decodeString(buff, sep[4] + 1, dataEnd);
+
+		return packet;
+	}
+
+	/**
+	 * Zamienia fragment bufora na tekst, w kodowaniu protokołu.
+	 *
+	 * @param buff bufor z danymi
+	 * @param from indeks początkowy (włącznie)
+	 * @param to indeks końcowy (wyłącznie)
+	 * @return zdekodowany tekst
+	 */
+	public String decodeString(ByteBuffer buff, int from, int to)
+	{
+		int length = to - from;
+		if (length <= 0)
+			return "";
+
+		if (charBuff.capacity() < length)
+			charBuff = CharBuffer.allocate(length);
+		charBuff.clear();
+
+		// szybka ścieżka dla ASCII - nie ma potrzeby korzystania z dekodera
+		boolean ascii = true;
+		for (int i = from; i < to; i++)
+		{
+			byte b = buff.get(i);
+			if (b < 0)
+			{
+				ascii = false;
+				break;
+			}
+			charBuff.put((char)b);
+		}
+
+		if (!ascii)
+		{
+			charBuff.clear();
+			int oldPosition = buff.position();
+			int oldLimit = buff.limit();
+			buff.limit(to);
+			buff.position(from);
+			decoder.reset();
+			decoder.decode(buff, charBuff, true);
+			decoder.flush(charBuff);
+			buff.limit(oldLimit);
+			buff.position(oldPosition);
+		}
+
+		charBuff.flip();
+		return charBuff.toString();
+	}
+
+	/**
+	 * Parsuje liczbę zapisaną w buforze, bez tworzenia obiektów pośrednich.
+	 * Akceptuje ten sam zapis, co {@link Long#parseLong(String, int)}
+	 * (z opcjonalnym znakiem + lub -).
+	 *
+	 * @param buff bufor z danymi
+	 * @param from indeks początkowy (włącznie)
+	 * @param to indeks końcowy (wyłącznie)
+	 * @param radix podstawa systemu liczbowego (10 lub 16)
+	 * @return odczytana liczba
+	 * @throws NumberFormatException jeżeli fragment nie jest poprawną liczbą
+	 */
+	public static long parseLong(ByteBuffer buff, int from, int to, int radix)
+	{
+		if (from >= to)
+			throw new NumberFormatException("Puste pole liczbowe");
+		// znak - tak, jak w Long.parseLong
+		byte sign = buff.get(from);
+		boolean negative = (sign == '-');
+		if ((negative || sign == '+') && ++from >= to)
+			throw new NumberFormatException("Puste pole liczbowe");
+		long limit = Long.MAX_VALUE / radix;
+		long value = 0;
+		for (int i = from; i < to; i++)
+		{
+			int digit = Character.digit(buff.get(i), radix);
+			if (digit < 0 || value > limit || value * radix > Long.MAX_VALUE - digit)
+				throw new NumberFormatException();
+			value = value * radix + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parsuje liczbę zapisaną we fragmencie tekstu, bez tworzenia obiektów
+	 * pośrednich.
+	 *
+	 * @param str tekst z danymi
+	 * @param from indeks początkowy (włącznie)
+	 * @param to indeks końcowy (wyłącznie)
+	 * @param radix podstawa systemu liczbowego (10 lub 16)
+	 * @return odczytana liczba
+	 * @throws NumberFormatException jeżeli fragment nie jest poprawną liczbą
+	 */
+	public static long parseLong(CharSequence str, int from, int to, int radix)
+	{
+		if (from >= to)
+			throw new NumberFormatException("Puste pole liczbowe");
+		boolean negative = (str.charAt(from) == '-');
+		if (negative && ++from >= to)
+			throw new NumberFormatException("Puste pole liczbowe");
+		long limit = Long.MAX_VALUE / radix;
+		long value = 0;
+		for (int i = from; i < to; i++)
+		{
+			int digit = Character.digit(str.charAt(i), radix);
+			if (digit < 0 || value > limit || value * radix > Long.MAX_VALUE - digit)
+				throw new NumberFormatException();
+			value = value * radix + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Wyszukuje bajt w podanym zakresie bufora.
+	 *
+	 * @param buff bufor z danymi
+	 * @param b szukany bajt
+	 * @param from indeks początkowy (włącznie)
+	 * @param to indeks końcowy (wyłącznie)
+	 * @return indeks znalezionego bajtu, lub -1, jeżeli nie znaleziono
+	 */
+	public static int indexOf(ByteBuffer buff, byte b, int from, int to)
+	{
+		for (int i = from; i < to; i++)
+			if (buff.get(i) == b)
+				return i;
+		return -1;
+	}
+
+	// </editor-fold>
+
+	// <editor-fold defaultstate="collapsed" desc="Kodowanie">
+
+	/**
+	 * Serializuje pakiet do bufora, od jego bieżącej pozycji. Po zakończeniu
+	 * pozycja bufora wskazuje na koniec zapisanych danych.
+	 *
+	 * @param packet pakiet do zapisania
+	 * @param buff bufor docelowy
+	 * @throws BufferOverflowException jeżeli pakiet nie mieści się w buforze
+	 */
+	public void encode(IpmsgPacket packet, ByteBuffer buff)
+	{
+		if (packet == null || buff == null)
+			throw new NullPointerException();
+
+		buff.put((byte)'1'); //numer protokołu
+		buff.put((byte)':');
+		putLong(buff, packet.packetNo, 10);
+		buff.put((byte)':');
+		encodeString(packet.userName, buff);
+		buff.put((byte)':');
+		encodeString(packet.hostName, buff);
+		buff.put((byte)':');
+		putLong(buff, packet.commandFlags, 10);
+		buff.put((byte)':');
+		encodeString(packet.data, buff);
+		buff.put((byte)0);
+	}
+
+	/**
+	 * Zapisuje tekst do bufora, w kodowaniu protokołu.
+	 *
+	 * @param str tekst do zapisania
+	 * @param buff bufor docelowy
+	 * @throws BufferOverflowException jeżeli tekst nie mieści się w buforze
+	 */
+	public void encodeString(String str, ByteBuffer buff)
+	{
+		int length = str.length();
+		if (length == 0)
+			return;
+
+		// szybka ścieżka dla ASCII
+		int i = 0;
+		for (; i < length; i++)
+		{
+			char c = str.charAt(i);
+			if (c >= 0x80)
+				break;
+			buff.put((byte)c);
+		}
+		if (i == length)
+			return;
+
+		if (charBuff.capacity() < length - i)
+			charBuff = CharBuffer.allocate(length - i);
+		charBuff.clear();
+		charBuff.put(str, i, length);
+		charBuff.flip();
+
+		encoder.reset();
+		CoderResult result = encoder.encode(charBuff, buff, true);
+		if (result.isOverflow())
+			throw new BufferOverflowException();
+		result = encoder.flush(buff);
+		if (result.isOverflow())
+			throw new BufferOverflowException();
+	}
+
+	/**
+	 * Zapisuje liczbę do bufora, bez tworzenia obiektów pośrednich.
+	 *
+	 * @param buff bufor docelowy
+	 * @param value liczba do zapisania
+	 * @param radix podstawa systemu liczbowego (10 lub 16)
+	 * @throws BufferOverflowException jeżeli liczba nie mieści się w buforze
+	 */
+	public void putLong(ByteBuffer buff, long value, int radix)
+	{
+		putLong(buff, value, radix, 1);
+	}
+
+	/**
+	 * Zapisuje liczbę do bufora, uzupełniając ją z lewej strony zerami do
+	 * podanej ilości cyfr.
+	 *
+	 * @param buff bufor docelowy
+	 * @param value liczba do zapisania
+	 * @param radix podstawa systemu liczbowego (10 lub 16)
+	 * @param minDigits minimalna ilość cyfr (co najwyżej 20)
+	 * @throws BufferOverflowException jeżeli liczba nie mieści się w buforze
+	 */
+	public void putLong(ByteBuffer buff, long value, int radix, int minDigits)
+	{
+		if (value == Long.MIN_VALUE)
+		{
+			encodeString(Long.toString(value, radix), buff);
+			return;
+		}
+		if (value < 0)
+		{
+			buff.put((byte)'-');
+			value = -value;
+		}
+		int pos = digitsBuff.length;
+		do
+		{
+			digitsBuff[--pos] = digits[(int)(value % radix)];
+			value /= radix;
+		}
+		while (value != 0 || digitsBuff.length - pos < minDigits);
+		buff.put(digitsBuff, pos, digitsBuff.length - pos);
+	}
+
+	// </editor-fold>
+}
@@ -0,0 +1,248 @@
+package protocols.ipmsg;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.Level;
+
+import main.Main;
+import tools.SwingEventQueue;
+
+/**
+ * Etap obsługi odebranych pakietów. Wątek połączenia jedynie deserializuje
+ * pakiety i przekazuje je tutaj, a obsługą zajmuje się pula wątków
+ * roboczych - dzięki temu wolna obsługa (np. powiadamianie widoków) nie
+ * wstrzymuje odbioru z gniazda.
+ *
+ * Pakiety od tego samego nadawcy (adresu IP) trafiają zawsze do tego samego
+ * wątku, więc są obsługiwane w kolejności odebrania. Pakiety od różnych
+ * nadawców są obsługiwane równolegle.
+ *
+ * Wątki robocze działają tylko, gdy konto jest połączone - są uruchamiane
+ * metodą {@link #start()} i zatrzymywane metodą {@link #shutdown()}.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+class IpmsgPacketDispatcher
+{
+	/**
+	 * Konto, którego pakiety są obsługiwane.
+	 */
+	protected final IpmsgAccount ipmsgAccount;
+
+	/**
+	 * Pojemność kolejki pojedynczego wątku roboczego. Pakiety, które się nie
+	 * zmieszczą, są odrzucane.
+	 */
+	protected final static int queueCapacity = 1024;
+
+	/**
+	 * Ilość wątków roboczych.
+	 */
+	protected final int workersCount;
+
+	/**
+	 * Wątki robocze (pusta tablica, jeżeli obsługa jest zatrzymana).
+	 */
+	private volatile HandlerThread[] workers = new HandlerThread[0];
+
+	/**
+	 * Największa zaobserwowana głębokość kolejki pojedynczego wątku.
+	 */
+	private final AtomicInteger maxQueueDepth = new AtomicInteger();
+
+	/**
+	 * Ilość pakietów odrzuconych z powodu przepełnienia kolejki.
+	 */
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	/**
+	 * Ilość obsłużonych pakietów.
+	 */
+	private final AtomicLong handledCount = new AtomicLong();
+
+	/**
+	 * Główny konstruktor.
+	 *
+	 * @param ipmsgAccount konto, którego pakiety mają być obsługiwane
+	 */
+	public IpmsgPacketDispatcher(IpmsgAccount ipmsgAccount)
+	{
+		if (ipmsgAccount == null)
+			throw new NullPointerException();
+		this.ipmsgAccount = ipmsgAccount;
+
+		workersCount = Math.max(2,
+			Math.min(Runtime.getRuntime().availableProcessors(), 8));
+	}
+
+	/**
+	 * Uruchamia wątki robocze (jeżeli nie są już uruchomione).
+	 */
+	public synchronized void start()
+	{
+		if (workers.length > 0)
+			return;
+		HandlerThread[] newWorkers = new HandlerThread[workersCount];
+		for (int i = 0; i < workersCount; i++)
+			newWorkers[i] = new HandlerThread(i);
+		workers = newWorkers;
+	}
+
+	/**
+	 * Zatrzymuje wątki robocze. Pakiety oczekujące na obsługę są odrzucane.
+	 */
+	public synchronized void shutdown()
+	{
+		HandlerThread[] oldWorkers = workers;
+		workers = new HandlerThread[0];
+		for (HandlerThread worker : oldWorkers)
+		{
+			worker.interrupt();
+			worker.queue.clear();
+		}
+	}
+
+	/**
+	 * Kolejkuje pakiet do obsługi. Nie blokuje - jeżeli kolejka jest pełna
+	 * (lub obsługa jest zatrzymana), pakiet jest odrzucany.
+	 *
+	 * @param packet odebrany pakiet
+	 * @return <code>true</code>, jeżeli pakiet został zakolejkowany
+	 */
+	public boolean dispatch(IpmsgPacket packet)
+	{
+		if (packet == null || packet.ip == null)
+			throw new NullPointerException();
+
+		HandlerThread[] currentWorkers = workers;
+		if (currentWorkers.length == 0)
+			return false;
+		int hash = packet.ipAddress * 0x9E3779B9;
+		HandlerThread worker = currentWorkers[(hash >>> 1) % currentWorkers.length];
+		if (!worker.queue.offer(packet))
+		{
+			droppedCount.incrementAndGet();
+			return false;
+		}
+
+		int depth = worker.queue.size();
+		while (true)
+		{
+			int currentMax = maxQueueDepth.get();
+			if (depth <= currentMax ||
+				maxQueueDepth.compareAndSet(currentMax, depth))
+				break;
+		}
+		return true;
+	}
+
+	/**
+	 * Zwraca łączną ilość pakietów oczekujących na obsługę.
+	 *
+	 * @return głębokość kolejek
+	 */
+	public int getQueueDepth()
+	{
+		int depth = 0;
+		for (HandlerThread worker : workers)
+			depth += worker.queue.size();
+		return depth;
+	}
+
+	/**
+	 * Zwraca największą głębokość kolejki pojedynczego wątku, zaobserwowaną
+	 * od uruchomienia.
+	 *
+	 * @return maksymalna głębokość kolejki
+	 */
+	public int getMaxQueueDepth()
+	{
+		return maxQueueDepth.get();
+	}
+
+	/**
+	 * @return ilość pakietów odrzuconych z powodu przepełnienia kolejki
+	 */
+	public long getDroppedCount()
+	{
+		return droppedCount.get();
+	}
+
+	/**
+	 * @return ilość obsłużonych pakietów
+	 */
+	public long getHandledCount()
+	{
+		return handledCount.get();
+	}
+
+	/**
+	 * @return ilość wątków roboczych
+	 */
+	public int getWorkersCount()
+	{
+		return workersCount;
+	}
+
+	/**
+	 * Dopisuje statystyki etapu obsługi pakietów do raportu.
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	public void appendStatistics(StringBuilder report)
+	{
+		report.append("Obsługa pakietów (wątków: ").append(getWorkersCount()).append(")\n");
+		report.append("  w kolejce: ").append(getQueueDepth()).
+			append(" (maks. ").append(getMaxQueueDepth()).append(")\n");
+		report.append("  obsłużone: ").append(getHandledCount()).append('\n');
+		report.append("  odrzucone: ").append(getDroppedCount()).append('\n');
+	}
+
+	/**
+	 * Wątek roboczy, obsługujący pakiety z własnej kolejki.
+	 */
+	class HandlerThread extends Thread
+	{
+		/**
+		 * Pakiety oczekujące na obsługę przez ten wątek.
+		 */
+		protected final BlockingQueue<IpmsgPacket> queue =
+				new ArrayBlockingQueue<IpmsgPacket>(queueCapacity);
+
+		public HandlerThread(int number)
+		{
+			super("ULC-Ipmsg-PacketHandler-" + number);
+			setDaemon(true);
+			start();
+		}
+
+		@Override public void run()
+		{
+			SwingEventQueue.markNonBlockingThread();
+			while (true)
+			{
+				IpmsgPacket packet;
+				try
+				{
+					packet = queue.take();
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+
+				try
+				{
+					ipmsgAccount.handlePacket(packet);
+				}
+				catch (Throwable ex)
+				{
+					Main.logger.log(Level.SEVERE,
+						"Nie złapany wyjątek podczas obsługi pakietu (wątek \"" +
+						getName() + "\")", ex);
+				}
+				handledCount.incrementAndGet();
+			}
+		}
+	}
+}
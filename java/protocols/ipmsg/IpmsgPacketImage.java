@@ -0,0 +1,120 @@
+package protocols.ipmsg;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Niezmienny, zserializowany obraz pakietu wychodzącego. Pozwala wysłać ten
+ * sam pakiet wielokrotnie (do wielu odbiorców, lub w kolejnych próbach) bez
+ * ponownej serializacji.
+ *
+ * Obraz może być też użyty jako szablon - wtedy przy każdym wysłaniu
+ * podmieniany jest tylko numer pakietu, a reszta danych jest kopiowana bez
+ * ponownego kodowania.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+class IpmsgPacketImage
+{
+	/**
+	 * Numer pakietu, z którym obraz został zserializowany.
+	 */
+	public final long packetNo;
+
+	/**
+	 * Identyfikator polecenia pakietu.
+	 */
+	public final int command;
+
+	/**
+	 * Nazwa użytkownika, z którą zserializowano pakiet.
+	 */
+	public final String userName;
+
+	/**
+	 * Nazwa hosta, z którą zserializowano pakiet.
+	 */
+	public final String hostName;
+
+	/**
+	 * Zserializowany pakiet.
+	 */
+	private final byte[] raw;
+
+	/**
+	 * Indeks separatora następującego po numerze pakietu - od niego
+	 * zaczyna się część pakietu niezależna od numeru.
+	 */
+	private final int bodyOffset;
+
+	/**
+	 * Bufor (tylko do odczytu) opakowujący zserializowany pakiet.
+	 */
+	private final ByteBuffer data;
+
+	/**
+	 * Główny konstruktor. Pakiet jest serializowany w chwili tworzenia
+	 * obrazu, późniejsze zmiany pakietu nie mają wpływu na obraz.
+	 *
+	 * @param packet pakiet do zserializowania
+	 * @param codec koder, przy użyciu którego zserializować pakiet
+	 */
+	public IpmsgPacketImage(IpmsgPacket packet, IpmsgPacketCodec codec)
+	{
+		if (packet == null || codec == null)
+			throw new NullPointerException();
+
+		ByteBuffer buff = ByteBuffer.allocate(packet.getRAWDataLengthBound());
+		codec.encode(packet, buff);
+		buff.flip();
+
+		this.raw = new byte[buff.limit()];
+		buff.get(raw);
+		this.data = ByteBuffer.wrap(raw).asReadOnlyBuffer();
+		this.bodyOffset = IpmsgPacketCodec.indexOf(data, (byte)':', 2, raw.length);
+		assert(bodyOffset > 2);
+
+		this.packetNo = packet.packetNo;
+		this.command = packet.getCommand();
+		this.userName = packet.userName;
+		this.hostName = packet.hostName;
+	}
+
+	/**
+	 * Zwraca zserializowany pakiet, gotowy do wysłania. Bufor jest
+	 * współdzielony - każdy, kto zmieni jego pozycję, musi ją przywrócić.
+	 *
+	 * @return bufor tylko do odczytu z danymi pakietu
+	 * @see IpmsgConnectionThread#send(ByteBuffer, java.net.InetSocketAddress)
+	 */
+	public ByteBuffer getData()
+	{
+		return data;
+	}
+
+	/**
+	 * Zwraca rozmiar zserializowanego pakietu.
+	 *
+	 * @return rozmiar, w bajtach
+	 */
+	public int getLength()
+	{
+		return raw.length;
+	}
+
+	/**
+	 * Zapisuje pakiet do bufora, zmieniając jego numer. Ponownie kodowany jest
+	 * tylko numer pakietu.
+	 *
+	 * @param buff bufor docelowy
+	 * @param newPacketNo nowy numer pakietu
+	 * @param codec koder do zapisania numeru pakietu
+	 * @throws java.nio.BufferOverflowException jeżeli pakiet nie mieści się
+	 * w buforze
+	 */
+	public void writeRenumbered(ByteBuffer buff, long newPacketNo, IpmsgPacketCodec codec)
+	{
+		buff.put(raw, 0, 2); // numer protokołu z separatorem
+		codec.putLong(buff, newPacketNo, 10);
+		buff.put(raw, bodyOffset, raw.length - bodyOffset);
+	}
+}
@@ -1,36 +1,82 @@
 package protocols.ipmsg;
 
 import java.util.*;
+import java.util.concurrent.*;
 import protocols.ConnectionLostException;
 
 import protocols.Contact;
+import tools.SwingEventQueue;
 
 /**
  * Wątek wysyłania wiadomości jest inicjowany i kończony w ramach
  * zarządzania wątkiem połączenia.
  *
+ * Każda para (wiadomość, odbiorca) ma własny termin ponownego wysłania,
+ * wydłużany wykładniczo z każdą próbą. Wątek śpi do najbliższego terminu,
+ * więc wiadomości są ponawiane tylko do odbiorców, którzy jeszcze nie
+ * potwierdzili odebrania - i nie wszystkie naraz.
+ *
+ * Wiadomości do pokoju publicznego są za pierwszym razem wysyłane jednym
+ * pakietem na broadcast (zamiast osobno do każdego odbiorcy) - osobno są
+ * ponawiane tylko doręczenia nie potwierdzone.
+ *
  * @see IpmsgAccount.setConnected(boolean)
  * @author Tomasz Wasilczyk (www.wasilczyk.pl)
  */
 class IpmsgPostMessageThread extends Thread
 {
+	/**
+	 * Czas oczekiwania na potwierdzenie po pierwszej próbie, w ms - jeżeli
+	 * nie zmierzono jeszcze czasu odpowiedzi odbiorcy.
+	 *
+	 * @see IpmsgRttEstimator
+	 */
+	protected final static int initialRetransmitTimeout = 500;
+
+	/**
+	 * Minimalny czas oczekiwania na potwierdzenie, w ms.
+	 */
+	protected final static int minRetransmitTimeout = 200;
+
+	/**
+	 * Maksymalny czas oczekiwania na potwierdzenie, w ms.
+	 */
+	protected final static int maxRetransmitTimeout = 4000;
+
 	/**
 	 * Konto, w ramach którego jest uruchomiony wątek.
 	 */
 	protected final IpmsgAccount ipmsgAccount;
 
 	/**
-	 * Lista wiadomości do wysłania.
-	 * 
+	 * Lista wiadomości do wysłania. Synchronizacja na obiekcie wątku.
+	 *
 	 * Klucz: id pakietu
 	 * Wartość: obiekt wiadomości (zawiera także wspomniany klucz)
 	 */
 	protected final HashMap<Long, IpmsgMessagePacket> messages =
 			new HashMap<Long, IpmsgMessagePacket>();
 
+	/**
+	 * Doręczenia, według terminu kolejnej próby.
+	 */
+	protected final DelayQueue<Delivery> deliveries = new DelayQueue<Delivery>();
+
+	// statystyki
+
+	private long sentCount = 0;
+
+	private long retransmittedCount = 0;
+
+	private long broadcastCount = 0;
+
+	private long confirmedCount = 0;
+
+	private long failedCount = 0;
+
 	/**
 	 * Główny konstruktor.
-	 * 
+	 *
 	 * @param ipmsgAccount konto, w ramach którego ma być uruchomiony wątek
 	 */
 	public IpmsgPostMessageThread(IpmsgAccount ipmsgAccount)
@@ -41,68 +87,233 @@ class IpmsgPostMessageThread extends Thread
 		start();
 	}
 
-	@Override public synchronized void run()
+	/**
+	 * Doręczenie wiadomości do jednego odbiorcy.
+	 */
+	static class Delivery implements Delayed, IpmsgSendThread.SendListener
+	{
+		/**
+		 * Doręczana wiadomość.
+		 */
+		public final IpmsgMessagePacket messagePacket;
+
+		/**
+		 * Odbiorca.
+		 */
+		public final IpmsgContact receiver;
+
+		/**
+		 * Ilość wykonanych prób.
+		 */
+		public int tries = 0;
+
+		/**
+		 * Termin kolejnej próby (unix timestamp, w ms).
+		 */
+		public long deadline;
+
+		/**
+		 * Czas faktycznego wysłania pakietu przy pierwszej próbie (unix
+		 * timestamp, w ms) - ustawiany przez wątek wysyłający, 0 dopóki
+		 * pakiet czeka w kolejce (albo gdy próba była ponowiona).
+		 */
+		public volatile long sendTime = 0;
+
+		/**
+		 * Czy odbiorca potwierdził odebranie wiadomości.
+		 */
+		public volatile boolean confirmed = false;
+
+		public Delivery(IpmsgMessagePacket messagePacket, IpmsgContact receiver,
+			long deadline)
+		{
+			this.messagePacket = messagePacket;
+			this.receiver = receiver;
+			this.deadline = deadline;
+		}
+
+		public long getDelay(TimeUnit unit)
+		{
+			return unit.convert(deadline - System.currentTimeMillis(),
+				TimeUnit.MILLISECONDS);
+		}
+
+		public int compareTo(Delayed o)
+		{
+			long diff = getDelay(TimeUnit.MILLISECONDS) -
+				o.getDelay(TimeUnit.MILLISECONDS);
+			return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+		}
+
+		public void packetSent(long time)
+		{
+			if (tries == 1)
+				sendTime = time;
+		}
+	}
+
+	@Override public void run()
 	{
-		Vector<IpmsgMessagePacket> removeMessages = new Vector<IpmsgMessagePacket>();
+		SwingEventQueue.markNonBlockingThread();
+		Vector<Delivery> due = new Vector<Delivery>();
+		Vector<Delivery> send = new Vector<Delivery>();
+		HashMap<IpmsgMessagePacket, Vector<IpmsgContact>> failed =
+				new HashMap<IpmsgMessagePacket, Vector<IpmsgContact>>();
 
 		while (true) //TODO: wychodzić, jak konto nie istnieje? a moze przez interrupt?
 		{
-			if (ipmsgAccount.isConnected())
+			try
 			{
-				removeMessages.clear();
-				for (IpmsgMessagePacket messagePacket : messages.values())
-					if (!messagePacket.isNextTryAvailable())
-					{
-						removeMessages.add(messagePacket);
+				due.add(deliveries.take());
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+			deliveries.drainTo(due);
 
-						for (IpmsgContact receiver : messagePacket.receivers)
-							receiver.setStatus(Contact.UserStatus.OFFLINE);
-						messagePacket.message.notifyReceiversFailed(messagePacket.receivers);
-					}
-				for (IpmsgMessagePacket messagePacket : removeMessages)
-					messages.remove(messagePacket.getID());
-				for (IpmsgMessagePacket messagePacket : messages.values())
-					for (IpmsgContact receiver : messagePacket.receivers)
+			boolean connected = ipmsgAccount.isConnected();
+			long now = System.currentTimeMillis();
+			synchronized (this)
+			{
+				for (Delivery delivery : due)
+				{
+					if (delivery.confirmed)
+						continue;
+					if (!connected)
 					{
-						messagePacket.packet.ip = receiver.getIP();
+						// nie liczymy próby - czekamy na połączenie
+						delivery.deadline = now + maxRetransmitTimeout;
+						deliveries.add(delivery);
+						continue;
+					}
 
-						try
-						{
-							ipmsgAccount.sendPacket(messagePacket.packet);
-						}
-						catch (ConnectionLostException e)
+					IpmsgMessagePacket messagePacket = delivery.messagePacket;
+					if (delivery.tries >= IpmsgMessagePacket.maxSendTries)
+					{
+						messagePacket.pendingDeliveries.remove(
+							delivery.receiver.getAddress());
+						if (messagePacket.pendingDeliveries.isEmpty())
+							messages.remove(messagePacket.getID());
+						Vector<IpmsgContact> failedReceivers = failed.get(messagePacket);
+						if (failedReceivers == null)
 						{
-							break;
+							failedReceivers = new Vector<IpmsgContact>();
+							failed.put(messagePacket, failedReceivers);
 						}
+						failedReceivers.add(delivery.receiver);
+						failedCount++;
+						continue;
 					}
+
+					if (delivery.tries > 0)
+						retransmittedCount++;
+					sentCount++;
+					delivery.tries++;
+					delivery.sendTime = 0;
+					delivery.deadline = now + getRetransmitTimeout(delivery);
+					deliveries.add(delivery);
+					send.add(delivery);
+				}
 			}
+			due.clear();
 
-			try
+			// wysyłanie i powiadamianie poza synchronizacją
+			for (Delivery delivery : send)
 			{
-				if (messages.isEmpty())
-					wait();
-				else
-					wait(1000);
+				try
+				{
+					ipmsgAccount.sendPacket(delivery.messagePacket.getImage(),
+						delivery.receiver, false, IpmsgSendThread.Lane.BULK,
+						delivery);
+				}
+				catch (ConnectionLostException e)
+				{
+					break;
+				}
 			}
-			catch (InterruptedException e)
+			send.clear();
+
+			for (Map.Entry<IpmsgMessagePacket, Vector<IpmsgContact>> entry : failed.entrySet())
 			{
-				return;
+				for (IpmsgContact receiver : entry.getValue())
+					receiver.setStatus(Contact.UserStatus.OFFLINE);
+				entry.getKey().message.notifyReceiversFailed(entry.getValue());
 			}
+			failed.clear();
 		}
 	}
 
+	/**
+	 * Wyznacza czas oczekiwania na potwierdzenie po ostatniej próbie
+	 * doręczenia - na podstawie czasu odpowiedzi odbiorcy, podwajany z każdą
+	 * kolejną próbą.
+	 *
+	 * @param delivery doręczenie
+	 * @return czas oczekiwania, w ms
+	 */
+	protected static long getRetransmitTimeout(Delivery delivery)
+	{
+		long rto = delivery.receiver.rtt.getRTO(initialRetransmitTimeout,
+			minRetransmitTimeout, maxRetransmitTimeout);
+		long timeout = rto << Math.min(delivery.tries - 1, 16);
+		return Math.min(timeout, maxRetransmitTimeout);
+	}
+
 	/**
 	 * Dodaje pakiet do listy wysyłanych. Po dodaniu pakiet (szczególnie
 	 * lista odbiorców) nie powinna być modyfikowana.
 	 *
 	 * @param messagePacket wiadomość do wysłania
 	 */
-	public synchronized void enqueueMessagePacket(IpmsgMessagePacket messagePacket)
+	public void enqueueMessagePacket(IpmsgMessagePacket messagePacket)
 	{
-		messages.put(messagePacket.getID(), messagePacket);
-		if (getState().equals(Thread.State.WAITING))
-			// WAITING - bez ustawionego timeoutu
-			notifyAll();
+		long now = System.currentTimeMillis();
+		boolean broadcast = messagePacket.broadcast && ipmsgAccount.isConnected();
+		final Vector<Delivery> newDeliveries = new Vector<Delivery>();
+		synchronized (this)
+		{
+			for (IpmsgContact receiver : messagePacket.receivers)
+			{
+				if (messagePacket.pendingDeliveries.containsKey(receiver.getAddress()))
+					continue;
+				Delivery delivery = new Delivery(messagePacket, receiver, now);
+				if (broadcast) // pierwsza próba - wspólny pakiet na broadcast
+				{
+					delivery.tries = 1;
+					delivery.deadline = now + getRetransmitTimeout(delivery);
+				}
+				messagePacket.pendingDeliveries.put(receiver.getAddress(), delivery);
+				newDeliveries.add(delivery);
+			}
+			if (newDeliveries.isEmpty())
+				return;
+			messages.put(messagePacket.getID(), messagePacket);
+			if (broadcast)
+			{
+				sentCount++;
+				broadcastCount++;
+			}
+		}
+		deliveries.addAll(newDeliveries);
+
+		if (broadcast)
+			try
+			{
+				ipmsgAccount.sendPacket(messagePacket.getImage(), null, false,
+					IpmsgSendThread.Lane.BULK, new IpmsgSendThread.SendListener()
+					{
+						public void packetSent(long time)
+						{
+							for (Delivery delivery : newDeliveries)
+								delivery.packetSent(time);
+						}
+					});
+			}
+			catch (ConnectionLostException e)
+			{
+				// doręczenia zostaną ponowione
+			}
 	}
 
 	/**
@@ -112,15 +323,45 @@ class IpmsgPostMessageThread extends Thread
 	 * @param contact kontakt, który potwierdza odebranie wiadomości
 	 * @param id ID potwierdzanej wiadomości
 	 */
-	public synchronized void confirmMessage(IpmsgContact contact, long id)
+	public void confirmMessage(IpmsgContact contact, long id)
+	{
+		IpmsgMessagePacket messagePacket;
+		synchronized (this)
+		{
+			messagePacket = messages.get(id);
+			if (messagePacket == null)
+				return;
+			Delivery delivery =
+				messagePacket.pendingDeliveries.remove(contact.getAddress());
+			if (delivery == null) // już wcześniej potwierdzone
+				return;
+			delivery.confirmed = true;
+			confirmedCount++;
+			// algorytm Karna - mierzymy tylko wiadomości wysłane jeden raz (i
+			// tylko, jeżeli wiadomo, kiedy pakiet faktycznie wyszedł)
+			long sendTime = delivery.sendTime;
+			if (delivery.tries == 1 && sendTime != 0)
+				contact.rtt.addSample(System.currentTimeMillis() - sendTime);
+			if (messagePacket.pendingDeliveries.isEmpty())
+				messages.remove(id);
+		}
+		messagePacket.message.notifyReceiverGot(contact);
+	}
+
+	/**
+	 * Dopisuje statystyki wysyłania wiadomości do raportu.
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	public synchronized void appendStatistics(StringBuilder report)
 	{
-		IpmsgMessagePacket messagePacket = messages.get(id);
-		if (messagePacket == null)
-			return;
-		if (messagePacket.receivers.remove(contact))
-			// true, jeżeli wcześniej nie potwierdzone
-			messagePacket.message.notifyReceiverGot(contact);
-		if (messagePacket.receivers.isEmpty())
-			messages.remove(id);
+		report.append("Wysyłanie wiadomości\n");
+		report.append("  wiadomości w trakcie wysyłania: ").append(messages.size()).
+			append(" (doręczeń w kolejce: ").append(deliveries.size()).append(")\n");
+		report.append("  wysłane pakiety: ").append(sentCount).
+			append(", w tym na broadcast: ").append(broadcastCount).
+			append(", ponowienia: ").append(retransmittedCount).append('\n');
+		report.append("  potwierdzone: ").append(confirmedCount).
+			append(", nieudane: ").append(failedCount).append('\n');
 	}
 }
@@ -5,6 +5,7 @@ import java.net.*;
 
 import main.Configuration;
 import protocols.*;
+import tools.SwingEventQueue;
 
 /**
  * Klasa pliku odbieranego.
@@ -71,6 +72,7 @@ public class IpmsgReceivedFile extends IpmsgTransferredFile implements ReceivedF
 
 		@Override public void run()
 		{
+			SwingEventQueue.markNonBlockingThread();
 			Socket socket = null;
 			InputStream socketInputStream = null;
 			OutputStream socketOutputStream = null;
@@ -78,7 +80,8 @@ public class IpmsgReceivedFile extends IpmsgTransferredFile implements ReceivedF
 			startNotifying();
 			try
 			{
-				socket = new Socket(contact.ip, IpmsgFileTransferThread.serverPort);
+				socket = new Socket(contact.getSocketAddress().getAddress(),
+					IpmsgFileTransferThread.serverPort);
 				IpmsgFileReceiveRequestHeader header =
 						new IpmsgFileReceiveRequestHeader(receivedFile, isFile ? 0L : null);
 				IpmsgPacket packet = new IpmsgPacket(Configuration.getInstance().getNick());
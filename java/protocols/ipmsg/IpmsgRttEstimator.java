@@ -0,0 +1,124 @@
+package protocols.ipmsg;
+
+/**
+ * Estymator czasu odpowiedzi (RTT) kontaktu, na wzór TCP (RFC 6298) -
+ * wygładzony czas odpowiedzi i jego zmienność wyznaczają czas oczekiwania
+ * na potwierdzenie (RTO).
+ *
+ * Próbki pochodzą z par pakietów SENDMSG-RECVMSG oraz ENTRY-ANSENTRY.
+ * Zgodnie z algorytmem Karna, brane są tylko pakiety wysłane jeden raz.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+class IpmsgRttEstimator
+{
+	/**
+	 * Minimalny składnik zmienności w RTO, w ms (odpowiednik granulacji
+	 * zegara w TCP).
+	 */
+	protected final static int minVariance = 50;
+
+	/**
+	 * Górne granice przedziałów histogramu, w ms. Ostatni przedział jest
+	 * otwarty.
+	 */
+	protected final static int[] histogramBounds =
+		{ 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+	/**
+	 * Wygładzony czas odpowiedzi, w ms.
+	 */
+	private double srtt = 0;
+
+	/**
+	 * Zmienność czasu odpowiedzi, w ms.
+	 */
+	private double rttvar = 0;
+
+	/**
+	 * Ilość zebranych próbek.
+	 */
+	private int samplesCount = 0;
+
+	/**
+	 * Histogram próbek.
+	 */
+	private final int[] histogram = new int[histogramBounds.length + 1];
+
+	/**
+	 * Dodaje próbkę czasu odpowiedzi.
+	 *
+	 * @param rtt zmierzony czas odpowiedzi, w ms
+	 */
+	public synchronized void addSample(long rtt)
+	{
+		if (rtt < 0)
+			return;
+		if (samplesCount == 0)
+		{
+			srtt = rtt;
+			rttvar = rtt / 2.0;
+		}
+		else
+		{
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+			srtt = 0.875 * srtt + 0.125 * rtt;
+		}
+		samplesCount++;
+
+		int bucket = 0;
+		while (bucket < histogramBounds.length && rtt > histogramBounds[bucket])
+			bucket++;
+		histogram[bucket]++;
+	}
+
+	/**
+	 * Wyznacza czas oczekiwania na potwierdzenie.
+	 *
+	 * @param defaultTimeout czas zwracany, jeżeli nie ma jeszcze próbek
+	 * @param min minimalny czas
+	 * @param max maksymalny czas
+	 * @return czas oczekiwania na potwierdzenie, w ms
+	 */
+	public synchronized long getRTO(long defaultTimeout, long min, long max)
+	{
+		long rto;
+		if (samplesCount == 0)
+			rto = defaultTimeout;
+		else
+			rto = Math.round(srtt + Math.max(minVariance, 4 * rttvar));
+		return Math.max(min, Math.min(max, rto));
+	}
+
+	/**
+	 * @return ilość zebranych próbek
+	 */
+	public synchronized int getSamplesCount()
+	{
+		return samplesCount;
+	}
+
+	/**
+	 * Dopisuje do raportu wartości estymatora i histogram próbek.
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	public synchronized void appendStatistics(StringBuilder report)
+	{
+		report.append("srtt: ").append(Math.round(srtt)).
+			append(" ms, rttvar: ").append(Math.round(rttvar)).
+			append(" ms, próbek: ").append(samplesCount).append('\n');
+		report.append("    ");
+		for (int i = 0; i < histogram.length; i++)
+		{
+			if (histogram[i] == 0)
+				continue;
+			if (i < histogramBounds.length)
+				report.append("≤").append(histogramBounds[i]);
+			else
+				report.append('>').append(histogramBounds[i - 1]);
+			report.append(" ms: ").append(histogram[i]).append("  ");
+		}
+		report.append('\n');
+	}
+}
@@ -0,0 +1,545 @@
+package protocols.ipmsg;
+
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+
+import main.Main;
+import net.InterfaceInfoProvider;
+import protocols.ConnectionLostException;
+import tools.SwingEventQueue;
+
+/**
+ * Wątek wysyłający pakiety. Wszystkie pakiety wychodzące są kolejkowane
+ * i wysyłane z tego jednego wątku, według priorytetów kolejek (tzw. pasów):
+ * najpierw pakiety kontrolne (potwierdzenia), potem powiadomienia
+ * o obecności, a na końcu masowe rozsyłanie wiadomości - w tempie
+ * ograniczonym do {@link #bulkPacketsPerSecond}.
+ *
+ * Dzięki temu potwierdzenia nie czekają na zakończenie rozsyłania wiadomości
+ * do setek odbiorców.
+ *
+ * Pakiety do wszystkich są wysyłane do grupy multicast (jeżeli jest
+ * aktywna) i na broadcast - aby dotarły także do klientów spoza grupy,
+ * których jeszcze nie znamy. Tylko w trybie multicast-only
+ * ({@link main.Configuration#getMulticastOnly()}) broadcast jest pomijany,
+ * gdy wszystkie dostępne kontakty należą do grupy - poza ogłoszeniami
+ * COMM_ENTRY, aby odnaleźć nowe kontakty.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+class IpmsgSendThread extends Thread
+{
+	/**
+	 * Pasy (klasy priorytetów) pakietów wysyłanych. Kolejność deklaracji
+	 * odpowiada priorytetowi.
+	 */
+	public enum Lane
+	{
+		/**
+		 * Pakiety kontrolne: potwierdzenia odbioru, odpowiedzi na
+		 * COMM_ENTRY, wylogowanie.
+		 */
+		CONTROL,
+
+		/**
+		 * Powiadomienia o obecności i zapytania o obecność.
+		 */
+		PRESENCE,
+
+		/**
+		 * Rozsyłanie wiadomości.
+		 */
+		BULK
+	}
+
+	/**
+	 * Konto, w ramach którego są wysyłane pakiety.
+	 */
+	protected final IpmsgAccount ipmsgAccount;
+
+	/**
+	 * Pojemność kolejki jednego pasa. Pakiety, które się nie zmieszczą, są
+	 * odrzucane.
+	 */
+	protected final static int laneCapacity = 4096;
+
+	/**
+	 * Maksymalna ilość pakietów na sekundę, wysyłanych w pasie BULK.
+	 */
+	protected final static int bulkPacketsPerSecond = 2000;
+
+	/**
+	 * Ile pakietów pasa BULK może zostać wysłanych od razu, bez oczekiwania.
+	 */
+	protected final static int bulkBurst = 50;
+
+	/**
+	 * Co ile ms odświeżana jest ilość dostępnych kontaktów spoza grupy
+	 * multicast.
+	 */
+	protected final static int nonMembersRefreshInterval = 1000;
+
+	/**
+	 * Kolejki pasów, indeksowane według {@link Lane#ordinal()}.
+	 */
+	private final LaneQueue[] lanes;
+
+	/**
+	 * Ilość pakietów, które mogą być wysłane w pasie BULK bez oczekiwania.
+	 */
+	private double bulkTokens = bulkBurst;
+
+	/**
+	 * Czas ostatniego uzupełnienia {@link #bulkTokens}, w nanosekundach.
+	 */
+	private long bulkTokensTime = System.nanoTime();
+
+	/**
+	 * Koder pakietów (używany tylko w wątku wysyłającym).
+	 */
+	private final IpmsgPacketCodec codec = new IpmsgPacketCodec();
+
+	/**
+	 * Bufor, do którego serializowane są pakiety (używany tylko w wątku
+	 * wysyłającym).
+	 */
+	private final ByteBuffer sendBuffer =
+			ByteBuffer.allocateDirect(IpmsgConnectionThread.maxPacketSize);
+
+	/**
+	 * Czy wątek aktualnie wysyła pakiet (wyjęty już z kolejki).
+	 */
+	private boolean sending = false;
+
+	/**
+	 * Ostatnio policzona ilość dostępnych kontaktów spoza grupy multicast
+	 * (używane tylko w wątku wysyłającym).
+	 */
+	private int nonMembersCount = 0;
+
+	/**
+	 * Czas ostatniego liczenia {@link #nonMembersCount}.
+	 */
+	private long nonMembersTime = 0;
+
+	// statystyki
+
+	private long multicastCount = 0;
+
+	private long broadcastCount = 0;
+
+	private long broadcastSkippedCount = 0;
+
+	/**
+	 * Główny konstruktor.
+	 *
+	 * @param ipmsgAccount konto, w ramach którego mają być wysyłane pakiety
+	 */
+	public IpmsgSendThread(IpmsgAccount ipmsgAccount)
+	{
+		super("ULC-Ipmsg-SendThread");
+		if (ipmsgAccount == null)
+			throw new NullPointerException();
+		this.ipmsgAccount = ipmsgAccount;
+
+		lanes = new LaneQueue[Lane.values().length];
+		for (Lane lane : Lane.values())
+			lanes[lane.ordinal()] = new LaneQueue(lane);
+
+		setDaemon(true);
+		start();
+	}
+
+	/**
+	 * Słuchacz powiadamiany o faktycznym wysłaniu pakietu (a nie jego
+	 * zakolejkowaniu) - np. do pomiaru czasu odpowiedzi odbiorcy.
+	 */
+	interface SendListener
+	{
+		/**
+		 * Pakiet został wysłany. Wywoływane w wątku wysyłającym - nie może
+		 * blokować.
+		 *
+		 * @param time czas wysłania (unix timestamp, w ms)
+		 */
+		void packetSent(long time);
+	}
+
+	/**
+	 * Pakiet oczekujący na wysłanie.
+	 */
+	static class SendTask
+	{
+		/**
+		 * Pas, którym wysyłany jest pakiet.
+		 */
+		public final Lane lane;
+
+		/**
+		 * Pakiet do zserializowania, lub <code>null</code>, jeżeli wysyłany
+		 * jest obraz pakietu.
+		 */
+		public final IpmsgPacket packet;
+
+		/**
+		 * Obraz pakietu, lub <code>null</code>, jeżeli wysyłany jest pakiet.
+		 */
+		public final IpmsgPacketImage image;
+
+		/**
+		 * Czy obrazowi pakietu nadać nowy numer.
+		 */
+		public final boolean renumber;
+
+		/**
+		 * Adres odbiorcy, lub <code>null</code>, jeżeli broadcast.
+		 */
+		public final InetSocketAddress target;
+
+		/**
+		 * Słuchacz powiadamiany o wysłaniu, lub <code>null</code>.
+		 */
+		public final SendListener listener;
+
+		/**
+		 * Czas zakolejkowania, w nanosekundach.
+		 */
+		public final long enqueueTime = System.nanoTime();
+
+		public SendTask(Lane lane, IpmsgPacket packet, IpmsgPacketImage image,
+			boolean renumber, InetSocketAddress target, SendListener listener)
+		{
+			this.lane = lane;
+			this.packet = packet;
+			this.image = image;
+			this.renumber = renumber;
+			this.target = target;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Kolejka jednego pasa, wraz ze statystykami.
+	 */
+	static class LaneQueue
+	{
+		public final Lane lane;
+
+		public final ArrayDeque<SendTask> queue = new ArrayDeque<SendTask>();
+
+		public long sentCount = 0;
+
+		public long droppedCount = 0;
+
+		public long totalLatency = 0;
+
+		public long maxLatency = 0;
+
+		public LaneQueue(Lane lane)
+		{
+			this.lane = lane;
+		}
+	}
+
+	/**
+	 * Kolejkuje pakiet do wysłania. Pakiet nie powinien już być modyfikowany.
+	 *
+	 * @param lane pas, którym ma być wysłany pakiet
+	 * @param packet pakiet do wysłania
+	 * @param target adres odbiorcy (<code>null</code>, jeżeli broadcast)
+	 * @return <code>true</code>, jeżeli zakolejkowano
+	 */
+	public boolean enqueue(Lane lane, IpmsgPacket packet, InetSocketAddress target)
+	{
+		if (packet == null)
+			throw new NullPointerException();
+		return enqueue(new SendTask(lane, packet, null, false, target, null));
+	}
+
+	/**
+	 * Kolejkuje obraz pakietu do wysłania.
+	 *
+	 * @param lane pas, którym ma być wysłany pakiet
+	 * @param image obraz pakietu do wysłania
+	 * @param renumber czy nadać pakietowi nowy numer
+	 * @param target adres odbiorcy (<code>null</code>, jeżeli broadcast)
+	 * @param listener słuchacz powiadamiany o wysłaniu pakietu (lub
+	 * <code>null</code>)
+	 * @return <code>true</code>, jeżeli zakolejkowano
+	 */
+	public boolean enqueue(Lane lane, IpmsgPacketImage image, boolean renumber,
+		InetSocketAddress target, SendListener listener)
+	{
+		if (image == null)
+			throw new NullPointerException();
+		return enqueue(new SendTask(lane, null, image, renumber, target,
+			listener));
+	}
+
+	private synchronized boolean enqueue(SendTask task)
+	{
+		if (task.lane == null)
+			throw new NullPointerException();
+		LaneQueue laneQueue = lanes[task.lane.ordinal()];
+		if (laneQueue.queue.size() >= laneCapacity)
+		{
+			laneQueue.droppedCount++;
+			return false;
+		}
+		laneQueue.queue.addLast(task);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Czeka, aż wszystkie zakolejkowane pakiety zostaną wysłane (np. przed
+	 * zamknięciem połączenia).
+	 *
+	 * @param timeout maksymalny czas oczekiwania, w milisekundach
+	 */
+	public synchronized void flush(long timeout)
+	{
+		long deadline = System.currentTimeMillis() + timeout;
+		while (sending || !isEmpty())
+		{
+			long left = deadline - System.currentTimeMillis();
+			if (left <= 0)
+				return;
+			try
+			{
+				wait(left);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Usuwa z kolejek wszystkie pakiety oczekujące na wysłanie.
+	 */
+	public synchronized void clear()
+	{
+		for (LaneQueue laneQueue : lanes)
+			laneQueue.queue.clear();
+		notifyAll();
+	}
+
+	private boolean isEmpty()
+	{
+		for (LaneQueue laneQueue : lanes)
+			if (!laneQueue.queue.isEmpty())
+				return false;
+		return true;
+	}
+
+	/**
+	 * Wybiera następny pakiet do wysłania, czekając na niego, jeżeli trzeba.
+	 *
+	 * @return pakiet do wysłania
+	 * @throws InterruptedException jeżeli przerwano wątek
+	 */
+	private synchronized SendTask takeNext() throws InterruptedException
+	{
+		sending = false;
+		notifyAll();
+		while (true)
+		{
+			for (LaneQueue laneQueue : lanes)
+			{
+				if (laneQueue.queue.isEmpty())
+					continue;
+				if (laneQueue.lane == Lane.BULK && !takeBulkToken())
+					break;
+				sending = true;
+				return laneQueue.queue.pollFirst();
+			}
+
+			if (lanes[Lane.BULK.ordinal()].queue.isEmpty())
+				wait();
+			else // czekamy na możliwość wysłania kolejnego pakietu BULK
+				wait(Math.max(1, 1000 / bulkPacketsPerSecond));
+		}
+	}
+
+	/**
+	 * Pobiera pozwolenie na wysłanie pakietu w pasie BULK.
+	 *
+	 * @return <code>true</code>, jeżeli pakiet może zostać wysłany
+	 */
+	private boolean takeBulkToken()
+	{
+		long now = System.nanoTime();
+		bulkTokens = Math.min(bulkBurst,
+			bulkTokens + (now - bulkTokensTime) * bulkPacketsPerSecond / 1e9);
+		bulkTokensTime = now;
+		if (bulkTokens < 1)
+			return false;
+		bulkTokens--;
+		return true;
+	}
+
+	@Override public void run()
+	{
+		SwingEventQueue.markNonBlockingThread();
+		while (true)
+		{
+			SendTask task;
+			try
+			{
+				task = takeNext();
+			}
+			catch (InterruptedException e)
+			{
+				return;
+			}
+
+			try
+			{
+				send(task);
+			}
+			catch (ConnectionLostException e)
+			{
+			}
+			catch (Throwable ex)
+			{
+				// wątek wysyłający jest jeden - nie może się zakończyć przez
+				// błąd jednego pakietu
+				Main.logger.log(Level.SEVERE,
+					"Nie złapany wyjątek podczas wysyłania pakietu", ex);
+			}
+		}
+	}
+
+	/**
+	 * Wysyła pakiet i zapisuje statystyki jego pasa.
+	 *
+	 * @param task pakiet do wysłania
+	 * @throws ConnectionLostException jeżeli połączenie zostało zamknięte
+	 */
+	private void send(SendTask task) throws ConnectionLostException
+	{
+		IpmsgConnectionThread connectionThread = ipmsgAccount.getConnectionThread();
+		if (connectionThread == null)
+			throw new ConnectionLostException();
+
+		ByteBuffer data;
+		if (task.image != null && !task.renumber)
+			data = task.image.getData();
+		else
+		{
+			int lengthBound = (task.image != null) ?
+				task.image.getLength() + 20 : task.packet.getRAWDataLengthBound();
+			data = sendBuffer;
+			if (data.capacity() < lengthBound)
+				data = ByteBuffer.allocate(lengthBound);
+			data.clear();
+			if (task.image != null)
+				task.image.writeRenumbered(data, IpmsgPacket.nextPacketNo(), codec);
+			else
+				codec.encode(task.packet, data);
+			data.flip();
+		}
+
+		boolean multicast = false, broadcast = false;
+		if (task.target == null) // wysyłamy do wszystkich
+		{
+			multicast = connectionThread.sendMulticast(data);
+			broadcast = !multicast || !connectionThread.multicastOnly ||
+				isDiscovery(task) || hasNonMembers();
+			if (broadcast)
+				for (Inet4Address bcaddr : InterfaceInfoProvider.getBroadcastAdresses())
+					connectionThread.send(data,
+						new InetSocketAddress(bcaddr, IpmsgConnectionThread.port));
+		}
+		else
+			connectionThread.send(data, task.target);
+		if (task.listener != null)
+			task.listener.packetSent(System.currentTimeMillis());
+
+		long latency = System.nanoTime() - task.enqueueTime;
+		synchronized (this)
+		{
+			if (multicast)
+				multicastCount++;
+			if (broadcast)
+				broadcastCount++;
+			else if (multicast)
+				broadcastSkippedCount++;
+			LaneQueue laneQueue = lanes[task.lane.ordinal()];
+			laneQueue.sentCount++;
+			laneQueue.totalLatency += latency;
+			if (latency > laneQueue.maxLatency)
+				laneQueue.maxLatency = latency;
+		}
+	}
+
+	/**
+	 * Sprawdza, czy pakiet jest ogłoszeniem o dostępności (COMM_ENTRY) - na
+	 * nie odpowiadają także klienci, o których jeszcze nie wiemy.
+	 *
+	 * @param task pakiet do wysłania
+	 * @return <code>true</code>, jeżeli jest to COMM_ENTRY
+	 */
+	private static boolean isDiscovery(SendTask task)
+	{
+		int command = (task.image != null) ?
+			task.image.command : task.packet.getCommand();
+		return command == IpmsgPacket.COMM_ENTRY;
+	}
+
+	/**
+	 * Sprawdza (odświeżając co jakiś czas), czy są dostępne kontakty, które
+	 * nie należą do grupy multicast.
+	 *
+	 * @return <code>true</code>, jeżeli trzeba wysyłać także na broadcast
+	 */
+	private boolean hasNonMembers()
+	{
+		long now = System.currentTimeMillis();
+		if (now - nonMembersTime >= nonMembersRefreshInterval ||
+			now < nonMembersTime)
+		{
+			int count = 0;
+			for (IpmsgContact contact : ipmsgAccount.getOnlineContacts())
+				if (!contact.multicastMember)
+					count++;
+			nonMembersCount = count;
+			nonMembersTime = now;
+		}
+		return nonMembersCount > 0;
+	}
+
+	/**
+	 * Dopisuje statystyki pasów do raportu.
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	public synchronized void appendStatistics(StringBuilder report)
+	{
+		report.append("Wysyłanie pakietów\n");
+		for (LaneQueue laneQueue : lanes)
+		{
+			report.append("  ").append(laneQueue.lane).append(": ");
+			report.append("w kolejce: ").append(laneQueue.queue.size());
+			report.append(", wysłane: ").append(laneQueue.sentCount);
+			report.append(", odrzucone: ").append(laneQueue.droppedCount);
+			if (laneQueue.sentCount > 0)
+			{
+				report.append(", opóźnienie śr.: ").append(
+					laneQueue.totalLatency / laneQueue.sentCount / 1000).append(" µs");
+				report.append(", maks.: ").append(
+					laneQueue.maxLatency / 1000).append(" µs");
+			}
+			report.append('\n');
+		}
+		report.append("  do wszystkich: multicast: ").append(multicastCount).
+			append(", broadcast: ").append(broadcastCount).
+			append(", pominięte broadcasty: ").append(broadcastSkippedCount).
+			append(" (kontakty spoza grupy: ").append(nonMembersCount).append(")\n");
+	}
+}
@@ -2,9 +2,11 @@ package protocols.ipmsg;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.Stack;
 
 import protocols.TransferredFile;
+import tools.SwingEventQueue;
 
 /**
  * Klasa pliku wysyłanego.
@@ -129,6 +131,16 @@ public class IpmsgSentFile extends IpmsgTransferredFile
 
 		protected Long offset;
 
+		/**
+		 * Koder nagłówków katalogu.
+		 */
+		private final IpmsgPacketCodec codec = new IpmsgPacketCodec();
+
+		/**
+		 * Bufor, do którego serializowane są nagłówki katalogu.
+		 */
+		private ByteBuffer headerBuffer = ByteBuffer.allocate(1024);
+
 		public SendingThread(Socket socket, Long offset) throws SocketException
 		{
 			super("ULC-IpMsg-IpmsgSentFile-SendingThread");
@@ -142,8 +154,27 @@ public class IpmsgSentFile extends IpmsgTransferredFile
 			setPriority(getPriority() - 1);
 		}
 
+		/**
+		 * Zapisuje nagłówek pliku do strumienia, bez tworzenia pośrednich
+		 * tablic bajtów.
+		 *
+		 * @param out strumień docelowy
+		 * @param header nagłówek do zapisania
+		 * @throws IOException jeżeli wystąpił błąd zapisu
+		 */
+		private void writeHeader(OutputStream out, IpmsgHierarchicalFileHeader header) throws IOException
+		{
+			int lengthBound = header.getRawDataLengthBound();
+			if (headerBuffer.capacity() < lengthBound)
+				headerBuffer = ByteBuffer.allocate(lengthBound);
+			headerBuffer.clear();
+			header.writeRawData(codec, headerBuffer);
+			out.write(headerBuffer.array(), 0, headerBuffer.position());
+		}
+
 		@Override public void run()
 		{
+			SwingEventQueue.markNonBlockingThread();
 			FileInputStream fileInputStream = null;
 			startNotifying();
 			try
@@ -174,7 +205,7 @@ public class IpmsgSentFile extends IpmsgTransferredFile
 					IpmsgHierarchicalFileHeader header = new IpmsgHierarchicalFileHeader(file);
 
 					setState(TransferredFile.State.TRANSFERRING);
-					outputStream.write(header.toRawData());
+					writeHeader(outputStream, header);
 					stack.push(new DirectoryNode(file.listFiles()));
 					while(!stack.empty())
 					{
@@ -183,14 +214,14 @@ public class IpmsgSentFile extends IpmsgTransferredFile
 						{
 							header = IpmsgHierarchicalFileHeader.getReturnParentHeader();
 							stack.pop();
-							outputStream.write(header.toRawData());
+							writeHeader(outputStream, header);
 						}
 						else
 						{
 							header = new IpmsgHierarchicalFileHeader(nextFile);
 							if(nextFile.isFile())
 							{
-								outputStream.write(header.toRawData());
+								writeHeader(outputStream, header);
 								fileInputStream = new FileInputStream(nextFile);
 								while((readChunkSize = fileInputStream.read(buffer)) != -1)
 								{
@@ -203,7 +234,7 @@ public class IpmsgSentFile extends IpmsgTransferredFile
 							else
 							{
 								stack.push(new DirectoryNode(nextFile.listFiles()));
-								outputStream.write(header.toRawData());
+								writeHeader(outputStream, header);
 							}
 						}
 					}
@@ -0,0 +1,89 @@
+package tools;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pula buforów bezpośrednich (direct) o stałym rozmiarze. Pozwala uniknąć
+ * alokowania nowego bufora dla każdego odbieranego pakietu - bufory
+ * bezpośrednie są kosztowne w tworzeniu, a zwalnia je dopiero GC.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+public class ByteBufferPool
+{
+	/**
+	 * Rozmiar pojedynczego bufora, w bajtach.
+	 */
+	protected final int bufferSize;
+
+	/**
+	 * Maksymalna ilość buforów przechowywanych w puli. Nadmiarowe bufory
+	 * zwracane do puli są porzucane.
+	 */
+	protected final int maxPooled;
+
+	/**
+	 * Wolne bufory.
+	 */
+	private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+
+	/**
+	 * Główny konstruktor.
+	 *
+	 * @param bufferSize rozmiar pojedynczego bufora
+	 * @param maxPooled maksymalna ilość wolnych buforów w puli
+	 */
+	public ByteBufferPool(int bufferSize, int maxPooled)
+	{
+		if (bufferSize <= 0 || maxPooled <= 0)
+			throw new IllegalArgumentException();
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Pobiera wolny bufor z puli (lub tworzy nowy, jeżeli pula jest pusta).
+	 * Zwrócony bufor jest wyczyszczony.
+	 *
+	 * @return bufor gotowy do zapisu
+	 */
+	public ByteBuffer acquire()
+	{
+		ByteBuffer buff;
+		synchronized (freeBuffers)
+		{
+			buff = freeBuffers.pollFirst();
+		}
+		if (buff == null)
+			return ByteBuffer.allocateDirect(bufferSize);
+		buff.clear();
+		return buff;
+	}
+
+	/**
+	 * Zwraca bufor do puli. Po zwróceniu bufor nie może być już używany.
+	 *
+	 * @param buff bufor pobrany wcześniej metodą {@link #acquire()}
+	 */
+	public void release(ByteBuffer buff)
+	{
+		if (buff == null)
+			throw new NullPointerException();
+		if (buff.capacity() != bufferSize || !buff.isDirect())
+			throw new IllegalArgumentException("Bufor nie pochodzi z tej puli");
+		synchronized (freeBuffers)
+		{
+			if (freeBuffers.size() < maxPooled)
+				freeBuffers.addFirst(buff);
+		}
+	}
+
+	/**
+	 * @return rozmiar pojedynczego bufora
+	 */
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+}
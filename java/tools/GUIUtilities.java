@@ -227,6 +227,9 @@ public abstract class GUIUtilities
 	 * {@link InterruptedException} oraz {@link InvocationTargetException} -
 	 * po ich wystąpieniu, metoda zwraca <code>false</code>.
 	 *
+	 * Nie wolno wywoływać z wątków oznaczonych przez
+	 * {@link SwingEventQueue#markNonBlockingThread()}.
+	 *
 	 * @param runnable kod do wykonania w wątku AWT
 	 * @return <code>true</code>, jeżeli zakończony powodzeniem
 	 */
@@ -237,7 +240,11 @@ public abstract class GUIUtilities
 			if (SwingUtilities.isEventDispatchThread())
 				runnable.run();
 			else
+			{
+				if (SwingEventQueue.isNonBlockingThread())
+					SwingEventQueue.blockingCallFromNonBlockingThread();
 				SwingUtilities.invokeAndWait(runnable);
+			}
 		}
 		catch (InterruptedException e)
 		{
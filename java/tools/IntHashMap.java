@@ -0,0 +1,210 @@
+package tools;
+
+import java.util.*;
+
+/**
+ * Tablica mieszająca o kluczach typu <code>int</code>. W przeciwieństwie do
+ * <code>HashMap&lt;Integer, V&gt;</code> nie tworzy obiektów kluczy ani
+ * wpisów - klucze i wartości są trzymane w tablicach (adresowanie otwarte,
+ * sondowanie liniowe).
+ *
+ * Klasa nie jest bezpieczna wątkowo.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+public class IntHashMap<V>
+{
+	private int[] keys;
+
+	private Object[] values;
+
+	/**
+	 * Ilość wpisów.
+	 */
+	private int size = 0;
+
+	/**
+	 * Konstruktor tworzący pustą tablicę.
+	 */
+	public IntHashMap()
+	{
+		this(16);
+	}
+
+	/**
+	 * Konstruktor tworzący pustą tablicę o podanej początkowej pojemności.
+	 *
+	 * @param initialCapacity spodziewana ilość wpisów
+	 */
+	public IntHashMap(int initialCapacity)
+	{
+		if (initialCapacity < 0)
+			throw new IllegalArgumentException();
+		int capacity = 16;
+		while (capacity * 3 / 4 < initialCapacity)
+			capacity *= 2;
+		keys = new int[capacity];
+		values = new Object[capacity];
+	}
+
+	private static int hash(int key)
+	{
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int indexOf(int key)
+	{
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask)
+			if (keys[i] == key)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Pobiera wartość przypisaną do klucza.
+	 *
+	 * @param key klucz
+	 * @return wartość, lub <code>null</code>, jeżeli nie ma takiego klucza
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key)
+	{
+		int i = indexOf(key);
+		return (i < 0) ? null : (V)values[i];
+	}
+
+	/**
+	 * Sprawdza, czy w tablicy jest podany klucz.
+	 *
+	 * @param key klucz
+	 * @return <code>true</code>, jeżeli jest
+	 */
+	public boolean containsKey(int key)
+	{
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Przypisuje wartość do klucza.
+	 *
+	 * @param key klucz
+	 * @param value wartość (nie może być <code>null</code>)
+	 * @return poprzednia wartość, lub <code>null</code>, jeżeli jej nie było
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value)
+	{
+		if (value == null)
+			throw new NullPointerException();
+		int mask = keys.length - 1;
+		int i = hash(key) & mask;
+		for (; values[i] != null; i = (i + 1) & mask)
+			if (keys[i] == key)
+			{
+				V old = (V)values[i];
+				values[i] = value;
+				return old;
+			}
+		keys[i] = key;
+		values[i] = value;
+		if (++size > keys.length * 3 / 4)
+			resize(keys.length * 2);
+		return null;
+	}
+
+	/**
+	 * Usuwa klucz z tablicy.
+	 *
+	 * @param key klucz
+	 * @return usunięta wartość, lub <code>null</code>, jeżeli jej nie było
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key)
+	{
+		int i = indexOf(key);
+		if (i < 0)
+			return null;
+		V old = (V)values[i];
+
+		// przesuwamy kolejne wpisy łańcucha, aby nie zostawić dziury
+		int mask = keys.length - 1;
+		int j = i;
+		while (true)
+		{
+			j = (j + 1) & mask;
+			if (values[j] == null)
+				break;
+			int home = hash(keys[j]) & mask;
+			if ((j > i) ? (home <= i || home > j) : (home <= i && home > j))
+			{
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+		}
+		values[i] = null;
+		size--;
+		return old;
+	}
+
+	private void resize(int capacity)
+	{
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (oldValues[i] == null)
+				continue;
+			int j = hash(oldKeys[i]) & mask;
+			while (values[j] != null)
+				j = (j + 1) & mask;
+			keys[j] = oldKeys[i];
+			values[j] = oldValues[i];
+		}
+	}
+
+	/**
+	 * Usuwa wszystkie wpisy.
+	 */
+	public void clear()
+	{
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * @return ilość wpisów
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return <code>true</code>, jeżeli tablica jest pusta
+	 */
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * Zwraca kopię wszystkich wartości.
+	 *
+	 * @return lista wartości, w nieokreślonej kolejności
+	 */
+	@SuppressWarnings("unchecked")
+	public List<V> values()
+	{
+		List<V> result = new ArrayList<V>(size);
+		for (Object value : values)
+			if (value != null)
+				result.add((V)value);
+		return result;
+	}
+}
@@ -0,0 +1,95 @@
+package tools;
+
+import java.util.HashMap;
+
+/**
+ * Pula napisów - powtarzające się napisy (np. nazwy grup kontaktów) są
+ * zastępowane jedną, wspólną instancją. W przeciwieństwie do
+ * {@link String#intern()} pula ma ograniczony rozmiar - po zapełnieniu jest
+ * czyszczona, więc napisy odebrane z sieci nie mogą zapełnić pamięci.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+public class StringPool
+{
+	/**
+	 * Maksymalna ilość napisów w puli.
+	 */
+	protected final int maxSize;
+
+	/**
+	 * Napisy w puli (klucz i wartość to ta sama instancja).
+	 */
+	private final HashMap<String, String> pool = new HashMap<String, String>();
+
+	// statystyki
+
+	private long hitsCount = 0;
+
+	private long missesCount = 0;
+
+	private long clearsCount = 0;
+
+	/**
+	 * Główny konstruktor.
+	 *
+	 * @param maxSize maksymalna ilość napisów w puli
+	 */
+	public StringPool(int maxSize)
+	{
+		if (maxSize <= 0)
+			throw new IllegalArgumentException();
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Pobiera wspólną instancję napisu równego podanemu. Jeżeli takiego
+	 * napisu nie ma w puli - podany napis jest do niej dodawany.
+	 *
+	 * @param str napis
+	 * @return napis z puli (równy podanemu), lub <code>null</code>, jeżeli
+	 * podano <code>null</code>
+	 */
+	public synchronized String get(String str)
+	{
+		if (str == null)
+			return null;
+		String pooled = pool.get(str);
+		if (pooled != null)
+		{
+			hitsCount++;
+			return pooled;
+		}
+		missesCount++;
+		if (pool.size() >= maxSize)
+		{
+			pool.clear();
+			clearsCount++;
+		}
+		pool.put(str, str);
+		return str;
+	}
+
+	/**
+	 * Zwraca ilość napisów w puli.
+	 *
+	 * @return ilość napisów
+	 */
+	public synchronized int size()
+	{
+		return pool.size();
+	}
+
+	/**
+	 * Dopisuje statystyki puli do raportu.
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	public synchronized void appendStatistics(StringBuilder report)
+	{
+		report.append("  napisy w puli: ").append(pool.size()).
+			append(" (trafienia: ").append(hitsCount).
+			append(", nowe: ").append(missesCount).
+			append(", wyczyszczenia: ").append(clearsCount).append(")\n");
+	}
+}
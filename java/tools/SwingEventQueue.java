@@ -0,0 +1,295 @@
+package tools;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import javax.swing.SwingUtilities;
+
+import main.Main;
+
+/**
+ * Granica między wątkami protokołów a widokami Swing. Zdarzenia (zmiany
+ * modelu do odwzorowania w widoku) trafiają do ograniczonej, nieblokującej
+ * kolejki, opróżnianej przez wątek EDT - wątek zgłaszający zdarzenie nigdy
+ * nie czeka na jego obsłużenie.
+ *
+ * Wątki, które nie mogą czekać na EDT (np. odbierające pakiety), powinny się
+ * oznaczyć metodą {@link #markNonBlockingThread()} - wywołanie z nich
+ * {@link GUIUtilities#swingInvokeAndWait(Runnable)} jest wtedy błędem
+ * (przy włączonych asercjach: {@link AssertionError}). Takie wątki nie
+ * czekają też na miejsce w pełnej kolejce - ich zdarzenia
+ * ({@link #post(Runnable)}) są wtedy odrzucane (i liczone).
+ *
+ * Powtarzalne zdarzenia (np. odświeżenie wiadomości) można łączyć metodą
+ * {@link #post(Object, Runnable)} - w kolejce jest wtedy co najwyżej jedno
+ * zdarzenie dla danego celu. Zdarzenia łączone, oraz zgłaszane metodą
+ * {@link #invoke(Runnable)} (rzadkie zmiany struktury widoku, np. nowa
+ * karta rozmowy), nie są nigdy odrzucane - mogą przekroczyć pojemność
+ * kolejki (zdarzeń łączonych jest co najwyżej tyle, ile celów).
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+public abstract class SwingEventQueue
+{
+	private SwingEventQueue() { }
+
+	/**
+	 * Pojemność kolejki dla zwykłych zdarzeń. Po jej przekroczeniu wątek
+	 * zgłaszający zdarzenie czeka, aż EDT nadrobi zaległości (nie czeka
+	 * jednak na obsłużenie własnego zdarzenia). Zdarzenia wątków oznaczonych
+	 * jako nieblokujące są wtedy odrzucane - przeciążenie nie jest błędem
+	 * programu, a wątek sieciowy nie może czekać.
+	 */
+	public final static int capacity = 4096;
+
+	/**
+	 * Maksymalny czas (w nanosekundach) jednorazowego opróżniania kolejki -
+	 * po nim EDT obsługuje inne zdarzenia (np. rysowanie), a opróżnianie
+	 * jest kontynuowane później.
+	 */
+	protected final static long maxDrainTime = 8000000;
+
+	private final static ConcurrentLinkedQueue<Runnable> queue =
+			new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Liczba zdarzeń w kolejce (rozmiar {@link ConcurrentLinkedQueue} jest
+	 * liczony w czasie liniowym).
+	 */
+	private final static AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * Czy opróżnianie kolejki zostało już zlecone wątkowi EDT.
+	 */
+	private final static AtomicBoolean drainScheduled = new AtomicBoolean();
+
+	/**
+	 * Cele (klucze) zdarzeń łączonych, które czekają w kolejce.
+	 *
+	 * @see #post(Object, Runnable)
+	 */
+	private final static ConcurrentHashMap<Object, Boolean> pendingKeys =
+			new ConcurrentHashMap<Object, Boolean>();
+
+	private final static AtomicLong postedCount = new AtomicLong();
+	private final static AtomicLong coalescedCount = new AtomicLong();
+	private final static AtomicLong fullQueueWaits = new AtomicLong();
+	private final static AtomicLong droppedCount = new AtomicLong();
+	private final static AtomicLong blockingCallsCount = new AtomicLong();
+	private final static AtomicInteger maxSize = new AtomicInteger();
+
+	private final static ThreadLocal<Boolean> nonBlockingThread =
+			new ThreadLocal<Boolean>();
+
+	private final static Runnable drainer = new Runnable()
+	{
+		public void run()
+		{
+			long deadline = System.nanoTime() + maxDrainTime;
+			Runnable event;
+			while ((event = queue.poll()) != null)
+			{
+				size.decrementAndGet();
+				try
+				{
+					event.run();
+				}
+				catch (Throwable ex)
+				{
+					Main.logger.log(Level.SEVERE,
+						"Nie złapany wyjątek w zdarzeniu SwingEventQueue", ex);
+				}
+				if (System.nanoTime() > deadline)
+				{
+					SwingUtilities.invokeLater(this);
+					return;
+				}
+			}
+
+			drainScheduled.set(false);
+			// zdarzenie mogło zostać dodane po ostatnim poll, a przed set
+			if (!queue.isEmpty() && drainScheduled.compareAndSet(false, true))
+				SwingUtilities.invokeLater(this);
+		}
+	};
+
+	/**
+	 * Kolejkuje zdarzenie do obsłużenia w wątku EDT. Zdarzenia są
+	 * obsługiwane w kolejności zgłoszenia. Można wywoływać z dowolnego
+	 * wątku - metoda nie czeka na obsłużenie zdarzenia. Jeżeli kolejka jest
+	 * pełna, a wątek jest oznaczony jako nieblokujący, zdarzenie jest
+	 * odrzucane.
+	 *
+	 * @param event zdarzenie do obsłużenia
+	 * @see #capacity
+	 */
+	public static void post(Runnable event)
+	{
+		if (event == null)
+			throw new NullPointerException();
+		enqueue(event, false);
+	}
+
+	/**
+	 * Dodaje zdarzenie do kolejki i zleca jej opróżnienie.
+	 *
+	 * @param event zdarzenie do obsłużenia
+	 * @param reserved czy zdarzenie może przekroczyć pojemność kolejki
+	 * (zdarzenia łączone i strukturalne)
+	 * @return <code>false</code>, jeżeli zdarzenie zostało odrzucone
+	 */
+	private static boolean enqueue(Runnable event, boolean reserved)
+	{
+		int newSize = size.incrementAndGet();
+		if (newSize > capacity && !reserved &&
+			!SwingUtilities.isEventDispatchThread())
+		{
+			if (isNonBlockingThread())
+			{
+				size.decrementAndGet();
+				droppedCount.incrementAndGet();
+				return false;
+			}
+			fullQueueWaits.incrementAndGet();
+			while (size.get() > capacity)
+				LockSupport.parkNanos(100000);
+		}
+		queue.offer(event);
+		postedCount.incrementAndGet();
+
+		while (true)
+		{
+			int currentMax = maxSize.get();
+			if (newSize <= currentMax ||
+				maxSize.compareAndSet(currentMax, newSize))
+				break;
+		}
+
+		if (drainScheduled.compareAndSet(false, true))
+			SwingUtilities.invokeLater(drainer);
+		return true;
+	}
+
+	/**
+	 * Kolejkuje zdarzenie łączone - jeżeli w kolejce czeka już zdarzenie
+	 * o tym samym kluczu, nowe jest pomijane. Zdarzenie musi więc odczytywać
+	 * aktualny stan celu (a nie stan z chwili zgłoszenia). Klucz jest
+	 * zwalniany tuż przed obsłużeniem zdarzenia, więc zmiana w trakcie jego
+	 * obsługi zgłosi kolejne. Zdarzenie łączone nie jest nigdy odrzucane.
+	 *
+	 * @param key cel zdarzenia (porównywany metodą equals)
+	 * @param event zdarzenie do obsłużenia
+	 * @see #post(Runnable)
+	 */
+	public static void post(final Object key, final Runnable event)
+	{
+		if (key == null || event == null)
+			throw new NullPointerException();
+		if (pendingKeys.putIfAbsent(key, Boolean.TRUE) != null)
+		{
+			coalescedCount.incrementAndGet();
+			return;
+		}
+		enqueue(new Runnable()
+		{
+			public void run()
+			{
+				pendingKeys.remove(key);
+				event.run();
+			}
+		}, true);
+	}
+
+	/**
+	 * Obsługuje zdarzenie od razu, jeżeli wywołane z wątku EDT (po
+	 * zdarzeniach zakolejkowanych wcześniej - żeby zachować kolejność),
+	 * w przeciwnym przypadku kolejkuje je, tak jak {@link #post(Runnable)} -
+	 * ale nie odrzuca przy pełnej kolejce. Przeznaczone dla rzadkich zmian
+	 * struktury widoku, których nie można pominąć.
+	 *
+	 * @param event zdarzenie do obsłużenia
+	 */
+	public static void invoke(Runnable event)
+	{
+		if (event == null)
+			throw new NullPointerException();
+		if (!SwingUtilities.isEventDispatchThread())
+		{
+			enqueue(event, true);
+			return;
+		}
+
+		Runnable pending;
+		while ((pending = queue.poll()) != null)
+		{
+			size.decrementAndGet();
+			try
+			{
+				pending.run();
+			}
+			catch (Throwable ex)
+			{
+				Main.logger.log(Level.SEVERE,
+					"Nie złapany wyjątek w zdarzeniu SwingEventQueue", ex);
+			}
+		}
+		event.run();
+	}
+
+	/**
+	 * Oznacza bieżący wątek jako taki, który nie może czekać na wątek EDT.
+	 */
+	public static void markNonBlockingThread()
+	{
+		nonBlockingThread.set(Boolean.TRUE);
+	}
+
+	/**
+	 * Sprawdza, czy bieżący wątek nie może czekać na wątek EDT.
+	 *
+	 * @return <code>true</code>, jeżeli wątek został oznaczony
+	 * @see #markNonBlockingThread()
+	 */
+	public static boolean isNonBlockingThread()
+	{
+		return (nonBlockingThread.get() != null);
+	}
+
+	/**
+	 * Zgłasza wywołanie blokujące z wątku, który nie może czekać na EDT.
+	 * Przy włączonych asercjach rzuca wyjątek, w przeciwnym przypadku
+	 * tylko loguje błąd.
+	 */
+	static void blockingCallFromNonBlockingThread()
+	{
+		blockingCallsCount.incrementAndGet();
+		String msg = "Wątek \"" + Thread.currentThread().getName() +
+			"\" czeka na EventDispatchThread";
+		if (SwingEventQueue.class.desiredAssertionStatus())
+			throw new AssertionError(msg);
+		Main.logger.log(Level.SEVERE, msg, new Throwable());
+	}
+
+	/**
+	 * Dopisuje do raportu statystyki kolejki.
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	public static void appendStatistics(StringBuilder report)
+	{
+		report.append("Kolejka zdarzeń interfejsu\n");
+		report.append("  przekazane zdarzenia: ").append(postedCount.get()).
+			append(" (w kolejce: ").append(size.get()).
+			append(", najwięcej: ").append(maxSize.get()).append(")\n");
+		report.append("  połączone zdarzenia: ").
+			append(coalescedCount.get()).append('\n');
+		report.append("  oczekiwania na miejsce w kolejce: ").
+			append(fullQueueWaits.get()).
+			append(" (odrzucone z wątków sieciowych: ").
+			append(droppedCount.get()).append(")\n");
+		report.append("  blokujące wywołania z wątków sieciowych: ").
+			append(blockingCallsCount.get()).append('\n');
+	}
+}
@@ -3,7 +3,6 @@ package tools.html;
 import java.io.*;
 import java.net.URL;
 import java.util.*;
-import java.util.regex.*;
 import javax.swing.SwingUtilities;
 import javax.swing.text.*;
 import javax.swing.text.html.*;
@@ -30,8 +29,39 @@ public class HTMLUtilities
 	{
 		if (text == null)
 			throw new NullPointerException();
-		return text.replace("&", "&amp;").replace("<", "&lt;").
-				replace(">", "&gt;").replace("\"", "&quot;");
+		StringBuilder escaped = new StringBuilder(text.length() + 16);
+		appendEscaped(escaped, text, 0, text.length());
+		return escaped.toString();
+	}
+
+	/**
+	 * Dopisuje fragment tekstu do bufora, konwertując znaki specjalne HTML
+	 * (tak, jak {@link #escape(String)}).
+	 *
+	 * @param output bufor wynikowy
+	 * @param text tekst źródłowy
+	 * @param start początek fragmentu
+	 * @param end koniec fragmentu (wyłącznie)
+	 */
+	private static void appendEscaped(StringBuilder output, String text,
+		int start, int end)
+	{
+		int plainStart = start;
+		for (int i = start; i < end; i++)
+		{
+			String entity;
+			switch (text.charAt(i))
+			{
+				case '&': entity = "&amp;"; break;
+				case '<': entity = "&lt;"; break;
+				case '>': entity = "&gt;"; break;
+				case '"': entity = "&quot;"; break;
+				default: continue;
+			}
+			output.append(text, plainStart, i).append(entity);
+			plainStart = i + 1;
+		}
+		output.append(text, plainStart, end);
 	}
 
 	/**
@@ -69,49 +99,142 @@ public class HTMLUtilities
 	}
 
 	/**
-	 * Wyrażenie regularne znajdujące adresy URL.
+	 * Przedrostki adresów URL. Adresy bez protokołu (www.) otrzymują w łączu
+	 * protokół http.
 	 */
-	protected static final Pattern tagURLsPattern =
-			Pattern.compile(
-			"(\\s[(\\[<{]?)((https?://|ftp://|www\\.)\\S+?)([)\\]>}.:,;]?\\s)",
-			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	private static final String[] urlPrefixes =
+		{ "https://", "http://", "ftp://", "www." };
 
 	/**
-	 * Znajduje wszystkie adresy URL w tekście i zamienia je na łącza.
+	 * Zamienia zwykły tekst na kod HTML w jednym przejściu: konwertuje znaki
+	 * specjalne (jak {@link #escape(String)}), zamienia końce linii na
+	 * przełamania wiersza (jak {@link #nl2br(String)}) i opcjonalnie adresy
+	 * URL na łącza. Wynik jest dopisywany do bufora, który można
+	 * wykorzystywać wielokrotnie. Czas działania jest liniowy względem
+	 * długości tekstu.
+	 *
+	 * Adres URL to ciąg niebiałych znaków, zaczynający się od http://,
+	 * https://, ftp:// lub www., poprzedzony odstępem (lub otwierającym
+	 * nawiasem po odstępie). Jeden końcowy znak interpunkcyjny, lub nawias
+	 * zamykający, nie należy do adresu. Przy wyszukiwaniu adresów pomijane są
+	 * białe znaki z początku i końca tekstu.
 	 *
-	 * @param text tekst zawierający adresy
-	 * @return tekst z adresami zamienionymi w łącza
+	 * @param output bufor wynikowy
+	 * @param text zwykły tekst
+	 * @param tagURLs czy zamieniać adresy URL na łącza
 	 */
-	public static String tagURLs(String text)
+	public static void appendPlainText(StringBuilder output, String text,
+		boolean tagURLs)
 	{
 		if (text == null)
 			throw new NullPointerException();
 
-		StringBuffer result = new StringBuffer(text.length());
-		Matcher matcher = tagURLsPattern.matcher(" " + text.replaceAll("(\\s)", " $1") + " ");
-		
-		while (matcher.find())
+		int start = 0, end = text.length();
+		if (tagURLs)
 		{
-			String link = matcher.group(2);
-			String preLink = matcher.group(1);
-			String postLink = matcher.group(4);
-			String linkLowerCase = link.toLowerCase();
-
-			String url;
-			if (!linkLowerCase.startsWith("http://") &&
-				!linkLowerCase.startsWith("https://") &&
-				!linkLowerCase.startsWith("ftp://"))
-				url = "http://" + link;
-			else
-				url = link;
+			while (start < end && text.charAt(start) <= ' ')
+				start++;
+			while (end > start && text.charAt(end - 1) <= ' ')
+				end--;
+		}
+		output.ensureCapacity(output.length() + end - start + 16);
 
-			matcher.appendReplacement(result,
-					preLink + "<a href=\"" + url + "\">" + link + "</a>" + postLink);
+		int plainStart = start;
+		boolean wordStart = true;
+		int i = start;
+		while (i < end)
+		{
+			char c = text.charAt(i);
+			if (tagURLs && wordStart)
+			{
+				int urlStart = i;
+				if (c == '(' || c == '[' || c == '<' || c == '{')
+					urlStart++;
+				int urlEnd = findURLEnd(text, urlStart, end);
+				if (urlEnd >= 0)
+				{
+					appendEscaped(output, text, plainStart, urlStart);
+					appendLink(output, text, urlStart, urlEnd);
+					plainStart = i = urlEnd;
+					wordStart = false;
+					continue;
+				}
+			}
+			if (c == '\n')
+			{
+				appendEscaped(output, text, plainStart, i);
+				output.append("<br />");
+				plainStart = i + 1;
+			}
+			wordStart = isWhitespace(c);
+			i++;
 		}
-		matcher.appendTail(result);
-		return result.toString().trim().replaceAll(" (\\s)", "$1");
+		appendEscaped(output, text, plainStart, end);
 	}
 
+	/**
+	 * Sprawdza, czy znak jest białym znakiem (w sensie klasy \s wyrażeń
+	 * regularnych).
+	 *
+	 * @param c sprawdzany znak
+	 * @return <code>true</code>, jeżeli znak jest biały
+	 */
+	private static boolean isWhitespace(char c)
+	{
+		return (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' ||
+			c == '\f' || c == '\r');
+	}
+
+	/**
+	 * Sprawdza, czy od podanej pozycji zaczyna się adres URL.
+	 *
+	 * @param text przeszukiwany tekst
+	 * @param start początek potencjalnego adresu
+	 * @param end koniec przeszukiwanego fragmentu (wyłącznie)
+	 * @return koniec adresu (wyłącznie), lub -1, jeżeli nie ma tu adresu
+	 */
+	private static int findURLEnd(String text, int start, int end)
+	{
+		int prefixLength = 0;
+		for (String prefix : urlPrefixes)
+			if (text.regionMatches(true, start, prefix, 0, prefix.length()))
+			{
+				prefixLength = prefix.length();
+				break;
+			}
+		if (prefixLength == 0)
+			return -1;
+
+		int urlEnd = start + prefixLength;
+		while (urlEnd < end && !isWhitespace(text.charAt(urlEnd)))
+			urlEnd++;
+		if (urlEnd == start + prefixLength) // sam przedrostek
+			return -1;
+		if (urlEnd - 1 > start + prefixLength &&
+			")]>}.:,;".indexOf(text.charAt(urlEnd - 1)) >= 0)
+			urlEnd--;
+		return urlEnd;
+	}
+
+	/**
+	 * Dopisuje do bufora łącze do adresu URL.
+	 *
+	 * @param output bufor wynikowy
+	 * @param text tekst źródłowy
+	 * @param start początek adresu
+	 * @param end koniec adresu (wyłącznie)
+	 */
+	private static void appendLink(StringBuilder output, String text,
+		int start, int end)
+	{
+		output.append("<a href=\"");
+		if (text.regionMatches(true, start, "www.", 0, 4))
+			output.append("http://");
+		appendEscaped(output, text, start, end);
+		output.append("\">");
+		appendEscaped(output, text, start, end);
+		output.append("</a>");
+	}
 
 	/**
 	 * Wczytuje plik css z URL do podanego arkusza styli.
@@ -166,6 +289,35 @@ public class HTMLUtilities
 		});
 	}
 
+	/**
+	 * Umieszcza kod HTML przed początkiem podanego elementu.
+	 *
+	 * @param elem element
+	 * @param html kod HTML
+	 */
+	public static void insertBeforeStart(final Element elem, final String html)
+	{
+		GUIUtilities.swingInvokeAndWait(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					HTMLDocument doc = (HTMLDocument)elem.getDocument();
+					doc.insertBeforeStart(elem, html);
+				}
+				catch (BadLocationException ex)
+				{
+					throw new RuntimeException(ex);
+				}
+				catch (IOException ex)
+				{
+					throw new RuntimeException(ex);
+				}
+			}
+		});
+	}
+
 	/**
 	 * Umieszcza kod HTML po końcu podanego elementu.
 	 *
@@ -258,6 +410,33 @@ public class HTMLUtilities
 		});
 	}
 
+	/**
+	 * Usuwa z dokumentu sąsiednie elementy (od first do last, włącznie) -
+	 * jedną zmianą dokumentu, bez łączenia elementów sąsiednich.
+	 *
+	 * @param first pierwszy usuwany element
+	 * @param last ostatni usuwany element
+	 * @see RemovableHTMLDocument#removeElements(Element, Element)
+	 */
+	public static void removeRange(final Element first, final Element last)
+	{
+		GUIUtilities.swingInvokeAndWait(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					((RemovableHTMLDocument)first.getDocument()).
+						removeElements(first, last);
+				}
+				catch (BadLocationException ex)
+				{
+					throw new RuntimeException(ex);
+				}
+			}
+		});
+	}
+
 	public static String[] getElementClassNames(Element link)
 	{
 		Vector<String> classNames = new Vector<String>();
@@ -0,0 +1,98 @@
+package tools.html;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.UndoableEditEvent;
+import javax.swing.text.*;
+import javax.swing.text.html.*;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * Dokument HTML, z którego można usuwać całe elementy.
+ *
+ * Usunięcie zakresu tekstu z {@link HTMLDocument} łączy elementy na jego
+ * granicach - np. z dwóch tabel pozostaje jedna, z atrybutami (i id)
+ * pierwszej i zawartością drugiej. Ten dokument usuwa wskazane elementy
+ * w całości, bez zmiany elementów sąsiednich (tak, jak robi to
+ * {@link HTMLDocument#setInnerHTML(Element, String)}).
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+public class RemovableHTMLDocument extends HTMLDocument
+{
+	/**
+	 * Główny konstruktor.
+	 *
+	 * @param styles arkusz stylów dokumentu
+	 */
+	public RemovableHTMLDocument(StyleSheet styles)
+	{
+		super(styles);
+	}
+
+	/**
+	 * Usuwa sąsiednie elementy (od first do last, włącznie) wspólnego
+	 * rodzica. Usuwane elementy nie mogą obejmować ostatniego znaku
+	 * dokumentu.
+	 *
+	 * @param first pierwszy usuwany element
+	 * @param last ostatni usuwany element
+	 * @throws BadLocationException jeżeli elementy obejmują koniec dokumentu
+	 */
+	public void removeElements(Element first, Element last)
+		throws BadLocationException
+	{
+		Element parent = first.getParentElement();
+		if (parent == null || parent != last.getParentElement())
+			throw new IllegalArgumentException("Elementy nie są rodzeństwem");
+
+		writeLock();
+		try
+		{
+			int start = first.getStartOffset();
+			int end = last.getEndOffset();
+			if (end > getLength())
+				throw new BadLocationException("Nie można usunąć końca dokumentu", end);
+			int index = parent.getElementIndex(start);
+			int count = parent.getElementIndex(end - 1) - index + 1;
+
+			Element[] removed = new Element[count];
+			Element[] added = new Element[0];
+			for (int i = 0; i < count; i++)
+				removed[i] = parent.getElement(index + i);
+
+			DefaultDocumentEvent event = new DefaultDocumentEvent(
+				start, end - start, DocumentEvent.EventType.REMOVE);
+			((AbstractDocument.BranchElement)parent).replace(index, count, added);
+			event.addEdit(new ElementEdit(parent, index, removed, added));
+			UndoableEdit contentEdit = getContent().remove(start, end - start);
+			if (contentEdit != null)
+				event.addEdit(contentEdit);
+			postRemoveUpdate(event);
+			event.end();
+			fireRemoveUpdate(event);
+			if (contentEdit != null)
+				fireUndoableEditUpdate(new UndoableEditEvent(this, event));
+		}
+		finally
+		{
+			writeUnlock();
+		}
+	}
+
+	/**
+	 * Zestaw edycyjny HTML, tworzący dokumenty {@link RemovableHTMLDocument}.
+	 */
+	public static class EditorKit extends HTMLEditorKit
+	{
+		@Override public Document createDefaultDocument()
+		{
+			StyleSheet styles = new StyleSheet();
+			styles.addStyleSheet(getStyleSheet());
+			RemovableHTMLDocument doc = new RemovableHTMLDocument(styles);
+			doc.setParser(getParser());
+			doc.setAsynchronousLoadPriority(4);
+			doc.setTokenThreshold(100);
+			return doc;
+		}
+	}
+}
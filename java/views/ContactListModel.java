@@ -1,8 +1,10 @@
 package views;
 
-import java.text.Collator;
+import java.awt.event.*;
+import java.text.*;
 import java.util.*;
 import javax.swing.*;
+import javax.swing.Timer;
 
 import tools.SetListener;
 import protocols.*;
@@ -10,36 +12,133 @@ import protocols.*;
 /**
  * Model przedstawiający (opakowujący) listę kontaktów w wybranym porządku.
  *
+ * Zmiany listy kontaktów (zgłaszane z dowolnego wątku) są zbierane
+ * i wprowadzane w wątku EDT najwyżej raz na {@link #frameInterval} ms.
+ * Każdy zmieniony kontakt jest przestawiany na swoje miejsce wyszukiwaniem
+ * binarnym, a komponenty dostają dokładne powiadomienia o dodanych,
+ * usuniętych i zmienionych pozycjach - zamiast sortowania całej listy
+ * i odświeżania jej w całości.
+ *
+ * Listę można zawęzić do kontaktów pasujących do wyszukiwanego tekstu
+ * (patrz {@link ContactSearchIndex}), a także pogrupować - wtedy przed
+ * kontaktami każdej grupy znajduje się jej nagłówek ({@link Group}), a grupę
+ * można zwinąć. Nagłówki są zwykłymi wierszami tej samej, posortowanej listy,
+ * więc zmiany w pogrupowanej liście również są wprowadzane pojedynczo.
+ *
+ * Elementami modelu są kontakty ({@link Contact}) i nagłówki grup
+ * ({@link Group}).
+ *
  * @author Tomasz Wasilczyk (www.wasilczyk.pl)
  */
 public class ContactListModel extends AbstractListModel
 {
+	/**
+	 * Co ile ms (najczęściej) są wprowadzane zebrane zmiany.
+	 */
+	protected final static int frameInterval = 20;
+
+	/**
+	 * Od jakiej ilości zmian naraz (i ich udziału w liście) opłaca się
+	 * posortować całą listę zamiast przestawiać kontakty pojedynczo.
+	 */
+	protected final static int bulkChangesThreshold = 64;
+
 	/**
 	 * Opakowywana lista kontaktów.
 	 */
 	protected final ContactList contactList;
 
-	private final ArrayList<Contact> orderedContactList = new ArrayList<Contact>();
+	/**
+	 * Wiersze listy, w bieżącym porządku. Używane tylko w wątku EDT.
+	 */
+	private final ArrayList<Entry> rows = new ArrayList<Entry>();
+
+	/**
+	 * Wiersze według kontaktów - także tych ukrytych przez filtr. Używane
+	 * tylko w wątku EDT.
+	 */
+	private final HashMap<Contact, Entry> entries = new HashMap<Contact, Entry>();
+
+	/**
+	 * Grupy według nazw - tylko takie, do których należy jakiś kontakt (lub
+	 * zwinięte). Używane tylko w wątku EDT.
+	 */
+	private final HashMap<String, Group> groups = new HashMap<String, Group>();
+
+	/**
+	 * Wszystkie wiersze (także ukryte przez filtr), w bieżącym porządku - po
+	 * zmianie filtru lista jest z nich wybierana bez ponownego sortowania.
+	 * Używane tylko w wątku EDT.
+	 */
+	private final ArrayList<Entry> sortedEntries = new ArrayList<Entry>();
+
+	/**
+	 * Zmiany oczekujące na wprowadzenie. Synchronizacja na obiekcie mapy.
+	 *
+	 * Klucz: zmieniony kontakt
+	 * Wartość: czy kontakt jest na liście (<code>false</code> - usunięty)
+	 */
+	private final LinkedHashMap<Contact, Boolean> pendingChanges =
+			new LinkedHashMap<Contact, Boolean>();
+
+	/**
+	 * Czy zegar wprowadzający zmiany jest uruchomiony. Zegar jest
+	 * zatrzymywany dopiero w takcie, w którym nie było żadnych zmian.
+	 * Synchronizacja na obiekcie {@link #pendingChanges}.
+	 */
+	private boolean flushScheduled = false;
+
+	/**
+	 * Zegar wprowadzający zebrane zmiany (co {@link #frameInterval} ms).
+	 */
+	private final Timer flushTimer;
 
 	private final ContactListListener contactListListener = new ContactListListener();
 
+	/**
+	 * Indeks do wyszukiwania kontaktów.
+	 */
+	protected final ContactSearchIndex searchIndex;
+
+	/**
+	 * Słowa bieżącego filtru (puste - bez filtru). Używane tylko w wątku EDT.
+	 */
+	private String[] filterWords = new String[0];
+
+	/**
+	 * Porównywarka nazw kontaktów. Używana tylko w wątku EDT.
+	 */
+	private final Collator collator = Collator.getInstance();
+
 	/**
 	 * Sposób sortowania - według nazwy.
 	 */
-	protected final static Comparator<Contact> orderByName = new ContactOrderByName();
+	protected final static Comparator<Entry> orderByName = new ContactOrderByName();
 
 	/**
 	 * Sposób sortowania - według statusu, a następnie według nazwy.
 	 */
-	protected final static Comparator<Contact> orderByStatus = new ContactOrderByStatus();
+	protected final static Comparator<Entry> orderByStatus = new ContactOrderByStatus();
 
 	/**
-	 * Bieżący sposób sortowania. Po zmianie należy wywołać {@link #refreshList()}.
+	 * Bieżący sposób sortowania kontaktów (w obrębie grupy). Po zmianie
+	 * należy wywołać {@link #refreshList()}.
 	 *
 	 * @todo dać możliwość zmiany sposobu sortowania z poziomu interfejsu
 	 * użytkownika
 	 */
-	protected Comparator<Contact> orderComparator = orderByStatus;
+	protected Comparator<Entry> contactsComparator = orderByStatus;
+
+	/**
+	 * Czy lista jest pogrupowana. Używane tylko w wątku EDT.
+	 */
+	private boolean grouped = false;
+
+	/**
+	 * Porządek wierszy listy - {@link #contactsComparator}, poprzedzony
+	 * grupą, jeżeli lista jest pogrupowana. Używane tylko w wątku EDT.
+	 */
+	private Comparator<Entry> orderComparator = contactsComparator;
 
 	/**
 	 * Główny konstruktor.
@@ -51,37 +150,197 @@ public class ContactListModel extends AbstractListModel
 		if (contactList == null)
 			throw new NullPointerException();
 		this.contactList = contactList;
-		contactList.addSetListener(contactListListener);
+		this.searchIndex = new ContactSearchIndex(contactList);
+
+		flushTimer = new Timer(frameInterval, new ActionListener()
+		{
+			public void actionPerformed(ActionEvent e)
+			{
+				flushChanges();
+			}
+		});
+
+		synchronized (contactList)
+		{
+			contactList.addSetListener(contactListListener);
+			for (Contact contact : contactList)
+				contactChanged(contact, true);
+		}
+	}
+
+	/**
+	 * Wiersz listy - kontakt (lub nagłówek grupy) wraz z kluczem sortowania,
+	 * z jakim został umieszczony na liście.
+	 */
+	static class Entry
+	{
+		/**
+		 * Kontakt, lub <code>null</code> dla nagłówka grupy.
+		 */
+		public final Contact contact;
+
+		/**
+		 * Grupa kontaktu, lub grupa, której nagłówkiem jest wiersz.
+		 */
+		public final Group group;
+
+		public final Contact.UserStatus status;
+
+		public final CollationKey nameKey;
+
+		public final String id;
+
+		/**
+		 * Czy kontakt pasuje do filtru (dla nagłówka nie ma znaczenia).
+		 */
+		boolean matching = false;
+
+		/**
+		 * Czy wiersz jest widoczny (jest na liście).
+		 */
+		boolean visible = false;
+
+		public Entry(Contact contact, Group group, Collator collator)
+		{
+			this.contact = contact;
+			this.group = group;
+			this.status = contact.getStatus();
+			this.nameKey = collator.getCollationKey(contact.getName());
+			this.id = contact.getID();
+		}
+
+		public Entry(Group group)
+		{
+			this.contact = null;
+			this.group = group;
+			this.status = null;
+			this.nameKey = null;
+			this.id = null;
+		}
+
+		public boolean isHeader()
+		{
+			return (contact == null);
+		}
 	}
 
 	/**
-	 * Zwraca ilość kontaktów na liście.
+	 * Grupa kontaktów - nagłówek na pogrupowanej liście. Pola są zmieniane
+	 * tylko w wątku EDT, razem z powiadomieniem o zmianie wiersza nagłówka.
+	 */
+	public static class Group
+	{
+		protected final String name;
+
+		final CollationKey nameKey;
+
+		final Entry entry;
+
+		/**
+		 * Ilość kontaktów grupy pasujących do filtru.
+		 */
+		int contactsCount = 0;
+
+		/**
+		 * Ilość dostępnych kontaktów grupy pasujących do filtru.
+		 */
+		int onlineCount = 0;
+
+		/**
+		 * Ilość wszystkich kontaktów grupy (także nie pasujących do filtru).
+		 */
+		int totalCount = 0;
+
+		boolean collapsed = false;
+
+		Group(String name, Collator collator)
+		{
+			this.name = name;
+			this.nameKey = collator.getCollationKey(name);
+			this.entry = new Entry(this);
+		}
+
+		/**
+		 * Zwraca nazwę grupy.
+		 *
+		 * @return nazwa grupy (pusta dla kontaktów bez grupy)
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * Zwraca ilość kontaktów grupy widocznych na liście (gdy jest
+		 * rozwinięta) - czyli pasujących do bieżącego filtru.
+		 *
+		 * @return ilość kontaktów
+		 */
+		public int getContactsCount()
+		{
+			return contactsCount;
+		}
+
+		/**
+		 * Zwraca ilość dostępnych kontaktów spośród tych, zwracanych przez
+		 * {@link #getContactsCount()}.
+		 *
+		 * @return ilość dostępnych kontaktów
+		 */
+		public int getOnlineCount()
+		{
+			return onlineCount;
+		}
+
+		/**
+		 * Sprawdza, czy grupa jest zwinięta.
+		 *
+		 * @return <code>true</code>, jeżeli kontakty grupy są ukryte
+		 */
+		public boolean isCollapsed()
+		{
+			return collapsed;
+		}
+	}
+
+	/**
+	 * Zwraca ilość wierszy listy (kontaktów i nagłówków grup).
 	 *
-	 * @return ilość kontaktów
+	 * @return ilość wierszy
 	 */
 	public int getSize()
 	{
-		return orderedContactList.size();
+		return rows.size();
 	}
 
 	/**
-	 * Zwraca kontakt znajdujący się pod wybraną pozycją, według bieżącego
+	 * Zwraca element znajdujący się pod wybraną pozycją, według bieżącego
 	 * sposobu sortowania.
 	 *
 	 * @param index pozycja na liście
-	 * @return kontakt
+	 * @return kontakt ({@link Contact}), nagłówek grupy ({@link Group}), lub
+	 * <code>null</code>, jeżeli pozycja jest spoza listy
 	 */
-	public Contact getElementAt(int index)
+	public Object getElementAt(int index)
 	{
-		try
-		{
-			return orderedContactList.get(index);
-		}
-		catch (IndexOutOfBoundsException e) // występuje chyba tylko na Windowsie
-		{
-			refreshList(); // da się tego uniknąć?
+		if (index < 0 || index >= rows.size())
 			return null;
-		}
+		Entry entry = rows.get(index);
+		return entry.isHeader() ? entry.group : entry.contact;
+	}
+
+	/**
+	 * Zwraca kontakt znajdujący się pod wybraną pozycją.
+	 *
+	 * @param index pozycja na liście
+	 * @return kontakt, lub <code>null</code>, jeżeli pozycja jest spoza listy
+	 * albo jest na niej nagłówek grupy
+	 */
+	public Contact getContactAt(int index)
+	{
+		if (index < 0 || index >= rows.size())
+			return null;
+		return rows.get(index).contact;
 	}
 
 	/**
@@ -91,50 +350,439 @@ public class ContactListModel extends AbstractListModel
 	{
 		public void itemAdded(Contact contact)
 		{
-			if (contact == null)
-				throw new NullPointerException();
-			synchronized (orderedContactList)
+			contactChanged(contact, true);
+		}
+
+		public void itemRemoved(Contact contact)
+		{
+			contactChanged(contact, false);
+		}
+
+		public void itemUpdated(Contact contact)
+		{
+			contactChanged(contact, true);
+		}
+	}
+
+	/**
+	 * Odnotowuje zmianę kontaktu - zostanie wprowadzona razem z innymi
+	 * zmianami z tej samej ramki.
+	 *
+	 * @param contact zmieniony kontakt
+	 * @param present czy kontakt jest na liście
+	 */
+	private void contactChanged(Contact contact, boolean present)
+	{
+		if (contact == null)
+			throw new NullPointerException();
+		synchronized (pendingChanges)
+		{
+			pendingChanges.put(contact, present);
+			if (flushScheduled)
+				return;
+			flushScheduled = true;
+		}
+		flushTimer.start();
+	}
+
+	/**
+	 * Wprowadza zebrane zmiany. Wywoływane w wątku EDT.
+	 */
+	private void flushChanges()
+	{
+		ArrayList<Map.Entry<Contact, Boolean>> changes;
+		synchronized (pendingChanges)
+		{
+			if (pendingChanges.isEmpty())
 			{
-				orderedContactList.add(contact);
-				Collections.sort(orderedContactList, orderComparator);
+				flushScheduled = false;
+				flushTimer.stop();
+				return;
 			}
-			refreshList();
+			changes = new ArrayList<Map.Entry<Contact, Boolean>>(
+				pendingChanges.entrySet());
+			pendingChanges.clear();
 		}
 
-		public void itemRemoved(Contact contact)
+		if (changes.size() > bulkChangesThreshold &&
+			changes.size() > sortedEntries.size() / 4)
 		{
-			if (contact == null)
-				throw new NullPointerException();
-			synchronized (orderedContactList)
+			for (Map.Entry<Contact, Boolean> change : changes)
 			{
-				orderedContactList.remove(contact);
+				Contact contact = change.getKey();
+				Entry oldEntry = (change.getValue()) ?
+					entries.put(contact, createEntry(contact)) :
+					entries.remove(contact);
+				if (oldEntry != null)
+					oldEntry.group.totalCount--;
 			}
-			refreshList();
+			rebuildRows(true);
+			return;
 		}
 
-		public void itemUpdated(Contact contact)
+		for (Map.Entry<Contact, Boolean> change : changes)
 		{
-			if (contact == null)
-				throw new NullPointerException();
-			synchronized (orderedContactList)
+			Contact contact = change.getKey();
+			Entry oldEntry = entries.get(contact);
+			int oldIndex = -1;
+			if (oldEntry != null)
+			{
+				sortedEntries.remove(indexOf(sortedEntries, oldEntry));
+				if (oldEntry.visible)
+					oldIndex = indexOf(rows, oldEntry);
+				countEntry(oldEntry, -1);
+				oldEntry.group.totalCount--;
+			}
+
+			Entry newEntry = null;
+			if (change.getValue())
 			{
-				Collections.sort(orderedContactList, orderComparator);
+				newEntry = createEntry(contact);
+				newEntry.matching = isFilterMatching(contact);
+				newEntry.visible = isContactVisible(newEntry);
+				entries.put(contact, newEntry);
+				sortedEntries.add(insertionIndex(sortedEntries, newEntry), newEntry);
+				countEntry(newEntry, 1);
 			}
-			refreshList();
+			else
+				entries.remove(contact);
+
+			moveRow(oldIndex, newEntry);
+
+			if (oldEntry != null)
+				updateHeader(oldEntry.group);
+			if (newEntry != null && (oldEntry == null || oldEntry.group != newEntry.group))
+				updateHeader(newEntry.group);
+		}
+	}
+
+	/**
+	 * Przestawia wiersz kontaktu na właściwe miejsce listy.
+	 *
+	 * @param oldIndex dotychczasowa pozycja wiersza (-1, jeżeli nie był
+	 * widoczny)
+	 * @param newEntry nowy wiersz kontaktu (<code>null</code>, jeżeli kontakt
+	 * został usunięty)
+	 */
+	private void moveRow(int oldIndex, Entry newEntry)
+	{
+		if (oldIndex >= 0 && newEntry != null && newEntry.visible)
+		{
+			// kontakt nie zmienia miejsca - wystarczy go odświeżyć
+			if ((oldIndex == 0 || orderComparator.compare(
+					rows.get(oldIndex - 1), newEntry) < 0) &&
+				(oldIndex == rows.size() - 1 || orderComparator.compare(
+					newEntry, rows.get(oldIndex + 1)) < 0))
+			{
+				rows.set(oldIndex, newEntry);
+				fireContentsChanged(this, oldIndex, oldIndex);
+				return;
+			}
+		}
+		if (oldIndex >= 0)
+		{
+			rows.remove(oldIndex);
+			fireIntervalRemoved(this, oldIndex, oldIndex);
+		}
+		if (newEntry != null && newEntry.visible)
+		{
+			int newIndex = insertionIndex(rows, newEntry);
+			rows.add(newIndex, newEntry);
+			fireIntervalAdded(this, newIndex, newIndex);
+		}
+	}
+
+	/**
+	 * Tworzy wiersz kontaktu (wraz z grupą, jeżeli jeszcze jej nie ma).
+	 *
+	 * @param contact kontakt
+	 * @return nowy wiersz
+	 */
+	private Entry createEntry(Contact contact)
+	{
+		String groupName = contact.getGroup();
+		Group group = groups.get(groupName);
+		if (group == null)
+		{
+			group = new Group(groupName, collator);
+			groups.put(groupName, group);
+		}
+		group.totalCount++;
+		return new Entry(contact, group, collator);
+	}
+
+	/**
+	 * Uwzględnia wiersz kontaktu w licznikach (pasujących do filtru) kontaktów
+	 * jego grupy.
+	 *
+	 * @param entry wiersz kontaktu
+	 * @param delta 1 - dodanie wiersza, -1 - usunięcie
+	 */
+	private void countEntry(Entry entry, int delta)
+	{
+		if (!entry.matching)
+			return;
+		entry.group.contactsCount += delta;
+		if (entry.status != Contact.UserStatus.OFFLINE)
+			entry.group.onlineCount += delta;
+	}
+
+	/**
+	 * Sprawdza, czy wiersz kontaktu powinien być widoczny.
+	 *
+	 * @param entry wiersz kontaktu (z ustalonym polem {@link Entry#matching})
+	 * @return <code>true</code>, jeżeli wiersz ma być na liście
+	 */
+	private boolean isContactVisible(Entry entry)
+	{
+		return entry.matching && !(grouped && entry.group.collapsed);
+	}
+
+	/**
+	 * Dodaje, usuwa lub odświeża nagłówek grupy, po zmianie jej kontaktów.
+	 * Usuwa też grupę, do której nie należy już żaden kontakt.
+	 *
+	 * @param group zmieniona grupa
+	 */
+	private void updateHeader(Group group)
+	{
+		Entry header = group.entry;
+		boolean show = (grouped && group.contactsCount > 0);
+		if (header.visible && !show)
+		{
+			int index = indexOf(rows, header);
+			rows.remove(index);
+			header.visible = false;
+			fireIntervalRemoved(this, index, index);
 		}
+		else if (!header.visible && show)
+		{
+			int index = insertionIndex(rows, header);
+			rows.add(index, header);
+			header.visible = true;
+			fireIntervalAdded(this, index, index);
+		}
+		else if (show)
+		{
+			int index = indexOf(rows, header);
+			fireContentsChanged(this, index, index);
+		}
+
+		if (group.totalCount == 0 && !group.collapsed)
+			groups.remove(group.name);
 	}
 
 	/**
-	 * Wymusza odświeżenie komponentów korzystających z listy.
+	 * Sprawdza, czy kontakt pasuje do bieżącego filtru.
+	 *
+	 * @param contact sprawdzany kontakt
+	 * @return <code>true</code>, jeżeli kontakt ma być widoczny
+	 */
+	private boolean isFilterMatching(Contact contact)
+	{
+		return (filterWords.length == 0 ||
+			searchIndex.matches(contact, filterWords));
+	}
+
+	/**
+	 * Ustawia filtr listy - widoczne będą tylko kontakty, których słowa
+	 * (nazwa, grupa, status opisowy, adres) zaczynają się od słów podanego
+	 * tekstu. Wywoływane w wątku EDT.
+	 *
+	 * @param query wyszukiwany tekst (pusty - bez filtru)
+	 */
+	public void setFilter(String query)
+	{
+		if (query == null)
+			throw new NullPointerException();
+		String[] newFilterWords = ContactSearchIndex.parseQuery(query);
+		if (Arrays.equals(newFilterWords, filterWords))
+			return;
+		filterWords = newFilterWords;
+		rebuildRows(false);
+	}
+
+	/**
+	 * Włącza lub wyłącza grupowanie listy. Wywoływane w wątku EDT.
+	 *
+	 * @param grouped czy lista ma być pogrupowana
+	 */
+	public void setGrouped(boolean grouped)
+	{
+		if (this.grouped == grouped)
+			return;
+		this.grouped = grouped;
+		orderComparator = grouped ? new ContactOrderByGroup(contactsComparator) :
+			contactsComparator;
+		rebuildRows(true);
+	}
+
+	/**
+	 * Sprawdza, czy lista jest pogrupowana.
+	 *
+	 * @return <code>true</code>, jeżeli lista jest pogrupowana
+	 */
+	public boolean isGrouped()
+	{
+		return grouped;
+	}
+
+	/**
+	 * Zwija lub rozwija grupę - zwinięta grupa ma tylko nagłówek, bez
+	 * kontaktów. Kontakty grupy są usuwane z listy (lub wstawiane do niej)
+	 * jednym przedziałem. Wywoływane w wątku EDT.
+	 *
+	 * @param group grupa (nagłówek z listy)
+	 * @param collapsed czy grupa ma być zwinięta
+	 */
+	public void setGroupCollapsed(Group group, boolean collapsed)
+	{
+		if (group == null)
+			throw new NullPointerException();
+		if (group.collapsed == collapsed)
+			return;
+		group.collapsed = collapsed;
+		if (groups.get(group.name) != group) // grupa już nie istnieje
+			return;
+		if (!grouped)
+			return;
+
+		// kontakty grupy są w sortedEntries zaraz za (nieobecnym tam) nagłówkiem
+		ArrayList<Entry> groupEntries = new ArrayList<Entry>();
+		for (int i = insertionIndex(sortedEntries, group.entry);
+			i < sortedEntries.size(); i++)
+		{
+			Entry entry = sortedEntries.get(i);
+			if (entry.group != group)
+				break;
+			if (!entry.matching)
+				continue;
+			entry.visible = !collapsed;
+			groupEntries.add(entry);
+		}
+		if (groupEntries.isEmpty() || !group.entry.visible)
+			return;
+
+		int first = indexOf(rows, group.entry) + 1;
+		int last = first + groupEntries.size() - 1;
+		if (collapsed)
+		{
+			rows.subList(first, last + 1).clear();
+			fireIntervalRemoved(this, first, last);
+		}
+		else
+		{
+			rows.addAll(first, groupEntries);
+			fireIntervalAdded(this, first, last);
+		}
+		fireContentsChanged(this, first - 1, first - 1);
+	}
+
+	/**
+	 * Wyszukuje pozycję wiersza na posortowanej liście.
+	 *
+	 * @param list lista wierszy
+	 * @param entry wiersz (znajdujący się na liście)
+	 * @return pozycja wiersza
+	 */
+	private int indexOf(ArrayList<Entry> list, Entry entry)
+	{
+		int index = Collections.binarySearch(list, entry, orderComparator);
+		if (index < 0 || list.get(index) != entry)
+			throw new IllegalStateException("Lista kontaktów nie jest posortowana");
+		return index;
+	}
+
+	/**
+	 * Wyszukuje pozycję, na której należy wstawić wiersz do posortowanej
+	 * listy.
+	 *
+	 * @param list lista wierszy
+	 * @param entry wiersz (nie znajdujący się na liście)
+	 * @return pozycja do wstawienia
+	 */
+	private int insertionIndex(ArrayList<Entry> list, Entry entry)
+	{
+		return -Collections.binarySearch(list, entry, orderComparator) - 1;
+	}
+
+	/**
+	 * Układa listę od nowa, według bieżącego filtru i grupowania.
+	 *
+	 * @param resort czy trzeba też ponownie posortować wszystkie wiersze
+	 * (po zmianie wielu z nich, lub sposobu sortowania)
+	 */
+	private void rebuildRows(boolean resort)
+	{
+		if (resort)
+		{
+			sortedEntries.clear();
+			sortedEntries.addAll(entries.values());
+			Collections.sort(sortedEntries, orderComparator);
+		}
+
+		Iterator<Group> itGroups = groups.values().iterator();
+		while (itGroups.hasNext())
+		{
+			Group group = itGroups.next();
+			if (group.totalCount == 0 && !group.collapsed)
+			{
+				itGroups.remove();
+				continue;
+			}
+			group.contactsCount = 0;
+			group.onlineCount = 0;
+			group.entry.visible = false;
+		}
+
+		Set<Contact> found = (filterWords.length == 0) ? null :
+			searchIndex.find(filterWords);
+		for (Entry entry : sortedEntries)
+		{
+			entry.matching = (found == null || found.contains(entry.contact));
+			countEntry(entry, 1);
+		}
+
+		int oldSize = rows.size();
+		rows.clear();
+		Group currentGroup = null;
+		for (Entry entry : sortedEntries)
+		{
+			entry.visible = isContactVisible(entry);
+			if (!entry.matching)
+				continue;
+			if (grouped && entry.group != currentGroup)
+			{
+				// pierwszy pasujący kontakt grupy - przed nim jej nagłówek
+				currentGroup = entry.group;
+				currentGroup.entry.visible = true;
+				rows.add(currentGroup.entry);
+			}
+			if (entry.visible)
+				rows.add(entry);
+		}
+
+		if (oldSize > rows.size())
+			fireIntervalRemoved(this, rows.size(), oldSize - 1);
+		else if (oldSize < rows.size())
+			fireIntervalAdded(this, oldSize, rows.size() - 1);
+		if (!rows.isEmpty())
+			fireContentsChanged(this, 0, rows.size() - 1);
+	}
+
+	/**
+	 * Wymusza ponowne posortowanie i odświeżenie listy (np. po zmianie
+	 * sposobu sortowania).
 	 */
 	protected void refreshList()
 	{
-		final ContactListModel model = this;
 		SwingUtilities.invokeLater(new Runnable()
 		{
 			public void run()
 			{
-				fireContentsChanged(model, 0, Integer.MAX_VALUE);
+				orderComparator = grouped ?
+					new ContactOrderByGroup(contactsComparator) : contactsComparator;
+				rebuildRows(true);
 			}
 		});
 	}
@@ -145,11 +793,14 @@ public class ContactListModel extends AbstractListModel
  *
  * @author Tomasz Wasilczyk (www.wasilczyk.pl)
  */
-class ContactOrderByName implements Comparator<Contact>
+class ContactOrderByName implements Comparator<ContactListModel.Entry>
 {
-	public int compare(Contact o1, Contact o2)
+	public int compare(ContactListModel.Entry o1, ContactListModel.Entry o2)
 	{
-		return Collator.getInstance().compare(o1.getName(), o2.getName());
+		int cmp = o1.nameKey.compareTo(o2.nameKey);
+		if (cmp != 0)
+			return cmp;
+		return o1.id.compareTo(o2.id); // jednoznaczny porządek
 	}
 }
 
@@ -158,12 +809,52 @@ class ContactOrderByName implements Comparator<Contact>
  *
  * @author Tomasz Wasilczyk (www.wasilczyk.pl)
  */
-class ContactOrderByStatus implements Comparator<Contact>
+class ContactOrderByStatus extends ContactOrderByName
 {
-	public int compare(Contact o1, Contact o2)
+	@Override public int compare(ContactListModel.Entry o1,
+		ContactListModel.Entry o2)
 	{
-		if (o1.getStatus().equals(o2.getStatus()))
-			return Collator.getInstance().compare(o1.getName(), o2.getName());
-		return o1.getStatus().compareTo(o2.getStatus());
+		if (o1.status != o2.status)
+			return o1.status.compareTo(o2.status);
+		return super.compare(o1, o2);
+	}
+}
+
+/**
+ * Porządek pogrupowanej listy kontaktów - według nazwy grupy (kontakty bez
+ * grupy na końcu), w grupie najpierw nagłówek, a następnie kontakty według
+ * wybranego porządku.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+class ContactOrderByGroup implements Comparator<ContactListModel.Entry>
+{
+	protected final Comparator<ContactListModel.Entry> contactsComparator;
+
+	public ContactOrderByGroup(Comparator<ContactListModel.Entry> contactsComparator)
+	{
+		if (contactsComparator == null)
+			throw new NullPointerException();
+		this.contactsComparator = contactsComparator;
+	}
+
+	public int compare(ContactListModel.Entry o1, ContactListModel.Entry o2)
+	{
+		if (o1 == o2)
+			return 0;
+		ContactListModel.Group g1 = o1.group, g2 = o2.group;
+		if (g1 != g2)
+		{
+			boolean noGroup1 = g1.getName().isEmpty();
+			if (noGroup1 != g2.getName().isEmpty())
+				return noGroup1 ? 1 : -1;
+			int cmp = g1.nameKey.compareTo(g2.nameKey);
+			if (cmp != 0)
+				return cmp;
+			return g1.getName().compareTo(g2.getName());
+		}
+		if (o1.isHeader() != o2.isHeader())
+			return o1.isHeader() ? -1 : 1;
+		return contactsComparator.compare(o1, o2);
 	}
 }
@@ -0,0 +1,248 @@
+package views;
+
+import java.text.Normalizer;
+import java.util.*;
+
+import tools.SetListener;
+import protocols.*;
+
+/**
+ * Indeks do wyszukiwania kontaktów po początkach słów z nazwy, grupy,
+ * statusu opisowego i identyfikatora (np. adresu IP). Jest aktualizowany na
+ * bieżąco, na podstawie zmian listy kontaktów - wyszukiwanie nie przegląda
+ * całej listy, tylko zakres posortowanych słów zaczynających się od
+ * wpisanego tekstu.
+ *
+ * Wielkość liter i znaki diakrytyczne nie mają znaczenia ("zolw" znajdzie
+ * "Żółw"). Zapytanie z kilku słów znajduje kontakty pasujące do wszystkich.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+public class ContactSearchIndex
+{
+	/**
+	 * Kontakty według słów. Synchronizacja na obiekcie indeksu.
+	 */
+	private final TreeMap<String, HashSet<Contact>> words =
+			new TreeMap<String, HashSet<Contact>>();
+
+	/**
+	 * Słowa, pod którymi jest zapisany dany kontakt. Synchronizacja na
+	 * obiekcie indeksu.
+	 */
+	private final HashMap<Contact, String[]> contactWords =
+			new HashMap<Contact, String[]>();
+
+	private final ContactListListener contactListListener = new ContactListListener();
+
+	/**
+	 * Główny konstruktor.
+	 *
+	 * @param contactList indeksowana lista kontaktów
+	 */
+	public ContactSearchIndex(ContactList contactList)
+	{
+		if (contactList == null)
+			throw new NullPointerException();
+		synchronized (contactList)
+		{
+			contactList.addSetListener(contactListListener);
+			for (Contact contact : contactList)
+				update(contact);
+		}
+	}
+
+	/**
+	 * Klasa śledząca zmiany w indeksowanej liście kontaktów.
+	 */
+	class ContactListListener implements SetListener<Contact>
+	{
+		public void itemAdded(Contact contact)
+		{
+			update(contact);
+		}
+
+		public void itemRemoved(Contact contact)
+		{
+			remove(contact);
+		}
+
+		public void itemUpdated(Contact contact)
+		{
+			update(contact);
+		}
+	}
+
+	/**
+	 * Sprowadza tekst do postaci, w jakiej jest indeksowany - małe litery,
+	 * bez znaków diakrytycznych.
+	 *
+	 * @param text tekst do znormalizowania
+	 * @return znormalizowany tekst
+	 */
+	public static String normalize(String text)
+	{
+		String decomposed = Normalizer.normalize(text.toLowerCase(), Normalizer.Form.NFD);
+		StringBuilder normalized = new StringBuilder(decomposed.length());
+		for (int i = 0; i < decomposed.length(); i++)
+		{
+			char c = decomposed.charAt(i);
+			if (Character.getType(c) == Character.NON_SPACING_MARK)
+				continue;
+			if (c == 'ł') // nie rozkłada się na literę i znak diakrytyczny
+				c = 'l';
+			normalized.append(c);
+		}
+		return normalized.toString();
+	}
+
+	/**
+	 * Dzieli tekst na (znormalizowane) słowa.
+	 *
+	 * @param text tekst do podzielenia
+	 * @param target zbiór, do którego dopisać słowa
+	 */
+	private static void splitWords(String text, Collection<String> target)
+	{
+		if (text == null)
+			return;
+		for (String word : normalize(text).split("[\\s,;:()\\[\\]\"'@]+"))
+			if (!word.isEmpty())
+				target.add(word);
+	}
+
+	/**
+	 * Dodaje kontakt do indeksu, lub aktualizuje jego słowa.
+	 *
+	 * @param contact kontakt
+	 */
+	private void update(Contact contact)
+	{
+		LinkedHashSet<String> newWords = new LinkedHashSet<String>();
+		splitWords(contact.getName(), newWords);
+		splitWords(contact.getGroup(), newWords);
+		splitWords(contact.getTextStatus(), newWords);
+		String id = contact.getID(); // bez nazwy protokołu - pasowałaby do wszystkich
+		int protocolStart = id.lastIndexOf('@');
+		splitWords((protocolStart < 0) ? id : id.substring(0, protocolStart),
+			newWords);
+		String[] wordsArray = newWords.toArray(new String[newWords.size()]);
+
+		synchronized (this)
+		{
+			String[] oldWords = contactWords.get(contact);
+			if (oldWords != null && Arrays.equals(oldWords, wordsArray))
+				return;
+			remove(contact);
+			contactWords.put(contact, wordsArray);
+			for (String word : wordsArray)
+			{
+				HashSet<Contact> contacts = words.get(word);
+				if (contacts == null)
+				{
+					contacts = new HashSet<Contact>(2);
+					words.put(word, contacts);
+				}
+				contacts.add(contact);
+			}
+		}
+	}
+
+	/**
+	 * Usuwa kontakt z indeksu.
+	 *
+	 * @param contact kontakt
+	 */
+	private synchronized void remove(Contact contact)
+	{
+		String[] oldWords = contactWords.remove(contact);
+		if (oldWords == null)
+			return;
+		for (String word : oldWords)
+		{
+			HashSet<Contact> contacts = words.get(word);
+			if (contacts == null)
+				continue;
+			contacts.remove(contact);
+			if (contacts.isEmpty())
+				words.remove(word);
+		}
+	}
+
+	/**
+	 * Dzieli zapytanie na (znormalizowane) słowa.
+	 *
+	 * @param query zapytanie
+	 * @return słowa zapytania (puste, jeżeli zapytanie jest puste)
+	 */
+	public static String[] parseQuery(String query)
+	{
+		ArrayList<String> queryWords = new ArrayList<String>();
+		splitWords(query, queryWords);
+		return queryWords.toArray(new String[queryWords.size()]);
+	}
+
+	/**
+	 * Wyszukuje kontakty, które mają słowa zaczynające się od każdego ze
+	 * słów zapytania. Z indeksu pobierani są kandydaci pasujący do
+	 * najdłuższego (zwykle najbardziej wybiórczego) słowa zapytania,
+	 * a pozostałe słowa są sprawdzane już tylko dla nich.
+	 *
+	 * @param queryWords słowa zapytania
+	 * @return znalezione kontakty
+	 * @see #parseQuery(String)
+	 */
+	public synchronized Set<Contact> find(String[] queryWords)
+	{
+		if (queryWords.length == 0)
+			return new HashSet<Contact>(contactWords.keySet());
+
+		String longest = queryWords[0];
+		for (String queryWord : queryWords)
+			if (queryWord.length() > longest.length())
+				longest = queryWord;
+
+		HashSet<Contact> found = new HashSet<Contact>();
+		// wszystkie słowa z zakresu [longest, longest + max)
+		for (HashSet<Contact> contacts : words.subMap(longest,
+			longest + Character.MAX_VALUE).values())
+		{
+			if (queryWords.length == 1)
+				found.addAll(contacts);
+			else
+				for (Contact contact : contacts)
+					if (!found.contains(contact) && matches(contact, queryWords))
+						found.add(contact);
+		}
+		return found;
+	}
+
+	/**
+	 * Sprawdza, czy kontakt pasuje do zapytania - bez przeglądania indeksu,
+	 * tylko słów samego kontaktu.
+	 *
+	 * @param contact sprawdzany kontakt
+	 * @param queryWords słowa zapytania
+	 * @return <code>true</code>, jeżeli kontakt pasuje
+	 * @see #parseQuery(String)
+	 */
+	public synchronized boolean matches(Contact contact, String[] queryWords)
+	{
+		String[] indexedWords = contactWords.get(contact);
+		if (indexedWords == null)
+			return (queryWords.length == 0);
+		for (String queryWord : queryWords)
+		{
+			boolean wordMatches = false;
+			for (String word : indexedWords)
+				if (word.startsWith(queryWord))
+				{
+					wordMatches = true;
+					break;
+				}
+			if (!wordMatches)
+				return false;
+		}
+		return true;
+	}
+}
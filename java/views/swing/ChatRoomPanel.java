@@ -50,7 +50,17 @@ public class ChatRoomPanel extends JPanel implements SetListener<Message>
 		this.chatRoomsView = chatRoomsView;
 		this.chatRoom = chatRoom;
 		messagesPanel = new MessagesPanel(this);
-		chatRoom.getMessagesVector().addSetListener(this);
+		// panel może powstać później, niż pokój - wiadomości, które przyszły
+		// w międzyczasie, są już w pokoju
+		ListenableVector<Message> messages = chatRoom.getMessagesVector();
+		synchronized (messages)
+		{
+			messages.addSetListener(this);
+			for (Message message : messages)
+				messagesPanel.add(message);
+			if (!messages.isEmpty())
+				checkUnread();
+		}
 
 		this.setLayout(new BorderLayout(0, 4));
 		this.setBorder(BorderFactory.createEmptyBorder(3, 3, 3, 0));
@@ -286,8 +296,29 @@ public class ChatRoomPanel extends JPanel implements SetListener<Message>
 	public void itemAdded(Message item)
 	{
 		messagesPanel.add(item);
-		if (!isFocusedTab())
-			setUnread(true);
+		checkUnread();
+	}
+
+	/**
+	 * Klucz łączenia sprawdzeń {@link #checkUnread()} w kolejce zdarzeń.
+	 */
+	private final Object checkUnreadKey = new Object();
+
+	/**
+	 * Oznacza pokój jako nie przeczytany, jeżeli nie jest aktywną kartą.
+	 * Sprawdzenie odbywa się w wątku EDT - nie blokuje wątku, który dodał
+	 * wiadomość. Sprawdzenia po kolejnych wiadomościach są łączone.
+	 */
+	private void checkUnread()
+	{
+		SwingEventQueue.post(checkUnreadKey, new Runnable()
+		{
+			public void run()
+			{
+				if (!isFocusedTab())
+					setUnread(true);
+			}
+		});
 	}
 
 	public void itemRemoved(Message item)
@@ -304,6 +335,8 @@ public class ChatRoomPanel extends JPanel implements SetListener<Message>
 	{
 		if (!this.chatRoomsView.isFocused())
 			return false;
+		if (!(this.getParent() instanceof ChatTabs))
+			return false;
 		return (this == ((ChatTabs)this.getParent()).getSelectedRoom());
 	}
 
@@ -102,7 +102,7 @@ public class ChatTabs extends JTabbedPane implements MouseListener, SetListener<
 
 	public void itemAdded(final ChatRoom item)
 	{
-		GUIUtilities.swingInvokeAndWait(new Runnable()
+		SwingEventQueue.invoke(new Runnable()
 		{
 			public void run()
 			{
@@ -119,7 +119,7 @@ public class ChatTabs extends JTabbedPane implements MouseListener, SetListener<
 
 	public void itemRemoved(final ChatRoom item)
 	{
-		GUIUtilities.swingInvokeAndWait(new Runnable()
+		SwingEventQueue.invoke(new Runnable()
 		{
 			public void run()
 			{
@@ -31,8 +31,8 @@ public class ConfigurationView extends JFrame
 		setVisible(false);
 		this.mainController = mainController;
 
-		setMinimumSize(new Dimension(400, 200));
-		setPreferredSize(new Dimension(400, 200));
+		setMinimumSize(new Dimension(400, 260));
+		setPreferredSize(new Dimension(400, 290));
 		setLayout(new BorderLayout());
 		setIconImage(ResourceManager.getIcon("icons/32.png").getImage());
 		addKeyListener(configurationViewListener);
@@ -174,6 +174,10 @@ public class ConfigurationView extends JFrame
 	protected final JTextField fieldNick = new JTextField();
 	protected final JCheckBox fieldIgnoreAutoResponses = new JCheckBox();
 	protected final JCheckBox fieldAutoUpdate = new JCheckBox();
+	protected final JCheckBox fieldContactListGrouped = new JCheckBox();
+	protected final JCheckBox fieldMulticastEnabled = new JCheckBox();
+	protected final JTextField fieldMulticastGroup = new JTextField();
+	protected final JCheckBox fieldMulticastOnly = new JCheckBox();
 
 	protected final void prepareControls()
 	{
@@ -196,6 +200,34 @@ public class ConfigurationView extends JFrame
 			"W czasie sprawdzania numeru wersji, nie są wysyłane żadne prywatne " +
 			"dane (co można\nzweryfikować przeglądając kod źródłowy), a sama " +
 			"instalacja nowej wersji musi być\nprzeprowadzona ręcznie przez użytkownika.");
+
+		fieldContactListGrouped.setText("Grupuj kontakty na liście");
+		addControl(fieldContactListGrouped, null,
+			"Kontakty są wyświetlane w zwijanych grupach (np. działach), " +
+			"według grupy ustawionej\nprzez każdego z użytkowników. Grupę można " +
+			"zwinąć lub rozwinąć klikając w jej nagłówek.");
+
+		fieldMulticastEnabled.setText("Używaj grupy multicast");
+		addControl(fieldMulticastEnabled, null,
+			"Powiadomienia o obecności i wiadomości do pokoju głównego są " +
+			"domyślnie wysyłane na broadcast,\nczyli do wszystkich komputerów " +
+			"w podsieci - i nie przechodzą przez routery.\n\n" +
+			"Po włączeniu tej opcji program dołącza do grupy multicast i wysyła " +
+			"je także do komputerów\nw tej grupie (również za routerami).\n\n" +
+			"Wszyscy użytkownicy muszą mieć ustawioną tą samą grupę. Zmiana " +
+			"obowiązuje od kolejnego połączenia.");
+		addControl(fieldMulticastGroup, "Grupa multicast:",
+			"Adres grupy IPv4 (np. " + Configuration.defaultMulticastGroup +
+			"), albo IPv6 link-local (np. ff02::2425).");
+
+		fieldMulticastOnly.setText("Nie wysyłaj na broadcast");
+		addControl(fieldMulticastOnly, null,
+			"Przy włączonej grupie multicast, powiadomienia i wiadomości do " +
+			"pokoju głównego są wysyłane\nna broadcast tylko wtedy, gdy są " +
+			"dostępni użytkownicy programów, które nie obsługują\ngrupy (np. " +
+			"oryginalnego klienta IPMsg). Takie programy, których jeszcze nie " +
+			"znamy,\nnie dostaną wtedy np. wiadomości do pokoju głównego.\n\n" +
+			"Zmiana obowiązuje od kolejnego połączenia.");
 		
 		loadControlsFromConfiguration();
 	}
@@ -207,6 +239,10 @@ public class ConfigurationView extends JFrame
 		fieldNick.setText(conf.getNick());
 		fieldIgnoreAutoResponses.setSelected(conf.getIgnoreAutoResponses());
 		fieldAutoUpdate.setSelected(conf.getAutoUpdate());
+		fieldContactListGrouped.setSelected(conf.getContactListGrouped());
+		fieldMulticastEnabled.setSelected(conf.getMulticastEnabled());
+		fieldMulticastGroup.setText(conf.getMulticastGroup());
+		fieldMulticastOnly.setSelected(conf.getMulticastOnly());
 	}
 
 	protected void saveConfigurationFromControls()
@@ -216,6 +252,10 @@ public class ConfigurationView extends JFrame
 		conf.setNick(fieldNick.getText());
 		conf.setIgnoreAutoResponses(fieldIgnoreAutoResponses.isSelected());
 		conf.setAutoUpdate(fieldAutoUpdate.isSelected());
+		conf.setContactListGrouped(fieldContactListGrouped.isSelected());
+		conf.setMulticastEnabled(fieldMulticastEnabled.isSelected());
+		conf.setMulticastGroup(fieldMulticastGroup.getText());
+		conf.setMulticastOnly(fieldMulticastOnly.isSelected());
 
 		conf.notifyObservers();
 		mainController.saveConfiguration();
@@ -2,23 +2,37 @@ package views.swing;
 
 import java.awt.*;
 import java.awt.event.*;
+import java.util.*;
 import javax.swing.*;
+import javax.swing.event.*;
 
 import components.swing.JImagePanel;
 import controllers.MainController;
+import main.Configuration;
 import protocols.*;
 import resources.ResourceManager;
+import tools.SetListener;
 import tools.html.HTMLUtilities;
 import views.ContactListModel;
 
 /**
- * Komponent wyświetlający listę kontaktów.
+ * Komponent wyświetlający listę kontaktów, z polem wyszukiwania - lista jest
+ * zawężana do pasujących kontaktów w trakcie pisania.
+ *
+ * Kontakty mogą być pogrupowane w zwijane grupy (patrz
+ * {@link Configuration#getContactListGrouped()}). Wiersze mają stałą
+ * wysokość, więc lista rozmieszcza i rysuje tylko wiersze widoczne
+ * w przewijanym obszarze, a przygotowane dane wierszy (ikony i etykiety) są
+ * zapamiętywane (patrz {@link ContactListPanelRenderer}).
  *
  * @author Tomasz Wasilczyk (www.wasilczyk.pl)
  */
 public class ContactListPanel extends JScrollPane
 {
 	private final ContactListPanelList contactListPanelList;
+	private final ContactSearchField contactSearchField;
+	private final ContactListModel contactListModel;
+	private final ContactListPanelRenderer contactListPanelRenderer;
 	protected final ContactList contactList;
 	protected final MainController mainController;
 	protected final MainView mainView;
@@ -30,11 +44,62 @@ public class ContactListPanel extends JScrollPane
 		this.mainView = mainView;
 		this.mainController = mainView.getMainController();
 		this.contactList = mainController.getContactList();
+		this.contactListModel = new ContactListModel(contactList);
+		this.contactListPanelRenderer = new ContactListPanelRenderer(contactList);
 		this.contactListPanelList = new ContactListPanelList();
+		this.contactSearchField = new ContactSearchField();
 
 		this.setViewportView(contactListPanelList);
+		this.setColumnHeaderView(contactSearchField);
 		this.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
 		this.setBorder(BorderFactory.createEmptyBorder());
+
+		Configuration conf = Configuration.getInstance();
+		contactListModel.setGrouped(conf.getContactListGrouped());
+		conf.addObserver(new ConfigurationObserver());
+	}
+
+	/**
+	 * Klasa śledząca zmiany konfiguracji - włączenie lub wyłączenie
+	 * grupowania listy.
+	 */
+	class ConfigurationObserver implements Observer
+	{
+		public void update(Observable o, Object arg)
+		{
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				public void run()
+				{
+					contactListModel.setGrouped(
+						Configuration.getInstance().getContactListGrouped());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Zwraca pozycję pierwszego kontaktu (nie nagłówka grupy) na liście.
+	 *
+	 * @return pozycja kontaktu, lub -1, jeżeli lista nie zawiera kontaktów
+	 */
+	protected int getFirstContactIndex()
+	{
+		int size = contactListModel.getSize();
+		for (int i = 0; i < size; i++)
+			if (contactListModel.getContactAt(i) != null)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * Zwija lub rozwija grupę.
+	 *
+	 * @param group grupa z listy
+	 */
+	protected void toggleGroup(ContactListModel.Group group)
+	{
+		contactListModel.setGroupCollapsed(group, !group.isCollapsed());
 	}
 
 	class ContactListPanelList extends JList
@@ -42,12 +107,16 @@ public class ContactListPanel extends JScrollPane
 		public ContactListPanelList()
 		{
 			this.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-			this.setModel(new ContactListModel(contactList));
-			this.setCellRenderer(new ContactListPanelRenderer());
+			this.setModel(contactListModel);
+			this.setCellRenderer(contactListPanelRenderer);
+			// stały rozmiar wierszy - lista nie musi mierzyć każdego z nich
+			this.setFixedCellHeight(contactListPanelRenderer.getRowHeight());
+			this.setFixedCellWidth(50);
 			this.addMouseListener(new ContactListListener());
+			this.addKeyListener(new ContactListKeyListener());
 		}
 
-		protected Contact locationToItem(Point location)
+		protected Object locationToElement(Point location)
 		{
 			if (location == null)
 				throw new NullPointerException();
@@ -60,21 +129,28 @@ public class ContactListPanel extends JScrollPane
 			if (!itemRect.contains(location))
 				return null;
 
-			ContactListModel model = (ContactListModel)getModel();
-			synchronized (this)
-			{
-				if (model.getSize() < index)
-					return null;
-				else
-					return model.getElementAt(index);
-			}
+			return contactListModel.getElementAt(index);
+		}
+
+		protected Contact locationToItem(Point location)
+		{
+			Object element = locationToElement(location);
+			return (element instanceof Contact) ? (Contact)element : null;
 		}
 
 		@Override public String getToolTipText(MouseEvent event)
 		{
 			if (event == null)
 				throw new NullPointerException();
-			Contact item = locationToItem(event.getPoint());
+			Object element = locationToElement(event.getPoint());
+			if (element instanceof ContactListModel.Group)
+			{
+				ContactListModel.Group group = (ContactListModel.Group)element;
+				return "Dostępnych: " + group.getOnlineCount() + " z " +
+					group.getContactsCount() + (group.isCollapsed() ?
+					" (kliknij, aby rozwinąć)" : " (kliknij, aby zwinąć)");
+			}
+			Contact item = (Contact)element;
 			if (item == null)
 				return super.getToolTipText(event);
 
@@ -87,19 +163,94 @@ public class ContactListPanel extends JScrollPane
 			if (status != null)
 				tooltip += ", opis: \"" + status + "\"";
 
+			if (!item.isConfirmed())
+				tooltip += " (niepotwierdzony)";
+
 			return tooltip;
 		}
 	}
 
+	/**
+	 * Pole wyszukiwania kontaktów. Escape czyści pole, Enter otwiera rozmowę
+	 * z zaznaczonym (lub pierwszym znalezionym) kontaktem, strzałka w dół
+	 * przenosi do listy.
+	 */
+	class ContactSearchField extends JTextField implements DocumentListener, KeyListener
+	{
+		public ContactSearchField()
+		{
+			this.setToolTipText("Szukaj kontaktu (nazwa, grupa, opis, adres)");
+			this.getDocument().addDocumentListener(this);
+			this.addKeyListener(this);
+		}
+
+		protected void filterChanged()
+		{
+			contactListModel.setFilter(getText());
+			int firstContact = getFirstContactIndex();
+			if (firstContact >= 0 && !getText().trim().isEmpty())
+				contactListPanelList.setSelectedIndex(firstContact);
+		}
+
+		public void insertUpdate(DocumentEvent e)
+		{
+			filterChanged();
+		}
+
+		public void removeUpdate(DocumentEvent e)
+		{
+			filterChanged();
+		}
+
+		public void changedUpdate(DocumentEvent e) { }
+
+		public void keyPressed(KeyEvent e)
+		{
+			switch (e.getKeyCode())
+			{
+				case KeyEvent.VK_ESCAPE:
+					setText("");
+					break;
+				case KeyEvent.VK_DOWN:
+					if (contactListModel.getSize() == 0)
+						break;
+					if (contactListPanelList.getSelectedIndex() < 0)
+						contactListPanelList.setSelectedIndex(0);
+					contactListPanelList.requestFocusInWindow();
+					break;
+				case KeyEvent.VK_ENTER:
+					Object selected = contactListPanelList.getSelectedValue();
+					if (!(selected instanceof Contact))
+						selected = contactListModel.getContactAt(getFirstContactIndex());
+					if (selected == null)
+						break;
+					mainView.getChatRoomsView().showRoom(
+						((Contact)selected).getPrivateChatRoom());
+					setText("");
+					break;
+			}
+		}
+
+		public void keyReleased(KeyEvent e) { }
+		public void keyTyped(KeyEvent e) { }
+	}
+
 	class ContactListListener implements MouseListener
 	{
 		public void mouseClicked(MouseEvent e)
 		{
 			if (e.getButton() != MouseEvent.BUTTON1)
 				return;
+			Object element = contactListPanelList.locationToElement(e.getPoint());
+			if (element instanceof ContactListModel.Group)
+			{
+				if (e.getClickCount() == 1)
+					toggleGroup((ContactListModel.Group)element);
+				return;
+			}
 			if (e.getClickCount() != 2)
 				return;
-			Contact contact = contactListPanelList.locationToItem(e.getPoint());
+			Contact contact = (Contact)element;
 			if (contact == null)
 				return;
 			ChatRoom privRoom = contact.getPrivateChatRoom();
@@ -112,10 +263,60 @@ public class ContactListPanel extends JScrollPane
 		public void mouseEntered(MouseEvent e) { }
 		public void mouseExited(MouseEvent e) { }
 	}
+
+	/**
+	 * Obsługa klawiatury na nagłówkach grup: Enter i spacja zwijają lub
+	 * rozwijają grupę, strzałka w lewo zwija, w prawo rozwija.
+	 */
+	class ContactListKeyListener implements KeyListener
+	{
+		public void keyPressed(KeyEvent e)
+		{
+			Object selected = contactListPanelList.getSelectedValue();
+			if (!(selected instanceof ContactListModel.Group))
+				return;
+			ContactListModel.Group group = (ContactListModel.Group)selected;
+			switch (e.getKeyCode())
+			{
+				case KeyEvent.VK_ENTER:
+				case KeyEvent.VK_SPACE:
+					toggleGroup(group);
+					break;
+				case KeyEvent.VK_LEFT:
+					contactListModel.setGroupCollapsed(group, true);
+					break;
+				case KeyEvent.VK_RIGHT:
+					contactListModel.setGroupCollapsed(group, false);
+					break;
+				default:
+					return;
+			}
+			e.consume();
+		}
+
+		public void keyReleased(KeyEvent e) { }
+		public void keyTyped(KeyEvent e) { }
+	}
 }
 
-class ContactListPanelRenderer implements ListCellRenderer
+/**
+ * Renderer wierszy listy kontaktów (i nagłówków grup). Wiersze są rysowane
+ * zwyczajnie (z ustawieniami wygładzania tekstu pulpitu), ale dane wiersza
+ * kontaktu - ikony i etykiety z przekonwertowanymi znakami specjalnymi - są
+ * przygotowywane raz i zapamiętywane. Są unieważniane przy zmianie kontaktu
+ * (zdarzenie z listy kontaktów), a także gdy nie zgadza się zapamiętany
+ * z nimi status, nazwa, opis lub potwierdzenie kontaktu.
+ *
+ * @author Tomasz Wasilczyk (www.wasilczyk.pl)
+ */
+class ContactListPanelRenderer implements ListCellRenderer, SetListener<Contact>
 {
+	/**
+	 * Ilość zapamiętywanych wierszy - kilka ekranów listy. Wpis zajmuje
+	 * kilkadziesiąt bajtów (oraz napisy etykiet).
+	 */
+	protected final static int maxCachedRows = 512;
+
 	protected final JPanel render = new JPanel();
 
 	protected final JPanel userNamePanel = new JPanel();
@@ -124,7 +325,10 @@ class ContactListPanelRenderer implements ListCellRenderer
 	protected final JImagePanel userIcon = new JImagePanel();
 	protected final JImagePanel protocolIcon = new JImagePanel();
 
+	protected final JLabel groupHeader = new JLabel();
+
 	protected final Color selectedUserNameColor = new Color(100, 150, 200);
+	protected final Color groupHeaderColor = new Color(230, 235, 240);
 
 	protected final static Image iconOnline = ResourceManager.getImage("status/online.png");
 	protected final static Image iconOffline = ResourceManager.getImage("status/offline.png");
@@ -133,7 +337,22 @@ class ContactListPanelRenderer implements ListCellRenderer
 	protected final static Image iconUniLANChat = ResourceManager.getImage("protocols/unilanchat.png");
 	protected final static Image iconIpmsg = ResourceManager.getImage("protocols/ipmsg.png");
 
-	public ContactListPanelRenderer()
+	/**
+	 * Przygotowane dane wierszy kontaktów, od najdawniej używanego.
+	 * Synchronizacja na obiekcie mapy - wpisy są unieważniane z wątków
+	 * sieciowych.
+	 */
+	private final LinkedHashMap<Contact, CachedRow> cache =
+		new LinkedHashMap<Contact, CachedRow>(16, 0.75f, true)
+		{
+			@Override protected boolean removeEldestEntry(
+				Map.Entry<Contact, CachedRow> eldest)
+			{
+				return size() > maxCachedRows;
+			}
+		};
+
+	public ContactListPanelRenderer(ContactList contactList)
 	{
 		render.setLayout(new BorderLayout(5, 0));
 		render.setBorder(BorderFactory.createEmptyBorder(2, 2, 2, 2));
@@ -162,18 +381,150 @@ class ContactListPanelRenderer implements ListCellRenderer
 
 		userIcon.setPreferredSize(new Dimension(12, 12));
 		protocolIcon.setPreferredSize(new Dimension(12, 12));
-		
+
+		groupHeader.setOpaque(true);
+		groupHeader.setBorder(BorderFactory.createEmptyBorder(2, 2, 2, 2));
+		groupHeader.setIconTextGap(5);
+		groupHeader.setFont(groupHeader.getFont().deriveFont(Font.BOLD));
+
+		contactList.addSetListener(this);
+	}
+
+	/**
+	 * Zwraca wysokość wiersza listy.
+	 *
+	 * @return wysokość wiersza
+	 */
+	public int getRowHeight()
+	{
+		return render.getPreferredSize().height;
 	}
 
-	public synchronized Component getListCellRendererComponent(JList list,
+	public Component getListCellRendererComponent(JList list,
 			Object value, int index, boolean isSelected, boolean cellHasFocus)
 	{
 		if (value == null) //patrz ContactListModel.getElementAt()
 			return new JLabel();
-		
-		assert(value instanceof Contact);
+
+		if (value instanceof ContactListModel.Group)
+			return prepareGroupHeader((ContactListModel.Group)value, isSelected);
+
 		Contact contact = (Contact)value;
+		CachedRow row;
+		synchronized (cache)
+		{
+			row = cache.get(contact);
+		}
+		if (row == null || !row.isValid(contact))
+		{
+			row = new CachedRow(contact);
+			synchronized (cache)
+			{
+				cache.put(contact, row);
+			}
+		}
+		return prepareContact(row, isSelected);
+	}
+
+	public void itemAdded(Contact contact) { }
+
+	public void itemRemoved(Contact contact)
+	{
+		synchronized (cache)
+		{
+			cache.remove(contact);
+		}
+	}
+
+	public void itemUpdated(Contact contact)
+	{
+		synchronized (cache)
+		{
+			cache.remove(contact);
+		}
+	}
+
+	/**
+	 * Przygotowane dane wiersza kontaktu (ikony i etykiety), wraz z danymi
+	 * kontaktu, z których zostały przygotowane.
+	 */
+	static class CachedRow
+	{
+		public final Contact.UserStatus status;
+		public final String name, textStatus;
+		public final boolean confirmed;
 
+		public final Image statusIcon, protocolIcon;
+
+		/**
+		 * Etykiety z przekonwertowanymi znakami specjalnymi (opis:
+		 * <code>null</code>, jeżeli kontakt go nie ma).
+		 */
+		public final String nameLabel, textStatusLabel;
+
+		public CachedRow(Contact contact)
+		{
+			status = contact.getStatus();
+			name = contact.getName();
+			textStatus = contact.getTextStatus();
+			confirmed = contact.isConfirmed();
+
+			switch (status)
+			{
+				case ONLINE:
+					statusIcon = iconOnline;
+					break;
+				case BUSY:
+					statusIcon = iconBusy;
+					break;
+				default:
+					statusIcon = iconOffline;
+			}
+
+			if (contact instanceof protocols.ipmsg.IpmsgContact)
+			{
+				// oczywiście niepewne i tymczasowe
+				if (contact.getGroup().equals("UniLANChat"))
+					protocolIcon = iconUniLANChat;
+				else
+					protocolIcon = iconIpmsg;
+			}
+			else
+			{
+				assert(false);
+				protocolIcon = null;
+			}
+
+			nameLabel = HTMLUtilities.escapeForSwing(name);
+			textStatusLabel = (textStatus == null) ? null :
+				HTMLUtilities.escapeForSwing(textStatus);
+		}
+
+		public boolean isValid(Contact contact)
+		{
+			return (status == contact.getStatus() &&
+				confirmed == contact.isConfirmed() &&
+				name.equals(contact.getName()) &&
+				(textStatus == null ? contact.getTextStatus() == null :
+					textStatus.equals(contact.getTextStatus())));
+		}
+	}
+
+	protected Component prepareGroupHeader(ContactListModel.Group group,
+		boolean isSelected)
+	{
+		groupHeader.setBackground(isSelected ? selectedUserNameColor : groupHeaderColor);
+		groupHeader.setForeground(isSelected ? Color.WHITE : Color.DARK_GRAY);
+		groupHeader.setIcon(UIManager.getIcon(group.isCollapsed() ?
+			"Tree.collapsedIcon" : "Tree.expandedIcon"));
+		String name = group.getName().isEmpty() ? "Bez grupy" : group.getName();
+		groupHeader.setText(HTMLUtilities.escapeForSwing(name) + " (" +
+			group.getOnlineCount() + "/" + group.getContactsCount() + ")");
+		return groupHeader;
+	}
+
+	protected Component prepareContact(CachedRow row, boolean isSelected)
+	{
 		if (isSelected)
 		{
 			render.setBackground(selectedUserNameColor);
@@ -183,44 +534,22 @@ class ContactListPanelRenderer implements ListCellRenderer
 		else
 		{
 			render.setBackground(Color.WHITE);
-			userName.setForeground(Color.BLACK);
+			userName.setForeground(row.confirmed ? Color.BLACK : Color.GRAY);
 			userTextStatus.setForeground(Color.GRAY);
 		}
 
-		userName.setText(HTMLUtilities.escapeForSwing(contact.getName()));
+		userName.setText(row.nameLabel);
 
-		String textStatus = contact.getTextStatus();
-		if (textStatus == null)
+		if (row.textStatusLabel == null)
 			userTextStatus.setVisible(false);
 		else
 		{
 			userTextStatus.setVisible(true);
-			userTextStatus.setText(HTMLUtilities.escapeForSwing(textStatus));
+			userTextStatus.setText(row.textStatusLabel);
 		}
 
-		switch (contact.getStatus())
-		{
-			case ONLINE:
-				userIcon.setImage(iconOnline);
-				break;
-			case OFFLINE:
-				userIcon.setImage(iconOffline);
-				break;
-			case BUSY:
-				userIcon.setImage(iconBusy);
-				break;
-		}
-
-		if (contact instanceof protocols.ipmsg.IpmsgContact)
-		{
-			// oczywiście niepewne i tymczasowe
-			if (contact.getGroup().equals("UniLANChat"))
-				protocolIcon.setImage(iconUniLANChat);
-			else
-				protocolIcon.setImage(iconIpmsg);
-		}
-		else
-			assert(false);
+		userIcon.setImage(row.statusIcon);
+		protocolIcon.setImage(row.protocolIcon);
 
 		return render;
 	}
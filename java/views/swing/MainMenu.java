@@ -80,6 +80,17 @@ public class MainMenu extends JMenuBar
 					if (acc instanceof IpmsgAccount)
 						((IpmsgAccount)acc).speedupContactsRefresh();
 			}
+			else if (cmd.equals("debug.ipmsgStatistics"))
+			{
+				StringBuilder msg = new StringBuilder();
+				for (Account acc : mainView.getMainController().getAccountsVector())
+					if (acc instanceof IpmsgAccount)
+						msg.append(((IpmsgAccount)acc).getStatistics());
+				MessagesPanel.appendStatistics(msg);
+				SwingEventQueue.appendStatistics(msg);
+				JOptionPane.showMessageDialog(mainView, msg.toString(),
+					"Statystyki IPMsg", JOptionPane.INFORMATION_MESSAGE);
+			}
 			else if (cmd.equals("debug.printIfaces"))
 			{
 				StringBuilder msg = new StringBuilder();
@@ -200,6 +211,11 @@ public class MainMenu extends JMenuBar
 			itemRefreshIpmsg.addActionListener(mainMenuListener);
 			menuDebug.add(itemRefreshIpmsg);
 
+			JMenuItem itemIpmsgStatistics = new JMenuItem("Statystyki IPMsg");
+			itemIpmsgStatistics.setActionCommand("debug.ipmsgStatistics");
+			itemIpmsgStatistics.addActionListener(mainMenuListener);
+			menuDebug.add(itemIpmsgStatistics);
+
 			JMenuItem itemPrintIfaces = new JMenuItem("Interfejsy sieciowe");
 			itemPrintIfaces.setActionCommand("debug.printIfaces");
 			itemPrintIfaces.addActionListener(mainMenuListener);
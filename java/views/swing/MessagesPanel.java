@@ -15,12 +15,26 @@ import components.swing.*;
 import protocols.*;
 import resources.ResourceManager;
 import tools.HeavyObjectLoader;
+import tools.SwingEventQueue;
 import tools.html.*;
 import tools.systemintegration.SystemProcesses;
 
 /**
  * Panel z listą wiadomości.
  *
+ * W dokumencie HTML jest wyświetlane tylko okno (najwyżej
+ * {@link #maxDisplayedMessages}) kolejnych wiadomości z historii pokoju - czas
+ * dodania wiadomości i zajmowana pamięć nie zależą od długości historii.
+ * Gdy pole jest przewinięte na koniec, najstarsze wiadomości są usuwane
+ * z dokumentu. Po przewinięciu do początku (lub końca) okna, wcześniejsze
+ * (lub późniejsze) wiadomości są renderowane ponownie, porcjami po
+ * {@link #historyPageSize}, a wiadomości z drugiego końca okna usuwane.
+ *
+ * Nowe wiadomości są zbierane i wstawiane do dokumentu najwyżej raz na
+ * {@link #frameInterval} ms, jednym fragmentem HTML - przy dużej ilości
+ * wiadomości naraz dokument i układ pola zmieniają się raz na ramkę, a nie
+ * przy każdej wiadomości. Dokument jest zmieniany tylko w wątku EDT.
+ *
  * @author Tomasz Wasilczyk (www.wasilczyk.pl)
  */
 public class MessagesPanel extends JStickyScrollPane
@@ -28,12 +42,100 @@ public class MessagesPanel extends JStickyScrollPane
 	protected final MessagesPanel messagesPanel = this;
 	protected final ChatRoomPanel chatRoomPanel;
 	
-	protected final JEditorPane messagesPane = new JEditorPane("text/html",
-		"<div id=\"messages\"></div>");
+	protected final JEditorPane messagesPane = new JEditorPane();
+
+	/**
+	 * Początkowa zawartość pola. Element za listą wiadomości sprawia, że
+	 * wiadomości nigdy nie obejmują końca dokumentu, więc można je usuwać
+	 * (patrz {@link RemovableHTMLDocument#removeElements(Element, Element)}).
+	 */
+	protected final static String messagesPaneContents =
+		"<div id=\"messages\"></div><div id=\"messagesEnd\"></div>";
+
+	/**
+	 * Ile najwięcej wiadomości jest wyświetlanych (renderowanych) naraz.
+	 */
+	protected final static int maxDisplayedMessages = 200;
+
+	/**
+	 * Ile wiadomości jest renderowanych ponownie przy przewinięciu do
+	 * początku (lub końca) wyświetlanego okna.
+	 */
+	protected final static int historyPageSize = 50;
+
+	/**
+	 * Wszystkie wiadomości pokoju, w kolejności dodania. Używane tylko
+	 * w wątku EDT.
+	 */
+	private final ArrayList<Message> history = new ArrayList<Message>();
+
+	/**
+	 * Pozycja (w {@link #history}) pierwszej wyświetlanej wiadomości.
+	 */
+	private int firstDisplayedIndex = 0;
+
+	/**
+	 * Wyświetlane wiadomości, w kolejności w dokumencie. Używane tylko
+	 * w wątku EDT.
+	 */
+	private final LinkedList<DisplayedMessage> displayedOrder =
+		new LinkedList<DisplayedMessage>();
 
+	/**
+	 * Wyświetlane wiadomości według identyfikatorów. Używane tylko w wątku
+	 * EDT.
+	 */
 	private final HashMap<Integer, DisplayedMessage> displayedMessages =
 		new HashMap<Integer, DisplayedMessage>();
-	private DisplayedMessage lastDisplayedMessage;
+
+	/**
+	 * Czy zaplanowano już wczytanie porcji historii.
+	 */
+	private boolean historyLoadScheduled = false;
+
+	/**
+	 * Bufor formatowania treści wiadomości. Używany tylko w wątku EDT.
+	 */
+	private StringBuilder contentsBuffer = new StringBuilder();
+
+	/**
+	 * Pojemność, po przekroczeniu której bufor treści nie jest
+	 * wykorzystywany ponownie.
+	 */
+	protected final static int maxContentsBufferCapacity = 64 * 1024;
+
+	/**
+	 * Co ile ms (najczęściej) są wstawiane nowe wiadomości.
+	 */
+	protected final static int frameInterval = 20;
+
+	/**
+	 * Wiadomości oczekujące na wstawienie do dokumentu. Synchronizacja na
+	 * obiekcie listy.
+	 */
+	private final ArrayList<Message> pendingMessages = new ArrayList<Message>();
+
+	/**
+	 * Czy zegar wstawiający wiadomości jest uruchomiony. Zegar jest
+	 * zatrzymywany dopiero w takcie, w którym nie było nowych wiadomości.
+	 * Synchronizacja na obiekcie {@link #pendingMessages}.
+	 */
+	private boolean flushScheduled = false;
+
+	/**
+	 * Zegar wstawiający zebrane wiadomości (co {@link #frameInterval} ms).
+	 */
+	private final javax.swing.Timer flushTimer;
+
+	// statystyki (wszystkich paneli, synchronizacja na klasie)
+
+	private static long insertedMessagesCount = 0;
+
+	private static long insertBatchesCount = 0;
+
+	private static long insertTime = 0;
+
+	private static int largestInsertBatch = 0;
 
 	protected final SimpleDateFormat messagesDateFormat = new SimpleDateFormat("HH:mm:ss");
 
@@ -75,6 +177,9 @@ public class MessagesPanel extends JStickyScrollPane
 		this.setBorder(BorderFactory.createEmptyBorder());
 		this.chatRoomPanel = chatRoomPanel;
 
+		messagesPane.setEditorKit(new RemovableHTMLDocument.EditorKit());
+		messagesPane.setText(messagesPaneContents);
+
 		// przygotowanie odnośników DOM
 		messagesDoc = (HTMLDocument)messagesPane.getDocument();
 		messagesElement = messagesDoc.getElement("messages");
@@ -96,6 +201,16 @@ public class MessagesPanel extends JStickyScrollPane
 		// przy edycji powodowało "skakanie" pasków przewijania.
 		((DefaultCaret)messagesPane.getCaret()).setUpdatePolicy(
 				DefaultCaret.NEVER_UPDATE);
+
+		this.getVerticalScrollBar().addAdjustmentListener(new HistoryScrollListener());
+
+		flushTimer = new javax.swing.Timer(frameInterval, new ActionListener()
+		{
+			public void actionPerformed(ActionEvent e)
+			{
+				flushPendingMessages();
+			}
+		});
 	}
 
 	@Override public synchronized void addKeyListener(KeyListener l)
@@ -197,10 +312,14 @@ public class MessagesPanel extends JStickyScrollPane
 		}
 	}
 
-	public void add(Message message)
+	/**
+	 * Przygotowuje kod HTML wiersza wiadomości.
+	 *
+	 * @param message wiadomość
+	 * @return kod HTML
+	 */
+	protected String formatMessageRow(Message message)
 	{
-		DisplayedMessage dMesg = new DisplayedMessage(message);
-
 		StringBuilder messageIcons = new StringBuilder();
 
 		if (message instanceof OutgoingMessage)
@@ -250,19 +369,197 @@ public class MessagesPanel extends JStickyScrollPane
 			}
 		}
 
-		String messageHTML = String.format(messageRow,
+		return String.format(messageRow,
 			message.id, message.id,
 			formatMessageContents(message, false),
 			messageIcons
 			);
+	}
+
+	/**
+	 * Dodaje wiadomość na koniec historii. Wiadomości dodane w ciągu jednej
+	 * ramki ({@link #frameInterval} ms) są wstawiane do dokumentu razem, przez
+	 * {@link #flushPendingMessages()}. Można wywoływać z dowolnego wątku -
+	 * metoda nie czeka na wątek EDT.
+	 *
+	 * @param message nowa wiadomość
+	 */
+	public void add(Message message)
+	{
+		if (message == null)
+			throw new NullPointerException();
+		synchronized (pendingMessages)
+		{
+			pendingMessages.add(message);
+			if (flushScheduled)
+				return;
+			flushScheduled = true;
+		}
+		flushTimer.start();
+	}
+
+	/**
+	 * Wstawia wiadomości zebrane od ostatniej ramki. Wywoływane w wątku EDT.
+	 */
+	private void flushPendingMessages()
+	{
+		ArrayList<Message> batch;
+		synchronized (pendingMessages)
+		{
+			if (pendingMessages.isEmpty())
+			{
+				flushScheduled = false;
+				flushTimer.stop();
+				return;
+			}
+			batch = new ArrayList<Message>(pendingMessages);
+			pendingMessages.clear();
+		}
+
+		long started = System.nanoTime();
+		int inserted = addMessages(batch);
+		long elapsed = System.nanoTime() - started;
+
+		synchronized (MessagesPanel.class)
+		{
+			insertedMessagesCount += inserted;
+			insertBatchesCount++;
+			insertTime += elapsed;
+			if (inserted > largestInsertBatch)
+				largestInsertBatch = inserted;
+		}
+	}
+
+	/**
+	 * Dodaje wiadomości na koniec historii. Jeżeli wyświetlany jest koniec
+	 * historii, wiadomości są od razu wyświetlane - jednym wstawieniem do
+	 * dokumentu (a przy przewiniętym na koniec polu - najstarsze wiadomości
+	 * są usuwane z dokumentu, także jedną zmianą).
+	 *
+	 * @param batch nowe wiadomości
+	 * @return ilość wiadomości faktycznie wstawionych do dokumentu
+	 */
+	private int addMessages(java.util.List<Message> batch)
+	{
+		boolean newestDisplayed = isNewestDisplayed();
+		history.addAll(batch);
+		if (!newestDisplayed)
+			return 0;
+
+		java.util.List<Message> displayed;
+		if (verticalIsSticky)
+		{
+			// z bardzo dużej porcji wystarczy wyświetlić końcówkę
+			int skipped = Math.max(0, batch.size() - maxDisplayedMessages);
+			displayed = batch.subList(skipped, batch.size());
+			appendMessages(displayed);
+			int excess = displayedOrder.size() - maxDisplayedMessages;
+			if (excess > 0)
+				removeOldest(excess);
+			firstDisplayedIndex += skipped;
+		}
+		else
+		{
+			// użytkownik czyta wcześniejsze wiadomości - kolejne zostaną
+			// wyświetlone po przewinięciu na koniec
+			int free = maxDisplayedMessages - displayedOrder.size();
+			if (free <= 0)
+				return 0;
+			displayed = batch.subList(0, Math.min(free, batch.size()));
+			appendMessages(displayed);
+		}
+
+		// aktualizacje, które przyszły przed wstawieniem wiadomości, zostały
+		// pominięte
+		for (Message message : displayed)
+			update(message);
+		return displayed.size();
+	}
+
+	/**
+	 * Dopisuje do raportu statystyki wstawiania wiadomości (ze wszystkich
+	 * paneli).
+	 *
+	 * @param report raport, do którego dopisać statystyki
+	 */
+	public static synchronized void appendStatistics(StringBuilder report)
+	{
+		report.append("Okna rozmów\n");
+		report.append("  wstawione wiadomości: ").append(insertedMessagesCount).
+			append(" (porcje: ").append(insertBatchesCount).
+			append(", największa: ").append(largestInsertBatch).append(")\n");
+		if (insertTime > 0)
+			report.append("  szybkość wstawiania: ").append(
+				insertedMessagesCount * 1000000000L / insertTime).
+				append(" wiad./s\n");
+	}
+
+	/**
+	 * Sprawdza, czy wyświetlana jest najnowsza wiadomość historii.
+	 *
+	 * @return <code>true</code>, jeżeli okno obejmuje koniec historii
+	 */
+	private boolean isNewestDisplayed()
+	{
+		return (firstDisplayedIndex + displayedOrder.size() == history.size());
+	}
+
+	/**
+	 * Wyświetla wiadomości za ostatnią wyświetlaną - jedną zmianą dokumentu.
+	 *
+	 * @param messages kolejne wiadomości z historii
+	 */
+	private void appendMessages(java.util.List<Message> messages)
+	{
+		StringBuilder messagesHTML = new StringBuilder();
+		for (Message message : messages)
+			messagesHTML.append(formatMessageRow(message));
 
 		// if dla before/afterEnd to obejście dla buga dublowania tabelek
+		DisplayedMessage lastDisplayedMessage = displayedOrder.peekLast();
 		if (lastDisplayedMessage == null)
-			HTMLUtilities.insertBeforeEnd(messagesElement, messageHTML);
-		else if (lastDisplayedMessage.serviceCell != null)
-			HTMLUtilities.insertAfterEnd(lastDisplayedMessage.serviceCell, messageHTML);
+			HTMLUtilities.insertBeforeEnd(messagesElement, messagesHTML.toString());
 		else
-			HTMLUtilities.insertAfterEnd(lastDisplayedMessage.messageRow, messageHTML);
+			HTMLUtilities.insertAfterEnd(lastDisplayedMessage.getLastElement(),
+				messagesHTML.toString());
+
+		for (Message message : messages)
+			displayedOrder.addLast(bindDisplayedMessage(message));
+	}
+
+	/**
+	 * Wyświetla wiadomości przed pierwszą wyświetlaną - jedną zmianą
+	 * dokumentu.
+	 *
+	 * @param messages kolejne wiadomości z historii
+	 */
+	private void prependMessages(java.util.List<Message> messages)
+	{
+		StringBuilder messagesHTML = new StringBuilder();
+		for (Message message : messages)
+			messagesHTML.append(formatMessageRow(message));
+
+		DisplayedMessage firstDisplayedMessage = displayedOrder.peekFirst();
+		if (firstDisplayedMessage == null)
+			HTMLUtilities.insertBeforeEnd(messagesElement, messagesHTML.toString());
+		else
+			HTMLUtilities.insertBeforeStart(firstDisplayedMessage.messageRow,
+				messagesHTML.toString());
+
+		for (int i = messages.size() - 1; i >= 0; i--)
+			displayedOrder.addFirst(bindDisplayedMessage(messages.get(i)));
+		firstDisplayedIndex -= messages.size();
+	}
+
+	/**
+	 * Wiąże wiadomość z jej (właśnie wstawionymi) elementami dokumentu.
+	 *
+	 * @param message wiadomość
+	 * @return wyświetlana wiadomość
+	 */
+	private DisplayedMessage bindDisplayedMessage(Message message)
+	{
+		DisplayedMessage dMesg = new DisplayedMessage(message);
 
 		dMesg.messageRow = messagesDoc.getElement("messageRow-" + message.id);
 		assert(dMesg.messageRow != null);
@@ -277,17 +574,164 @@ public class MessagesPanel extends JStickyScrollPane
 			assert(dMesg.messageReceiversIconCell != null);
 		}
 
-		// tutaj można by było wywoływać update, ale w ChatController najpierw
-		// dodajemy wiadomość do pokoju, więc update i tak się wykona
-
 		displayedMessages.put(message.id, dMesg);
-		lastDisplayedMessage = dMesg;
+		return dMesg;
+	}
+
+	/**
+	 * Usuwa z dokumentu najstarsze wyświetlane wiadomości.
+	 *
+	 * @param count ilość wiadomości do usunięcia
+	 */
+	private void removeOldest(int count)
+	{
+		DisplayedMessage first = displayedOrder.peekFirst();
+		DisplayedMessage last = null;
+		for (int i = 0; i < count; i++)
+		{
+			last = displayedOrder.removeFirst();
+			displayedMessages.remove(last.message.id);
+		}
+		HTMLUtilities.removeRange(first.messageRow, last.getLastElement());
+		firstDisplayedIndex += count;
 	}
 
-	public void update(Message message)
+	/**
+	 * Usuwa z dokumentu najnowsze wyświetlane wiadomości.
+	 *
+	 * @param count ilość wiadomości do usunięcia
+	 */
+	private void removeNewest(int count)
 	{
+		DisplayedMessage last = displayedOrder.peekLast();
+		DisplayedMessage first = null;
+		for (int i = 0; i < count; i++)
+		{
+			first = displayedOrder.removeLast();
+			displayedMessages.remove(first.message.id);
+		}
+		HTMLUtilities.removeRange(first.messageRow, last.getLastElement());
+	}
+
+	/**
+	 * Wyświetla porcję wiadomości sprzed okna (przewinięto na jego początek),
+	 * zachowując widoczny fragment w miejscu.
+	 */
+	private void loadOlderMessages()
+	{
+		int count = Math.min(historyPageSize, firstDisplayedIndex);
+		if (count == 0)
+			return;
+		java.util.List<Message> page = new ArrayList<Message>(
+			history.subList(firstDisplayedIndex - count, firstDisplayedIndex));
+
+		int oldHeight = messagesPane.getPreferredSize().height;
+		prependMessages(page);
+		int addedHeight = messagesPane.getPreferredSize().height - oldHeight;
+		int excess = displayedOrder.size() - maxDisplayedMessages;
+		if (excess > 0)
+			removeNewest(excess);
+		for (Message message : page)
+			update(message);
+
+		validate();
+		JScrollBar vScroll = getVerticalScrollBar();
+		vScroll.setValue(vScroll.getValue() + addedHeight);
+	}
+
+	/**
+	 * Wyświetla porcję wiadomości za oknem (przewinięto na jego koniec),
+	 * zachowując widoczny fragment w miejscu.
+	 */
+	private void loadNewerMessages()
+	{
+		int next = firstDisplayedIndex + displayedOrder.size();
+		int count = Math.min(historyPageSize, history.size() - next);
+		if (count == 0)
+			return;
+		java.util.List<Message> page = new ArrayList<Message>(
+			history.subList(next, next + count));
+
+		appendMessages(page);
+		for (Message message : page)
+			update(message);
+		int excess = displayedOrder.size() - maxDisplayedMessages;
+		if (excess <= 0)
+			return;
+		int oldHeight = messagesPane.getPreferredSize().height;
+		removeOldest(excess);
+		int removedHeight = oldHeight - messagesPane.getPreferredSize().height;
+
+		validate();
+		JScrollBar vScroll = getVerticalScrollBar();
+		vScroll.setValue(vScroll.getValue() - removedHeight);
+	}
+
+	/**
+	 * Wczytuje porcję historii po przewinięciu pola do początku lub końca
+	 * wyświetlanego okna wiadomości.
+	 */
+	class HistoryScrollListener implements AdjustmentListener
+	{
+		public void adjustmentValueChanged(AdjustmentEvent e)
+		{
+			if (historyLoadScheduled)
+				return;
+			JScrollBar vScroll = getVerticalScrollBar();
+			if (vScroll.getMaximum() <= vScroll.getVisibleAmount())
+				return;
+
+			final boolean older;
+			if (vScroll.getValue() == 0 && firstDisplayedIndex > 0)
+				older = true;
+			else if (vScroll.getValue() >= vScroll.getMaximum() -
+				vScroll.getVisibleAmount() && !isNewestDisplayed())
+				older = false;
+			else
+				return;
+
+			historyLoadScheduled = true;
+			SwingUtilities.invokeLater(new Runnable()
+			{
+				public void run()
+				{
+					historyLoadScheduled = false;
+					if (older)
+						loadOlderMessages();
+					else
+						loadNewerMessages();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Odświeża wiadomość - jeżeli jest wyświetlana. Niewyświetlane
+	 * wiadomości zostaną wyrenderowane w aktualnym stanie, gdy użytkownik do
+	 * nich przewinie.
+	 *
+	 * @param message zmieniona wiadomość
+	 */
+	public void update(final Message message)
+	{
+		if (!SwingUtilities.isEventDispatchThread())
+		{
+			// kolejne zmiany tej samej wiadomości - jedno odświeżenie
+			Object key = new AbstractMap.SimpleImmutableEntry<MessagesPanel,
+				Message>(this, message);
+			SwingEventQueue.post(key, new Runnable()
+			{
+				public void run()
+				{
+					update(message);
+				}
+			});
+			return;
+		}
+
 		DisplayedMessage dMesg = displayedMessages.get(message.id);
-		assert(dMesg != null);
+		if (dMesg == null)
+			return;
 
 		StringBuilder serviceMsg = new StringBuilder();
 
@@ -314,7 +758,7 @@ public class MessagesPanel extends JStickyScrollPane
 					message.id,
 					statusIcon,
 					got, pending, failed),
-				false);
+				true);
 
 			switch (dMesg.getServiceCellUsage())
 			{
@@ -348,7 +792,7 @@ public class MessagesPanel extends JStickyScrollPane
 					}
 
 					HTMLUtilities.setInnerHTML(dMesg.getServiceCell(),
-						serviceMsg.toString(), false);
+						serviceMsg.toString(), true);
 					break;
 				case ATTACHMENTS:
 					for (File f : oMessage.getAttachedFiles())
@@ -362,7 +806,7 @@ public class MessagesPanel extends JStickyScrollPane
 						throw new RuntimeException("Powinien być jakiś załącznik");
 
 					HTMLUtilities.setInnerHTML(dMesg.getServiceCell(),
-						serviceMsg.toString(), false);
+						serviceMsg.toString(), true);
 					break;
 			}
 		}
@@ -378,7 +822,7 @@ public class MessagesPanel extends JStickyScrollPane
 					if (receivedFiles == null)
 					{
 						HTMLUtilities.setInnerHTML(dMesg.getServiceCell(),
-							"<p>Wszystkie załączniki zostały już pobrane.</p>", false);
+							"<p>Wszystkie załączniki zostały już pobrane.</p>", true);
 						break;
 					}
 					assert(receivedFiles.length > 0);
@@ -400,18 +844,29 @@ public class MessagesPanel extends JStickyScrollPane
 					}
 
 					HTMLUtilities.setInnerHTML(dMesg.getServiceCell(),
-						serviceMsg.toString(), false);
+						serviceMsg.toString(), true);
 					break;
 			}
 		}
 	}
 
-	protected static String escapeMessageContents(String plaintext, boolean tagURLs)
+	/**
+	 * Zamienia treść wiadomości na kod HTML (w jednym przejściu, we
+	 * współdzielonym buforze). Wywoływane w wątku EDT.
+	 *
+	 * @param plaintext treść wiadomości
+	 * @param tagURLs czy zamieniać adresy URL na łącza
+	 * @return kod HTML treści
+	 */
+	protected String escapeMessageContents(String plaintext, boolean tagURLs)
 	{
-		if (tagURLs)
-			return HTMLUtilities.nl2br(HTMLUtilities.tagURLs(HTMLUtilities.escape(plaintext)));
-		else
-			return HTMLUtilities.nl2br(HTMLUtilities.escape(plaintext));
+		contentsBuffer.setLength(0);
+		HTMLUtilities.appendPlainText(contentsBuffer, plaintext, tagURLs);
+		String contents = contentsBuffer.toString();
+		// nie trzymamy bufora po wyjątkowo długiej wiadomości
+		if (contentsBuffer.capacity() > maxContentsBufferCapacity)
+			contentsBuffer = new StringBuilder();
+		return contents;
 	}
 
 	class MessagesPaneListener implements HyperlinkListener, KeyListener
@@ -717,6 +1172,17 @@ public class MessagesPanel extends JStickyScrollPane
 			return serviceCell;
 		}
 
+		/**
+		 * Zwraca ostatni element wiadomości w dokumencie - komórkę
+		 * serwisową, lub (jeżeli jej nie ma) wiersz wiadomości.
+		 *
+		 * @return ostatni element wiadomości
+		 */
+		public synchronized Element getLastElement()
+		{
+			return (serviceCell != null) ? serviceCell : messageRow;
+		}
+
 		public synchronized void removeServiceCell()
 		{
 			assert(serviceCellUsage.equals(ServiceCellUsage.UNUSED) ==
@@ -767,7 +1233,7 @@ public class MessagesPanel extends JStickyScrollPane
 
 			HTMLUtilities.setInnerHTML(messageContentCell,
 				formatMessageContents(message, isRAWContentsShown),
-				false);
+				true);
 		}
 	}
 }